@@ -40,6 +40,7 @@ import com.google.cloud.broker.oauth.RefreshToken;
 import com.google.cloud.broker.oauth.RefreshTokenUtils;
 import com.google.cloud.broker.secretmanager.SecretManager;
 import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.SharedClients;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -199,6 +200,7 @@ public class Authorizer implements AutoCloseable {
     if (server != null && !server.isStopped()) {
       server.stop();
     }
+    SharedClients.closeAll();
   }
 
   public static class CustomErrorHandler extends ErrorHandler {
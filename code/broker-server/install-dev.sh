@@ -49,6 +49,12 @@ echo "redis-cli shutdown; service redis-server start" >> /restart-services.sh
 sed 's/^bind 127.0.0.1 ::1/bind 0.0.0.0/' -i /etc/redis/redis.conf
 sed 's/^protected-mode yes/protected-mode no/' -i /etc/redis/redis.conf
 
+# Memcached
+apt-get install -y memcached
+echo "service memcached restart" >> /restart-services.sh
+# Make the Memcached server available outside the container
+sed 's/^-l 127.0.0.1.*/-l 0.0.0.0/' -i /etc/memcached.conf
+
 # Node.JS tools
 apt install -y npm
 npm install --global remark-cli remark-validate-links  # Used for code linting (`./run.sh lint`)
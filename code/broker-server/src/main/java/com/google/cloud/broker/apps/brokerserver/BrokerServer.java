@@ -18,9 +18,12 @@ import com.google.cloud.broker.apps.brokerserver.endpoints.RenewSessionToken;
 import com.google.cloud.broker.apps.brokerserver.logging.LoggingUtils;
 import com.google.cloud.broker.apps.brokerserver.protobuf.*;
 import com.google.cloud.broker.authentication.AuthorizationHeaderServerInterceptor;
+import com.google.cloud.broker.caching.CacheFetcher;
+import com.google.cloud.broker.caching.CacheSnapshot;
 import com.google.cloud.broker.checks.SystemCheck;
 import com.google.cloud.broker.secretmanager.SecretManager;
 import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.SharedClients;
 import io.grpc.Server;
 import io.grpc.ServerInterceptors;
 import io.grpc.ServerServiceDefinition;
@@ -34,6 +37,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,6 +53,7 @@ public class BrokerServer {
   private final String host;
   private final int port;
   private final boolean tlsEnabled;
+  private final long shutdownTimeout; // In milliseconds
   private static ServerServiceDefinition serviceDefinition =
       ServerInterceptors.intercept(
           new BrokerImpl(),
@@ -59,6 +64,7 @@ public class BrokerServer {
     this.host = AppSettings.getInstance().getString(AppSettings.SERVER_HOST);
     this.port = AppSettings.getInstance().getInt(AppSettings.SERVER_PORT);
     this.tlsEnabled = AppSettings.getInstance().getBoolean(AppSettings.TLS_ENABLED);
+    this.shutdownTimeout = AppSettings.getInstance().getLong(AppSettings.SERVER_SHUTDOWN_TIMEOUT);
   }
 
   private SslContextBuilder getSslContextBuilder() {
@@ -97,7 +103,20 @@ public class BrokerServer {
   private void stop() {
     if (server != null) {
       server.shutdown();
+      // Let the in-flight calls complete before closing the clients that they use
+      try {
+        if (!server.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+          logger.warn(
+              "Server didn't terminate within " + shutdownTimeout + " ms, cancelling calls");
+          server.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        server.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
     }
+    CacheSnapshot.stop();
+    SharedClients.closeAll();
   }
 
   private void blockUntilShutdown() throws InterruptedException {
@@ -167,6 +186,9 @@ public class BrokerServer {
   public static void main(String[] args) throws IOException, InterruptedException {
     setLoggingLevel();
     SecretManager.downloadSecrets();
+    CacheFetcher.listenForInvalidations();
+    // Warm up the local cache before accepting requests
+    CacheSnapshot.start();
     final BrokerServer server = new BrokerServer();
     server.start();
 
@@ -12,6 +12,7 @@
 package com.google.cloud.broker.apps.brokerserver.accesstokens;
 
 import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.TimeUtils;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -101,6 +102,8 @@ public class AccessBoundaryUtils {
       throw new RuntimeException(e);
     }
 
-    return new AccessToken(accessTokenResponse.access_token, accessTokenResponse.expires_in);
+    return new AccessToken(
+        accessTokenResponse.access_token,
+        TimeUtils.currentTimeMillis() + accessTokenResponse.expires_in * 1000);
   }
 }
@@ -11,23 +11,27 @@
 
 package com.google.cloud.broker.apps.brokerserver.accesstokens;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.cloud.broker.apps.brokerserver.accesstokens.providers.AbstractProvider;
-import com.google.cloud.broker.apps.brokerserver.logging.LoggingUtils;
 import com.google.cloud.broker.caching.CacheFetcher;
+import com.google.cloud.broker.caching.codecs.CacheCodec;
 import com.google.cloud.broker.settings.AppSettings;
 import com.google.cloud.broker.usermapping.AbstractUserMapper;
+import com.google.cloud.broker.utils.AsyncUtils;
 import com.google.cloud.broker.validation.EmailValidation;
 import io.grpc.Status;
-import java.io.IOException;
 import java.util.List;
-import org.slf4j.MDC;
+import java.util.concurrent.CompletableFuture;
 
 public class AccessTokenCacheFetcher extends CacheFetcher {
 
+  private static final CacheCodec CODEC = new AccessTokenCodec();
+
   private String owner;
   private List<String> scopes;
   private String target;
+  // Google identity that the owner was mapped to, if the access token had to be generated. Kept
+  // here rather than in the logging context, as the token may be generated in a pooled thread.
+  private volatile String googleIdentity;
 
   public AccessTokenCacheFetcher(String owner, List<String> scopes, String target) {
     this.owner = owner;
@@ -45,30 +49,94 @@ public class AccessTokenCacheFetcher extends CacheFetcher {
     return AppSettings.getInstance().getInt(AppSettings.ACCESS_TOKEN_LOCAL_CACHE_TIME);
   }
 
+  @Override
+  protected String getLocalCacheNamespace() {
+    return "access-token";
+  }
+
+  @Override
+  protected long getLocalCacheCapacity() {
+    return AppSettings.getInstance().getBytes(AppSettings.ACCESS_TOKEN_LOCAL_CACHE_CAPACITY);
+  }
+
   @Override
   protected int getRemoteCacheTime() {
     return AppSettings.getInstance().getInt(AppSettings.ACCESS_TOKEN_REMOTE_CACHE_TIME);
   }
 
+  @Override
+  protected int getNegativeCacheTime() {
+    return AppSettings.getInstance().getInt(AppSettings.ACCESS_TOKEN_NEGATIVE_CACHE_TIME);
+  }
+
+  @Override
+  protected long getLockWaitTime() {
+    return AppSettings.getInstance().getLong(AppSettings.ACCESS_TOKEN_LOCK_WAIT_TIME);
+  }
+
+  @Override
+  protected long getLockLeaseTime() {
+    return AppSettings.getInstance().getLong(AppSettings.ACCESS_TOKEN_LOCK_LEASE_TIME);
+  }
+
+  @Override
+  protected Long getExpiresAt(Object result) {
+    return ((AccessToken) result).getExpiresAt();
+  }
+
+  @Override
+  protected int getExpiryMargin() {
+    return AppSettings.getInstance().getInt(AppSettings.ACCESS_TOKEN_EXPIRY_MARGIN);
+  }
+
+  @Override
+  protected double getRefreshAheadFactor() {
+    return AppSettings.getInstance().getDouble(AppSettings.ACCESS_TOKEN_REFRESH_AHEAD_FACTOR);
+  }
+
+  /**
+   * Returns the Google identity that the owner was mapped to, or null if the access token was
+   * found in cache.
+   */
+  public String getGoogleIdentity() {
+    return googleIdentity;
+  }
+
   @Override
   protected Object computeResult() {
+    String googleIdentity = mapOwner();
+    AccessToken accessToken = AbstractProvider.getInstance().getAccessToken(googleIdentity, scopes);
+    return AccessBoundaryUtils.addAccessBoundary(accessToken, target);
+  }
+
+  @Override
+  protected CompletableFuture<Object> computeResultAsync() {
+    String googleIdentity = mapOwner();
+    return AbstractProvider.getInstance()
+        .getAccessTokenAsync(googleIdentity, scopes)
+        .thenCompose(
+            accessToken ->
+                AsyncUtils.supplyBlocking(
+                    () -> AccessBoundaryUtils.addAccessBoundary(accessToken, target)));
+  }
+
+  /** Returns the Google identity that the owner maps to, and records it for the audit log. */
+  private String mapOwner() {
     String googleIdentity;
     try {
       googleIdentity = AbstractUserMapper.getInstance().map(owner);
       EmailValidation.validateEmail(googleIdentity);
+      this.googleIdentity = googleIdentity;
     } catch (IllegalArgumentException e) {
       throw Status.PERMISSION_DENIED
           .withDescription("Principal `" + owner + "` cannot be mapped to a Google identity.")
           .asRuntimeException();
     }
-    MDC.put(LoggingUtils.MDC_ACCESS_TOKEN_USER_KEY, googleIdentity);
-    AccessToken accessToken = AbstractProvider.getInstance().getAccessToken(googleIdentity, scopes);
-    return AccessBoundaryUtils.addAccessBoundary(accessToken, target);
+    return googleIdentity;
   }
 
   @Override
-  protected Object fromJson(String json) throws IOException {
-    ObjectMapper objectMapper = new ObjectMapper();
-    return objectMapper.readValue(json, AccessToken.class);
+  protected CacheCodec getCodec() {
+    return CODEC;
   }
 }
@@ -0,0 +1,39 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.apps.brokerserver.accesstokens;
+
+import com.google.cloud.broker.caching.codecs.BinaryCodec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/** Compact binary codec for cached access tokens. */
+public class AccessTokenCodec extends BinaryCodec {
+
+  public AccessTokenCodec() {
+    super(AccessToken.class);
+  }
+
+  @Override
+  protected void write(Object value, DataOutputStream output) throws IOException {
+    AccessToken accessToken = (AccessToken) value;
+    output.writeLong(accessToken.getExpiresAt());
+    writeString(output, accessToken.getValue());
+  }
+
+  @Override
+  protected Object read(DataInputStream input) throws IOException {
+    long expiresAt = input.readLong();
+    String value = readString(input);
+    return new AccessToken(value, expiresAt);
+  }
+}
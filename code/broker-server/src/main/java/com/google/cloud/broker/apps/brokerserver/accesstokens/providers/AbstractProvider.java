@@ -13,8 +13,10 @@ package com.google.cloud.broker.apps.brokerserver.accesstokens.providers;
 
 import com.google.cloud.broker.apps.brokerserver.accesstokens.AccessToken;
 import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.AsyncUtils;
 import com.google.cloud.broker.utils.InstanceUtils;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class AbstractProvider {
 
@@ -29,4 +31,13 @@ public abstract class AbstractProvider {
   }
 
   public abstract AccessToken getAccessToken(String googleIdentity, List<String> scopes);
+
+  /**
+   * Asynchronous variant of {@link #getAccessToken(String, List)}. By default, the access token is
+   * generated in a separate thread. Providers that have a non-blocking client may override this.
+   */
+  public CompletableFuture<AccessToken> getAccessTokenAsync(
+      String googleIdentity, List<String> scopes) {
+    return AsyncUtils.supplyBlocking(() -> getAccessToken(googleIdentity, scopes));
+  }
 }
@@ -17,6 +17,7 @@ import com.google.cloud.broker.oauth.RefreshToken;
 import com.google.cloud.broker.oauth.RefreshTokenUtils;
 import com.google.cloud.broker.utils.TimeUtils;
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +26,18 @@ public class RevokeRefreshTokens {
 
   private static final Class<?> klass = MethodHandles.lookup().lookupClass();
   private static final Logger logger = LoggerFactory.getLogger(klass);
+  // Maximum number of revoked tokens that are deleted from the database at once
+  static final int DELETE_BATCH_SIZE = 500;
+
+  /** Deletes the given tokens from the database, and clears the list. Returns their number. */
+  private static int deleteAll(List<RefreshToken> tokens) {
+    int numTokens = tokens.size();
+    if (numTokens > 0) {
+      AbstractDatabaseBackend.getInstance().deleteAll(tokens);
+      tokens.clear();
+    }
+    return numTokens;
+  }
 
   public static void main(String[] args) {
     long numHours;
@@ -36,18 +49,38 @@ public class RevokeRefreshTokens {
     long numMilliseconds = numHours * 3600 * 1000;
     long now = TimeUtils.currentTimeMillis();
     List<Model> models = AbstractDatabaseBackend.getInstance().getAll(RefreshToken.class);
-    int numRevokedToken = 0;
-    for (Model model : models) {
-      RefreshToken token = (RefreshToken) model;
-      if (now >= token.getCreationTime() + numMilliseconds) {
-        // Revoke the token
-        RefreshTokenUtils.revoke(token);
-        // Delete the token from the database
-        AbstractDatabaseBackend.getInstance().delete(token);
-        numRevokedToken++;
+    List<RefreshToken> revokedTokens = new ArrayList<>();
+    int numDeletedTokens = 0;
+    Throwable failure = null;
+    try {
+      for (Model model : models) {
+        RefreshToken token = (RefreshToken) model;
+        if (now >= token.getCreationTime() + numMilliseconds) {
+          // Revoke the token
+          RefreshTokenUtils.revoke(token);
+          revokedTokens.add(token);
+          if (revokedTokens.size() >= DELETE_BATCH_SIZE) {
+            numDeletedTokens += deleteAll(revokedTokens);
+          }
+        }
+      }
+    } catch (RuntimeException | Error e) {
+      failure = e;
+      throw e;
+    } finally {
+      // Delete the tokens that were revoked so far, even if revoking another token failed, so
+      // that the database doesn't keep any revoked tokens
+      try {
+        numDeletedTokens += deleteAll(revokedTokens);
+      } catch (RuntimeException | Error e) {
+        if (failure == null) {
+          throw e;
+        }
+        // Don't hide the original failure
+        failure.addSuppressed(e);
       }
+      logger.info(
+          klass.getSimpleName() + " - Revoked and deleted refresh token(s): " + numDeletedTokens);
     }
-    logger.info(
-        klass.getSimpleName() + " - Revoked and deleted refresh token(s): " + numRevokedToken);
   }
 }
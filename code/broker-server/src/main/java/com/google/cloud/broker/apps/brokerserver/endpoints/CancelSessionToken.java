@@ -15,6 +15,7 @@ import com.google.cloud.broker.apps.brokerserver.logging.LoggingUtils;
 import com.google.cloud.broker.apps.brokerserver.protobuf.CancelSessionTokenRequest;
 import com.google.cloud.broker.apps.brokerserver.protobuf.CancelSessionTokenResponse;
 import com.google.cloud.broker.apps.brokerserver.sessions.Session;
+import com.google.cloud.broker.apps.brokerserver.sessions.SessionCacheFetcher;
 import com.google.cloud.broker.apps.brokerserver.sessions.SessionTokenUtils;
 import com.google.cloud.broker.apps.brokerserver.validation.GrpcRequestValidation;
 import com.google.cloud.broker.authentication.backends.AbstractAuthenticationBackend;
@@ -48,6 +49,9 @@ public class CancelSessionToken {
     // Cancel the token
     AbstractDatabaseBackend.getInstance().delete(session);
 
+    // Evict the session from all broker instances' cache
+    new SessionCacheFetcher(request.getSessionToken()).invalidate();
+
     // Log success message
     MDC.put(LoggingUtils.MDC_AUTH_MODE_KEY, LoggingUtils.MDC_AUTH_MODE_VALUE_DIRECT);
     MDC.put(LoggingUtils.MDC_OWNER_KEY, session.getOwner());
@@ -59,7 +63,5 @@ public class CancelSessionToken {
     CancelSessionTokenResponse response = CancelSessionTokenResponse.newBuilder().build();
     responseObserver.onNext(response);
     responseObserver.onCompleted();
-
-    // TODO: Delete session token from SessionCacheFetcher
   }
 }
@@ -22,9 +22,13 @@ import com.google.cloud.broker.apps.brokerserver.validation.GrpcRequestValidatio
 import com.google.cloud.broker.apps.brokerserver.validation.ProxyUserValidation;
 import com.google.cloud.broker.apps.brokerserver.validation.ScopeValidation;
 import com.google.cloud.broker.authentication.backends.AbstractAuthenticationBackend;
+import com.google.cloud.broker.utils.AsyncUtils;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import org.slf4j.MDC;
 
 public class GetAccessToken {
@@ -77,23 +81,62 @@ public class GetAccessToken {
       scopes = Arrays.asList(session.getScopes().split(","));
     }
 
-    // Fetch the access token
-    AccessToken accessToken =
-        (AccessToken) new AccessTokenCacheFetcher(owner, scopes, target).fetch();
+    // Fetch the access token. The calling thread isn't held while the token is pulled from the
+    // remote cache or generated by the provider.
+    String finalOwner = owner;
+    List<String> finalScopes = scopes;
+    String finalTarget = target;
+    Map<String, String> loggingContext = MDC.getCopyOfContextMap();
+    AccessTokenCacheFetcher fetcher = new AccessTokenCacheFetcher(owner, scopes, target);
+    fetcher
+        .fetchAsync()
+        .whenComplete(
+            (result, throwable) -> {
+              // Set the request's logging context, as this may run in a pooled thread. The thread's
+              // own context is restored afterwards, so that it doesn't leak into unrelated tasks.
+              Map<String, String> previousContext = MDC.getCopyOfContextMap();
+              if (loggingContext != null) {
+                MDC.setContextMap(loggingContext);
+              }
+              try {
+                // Only known if the access token had to be generated
+                String googleIdentity = fetcher.getGoogleIdentity();
+                if (googleIdentity != null) {
+                  MDC.put(LoggingUtils.MDC_ACCESS_TOKEN_USER_KEY, googleIdentity);
+                }
+                if (throwable != null) {
+                  Throwable cause = AsyncUtils.unwrap(throwable);
+                  if (cause instanceof StatusRuntimeException) {
+                    LoggingUtils.errorAuditLog((StatusRuntimeException) cause);
+                    responseObserver.onError(cause);
+                  } else {
+                    responseObserver.onError(Status.fromThrowable(cause).asRuntimeException());
+                  }
+                  return;
+                }
+                AccessToken accessToken = (AccessToken) result;
 
-    // Log success message
-    MDC.put(LoggingUtils.MDC_OWNER_KEY, owner);
-    MDC.put(LoggingUtils.MDC_SCOPES_KEY, String.join(",", scopes));
-    MDC.put(LoggingUtils.MDC_TARGET_KEY, target);
-    LoggingUtils.successAuditLog();
+                // Log success message
+                MDC.put(LoggingUtils.MDC_OWNER_KEY, finalOwner);
+                MDC.put(LoggingUtils.MDC_SCOPES_KEY, String.join(",", finalScopes));
+                MDC.put(LoggingUtils.MDC_TARGET_KEY, finalTarget);
+                LoggingUtils.successAuditLog();
 
-    // Return the response
-    GetAccessTokenResponse response =
-        GetAccessTokenResponse.newBuilder()
-            .setAccessToken(accessToken.getValue())
-            .setExpiresAt(accessToken.getExpiresAt())
-            .build();
-    responseObserver.onNext(response);
-    responseObserver.onCompleted();
+                // Return the response
+                GetAccessTokenResponse response =
+                    GetAccessTokenResponse.newBuilder()
+                        .setAccessToken(accessToken.getValue())
+                        .setExpiresAt(accessToken.getExpiresAt())
+                        .build();
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+              } finally {
+                if (previousContext != null) {
+                  MDC.setContextMap(previousContext);
+                } else {
+                  MDC.clear();
+                }
+              }
+            });
   }
 }
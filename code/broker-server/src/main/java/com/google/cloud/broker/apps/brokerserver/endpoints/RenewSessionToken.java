@@ -15,6 +15,7 @@ import com.google.cloud.broker.apps.brokerserver.logging.LoggingUtils;
 import com.google.cloud.broker.apps.brokerserver.protobuf.RenewSessionTokenRequest;
 import com.google.cloud.broker.apps.brokerserver.protobuf.RenewSessionTokenResponse;
 import com.google.cloud.broker.apps.brokerserver.sessions.Session;
+import com.google.cloud.broker.apps.brokerserver.sessions.SessionCacheFetcher;
 import com.google.cloud.broker.apps.brokerserver.sessions.SessionTokenUtils;
 import com.google.cloud.broker.apps.brokerserver.validation.GrpcRequestValidation;
 import com.google.cloud.broker.authentication.backends.AbstractAuthenticationBackend;
@@ -49,6 +50,9 @@ public class RenewSessionToken {
     session.extendLifetime();
     AbstractDatabaseBackend.getInstance().save(session);
 
+    // Evict the outdated session from all broker instances' cache
+    new SessionCacheFetcher(request.getSessionToken()).invalidate();
+
     // Log success message
     MDC.put(LoggingUtils.MDC_AUTH_MODE_KEY, LoggingUtils.MDC_AUTH_MODE_VALUE_DIRECT);
     MDC.put(LoggingUtils.MDC_OWNER_KEY, session.getOwner());
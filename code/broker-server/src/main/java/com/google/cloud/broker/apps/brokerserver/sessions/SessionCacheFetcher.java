@@ -11,13 +11,18 @@
 
 package com.google.cloud.broker.apps.brokerserver.sessions;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.cloud.broker.caching.CacheFetcher;
+import com.google.cloud.broker.caching.codecs.CacheCodec;
 import com.google.cloud.broker.settings.AppSettings;
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 
 public class SessionCacheFetcher extends CacheFetcher {
 
+  private static final CacheCodec CODEC = new SessionCodec();
+
   private String rawToken;
 
   public SessionCacheFetcher(String rawToken) {
@@ -29,7 +34,19 @@ public class SessionCacheFetcher extends CacheFetcher {
 
   @Override
   protected String getCacheKey() {
-    return String.format("session-%s", rawToken);
+    // Use a hash of the token, so that the token itself isn't sent to other broker instances
+    // when the session is invalidated.
+    return String.format("session-%s", hash(rawToken));
+  }
+
+  private static String hash(String rawToken) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(rawToken.getBytes(StandardCharsets.UTF_8));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   @Override
@@ -37,6 +54,28 @@ public class SessionCacheFetcher extends CacheFetcher {
     return AppSettings.getInstance().getInt(AppSettings.SESSION_LOCAL_CACHE_TIME);
   }
 
+  @Override
+  protected String getLocalCacheNamespace() {
+    return "session";
+  }
+
+  @Override
+  protected long getLocalCacheCapacity() {
+    return AppSettings.getInstance().getBytes(AppSettings.SESSION_LOCAL_CACHE_CAPACITY);
+  }
+
+  @Override
+  protected boolean allowSnapshot() {
+    // Sessions can be cancelled at any time, and a snapshot doesn't know about the cancellations
+    // that happened after it was taken
+    return false;
+  }
+
+  @Override
+  protected Long getExpiresAt(Object result) {
+    return ((Session) result).getExpiresAt();
+  }
+
   @Override
   protected int getRemoteCacheTime() {
     // Remote cache not enabled
@@ -49,8 +88,7 @@ public class SessionCacheFetcher extends CacheFetcher {
   }
 
   @Override
-  protected Object fromJson(String json) throws IOException {
-    ObjectMapper objectMapper = new ObjectMapper();
-    return objectMapper.readValue(json, Session.class);
+  protected CacheCodec getCodec() {
+    return CODEC;
   }
 }
@@ -0,0 +1,49 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.apps.brokerserver.sessions;
+
+import com.google.cloud.broker.caching.codecs.BinaryCodec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/** Compact binary codec for cached sessions. */
+public class SessionCodec extends BinaryCodec {
+
+  public SessionCodec() {
+    super(Session.class);
+  }
+
+  @Override
+  protected void write(Object value, DataOutputStream output) throws IOException {
+    Session session = (Session) value;
+    writeString(output, session.getId());
+    writeString(output, session.getOwner());
+    writeString(output, session.getRenewer());
+    writeString(output, session.getTarget());
+    writeString(output, session.getScopes());
+    writeNullableLong(output, session.getExpiresAt());
+    writeNullableLong(output, session.getCreationTime());
+  }
+
+  @Override
+  protected Object read(DataInputStream input) throws IOException {
+    return new Session(
+        readString(input),
+        readString(input),
+        readString(input),
+        readString(input),
+        readString(input),
+        readNullableLong(input),
+        readNullableLong(input));
+  }
+}
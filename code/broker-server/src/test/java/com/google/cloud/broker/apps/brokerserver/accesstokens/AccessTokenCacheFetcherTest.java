@@ -52,7 +52,11 @@ public class AccessTokenCacheFetcherTest {
                   "com.google.cloud.broker.apps.brokerserver.accesstokens.providers.MockProvider",
               AppSettings.USER_MAPPER, "com.google.cloud.broker.usermapping.MockUserMapper",
               AppSettings.ACCESS_TOKEN_LOCAL_CACHE_TIME, "1234",
-              AppSettings.ACCESS_TOKEN_REMOTE_CACHE_TIME, "6789"));
+              AppSettings.ACCESS_TOKEN_LOCAL_CACHE_CAPACITY, "2M",
+              AppSettings.ACCESS_TOKEN_REMOTE_CACHE_TIME, "6789",
+              AppSettings.ACCESS_TOKEN_REFRESH_AHEAD_FACTOR, "0.75",
+              AppSettings.ACCESS_TOKEN_EXPIRY_MARGIN, "120",
+              AppSettings.ACCESS_TOKEN_NEGATIVE_CACHE_TIME, "5"));
 
   @Test
   public void testComputeResult() {
@@ -76,7 +80,7 @@ public class AccessTokenCacheFetcherTest {
     String json = "{\"expiresAt\": 888888888, \"value\": \"blah\"}";
     AccessToken token;
     try {
-      token = (AccessToken) fetcher.fromJson(json);
+      token = (AccessToken) fetcher.getCodec().decode(json.getBytes());
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -97,9 +101,36 @@ public class AccessTokenCacheFetcherTest {
     assertEquals(1234, fetcher.getLocalCacheTime());
   }
 
+  @Test
+  public void testGetLocalCacheCapacity() {
+    AccessTokenCacheFetcher fetcher = new AccessTokenCacheFetcher(ALICE, SCOPES, TARGET);
+    assertEquals("access-token", fetcher.getLocalCacheNamespace());
+    assertEquals(2 * 1024 * 1024, fetcher.getLocalCacheCapacity());
+  }
+
   @Test
   public void testGetRemoteCacheTime() {
     AccessTokenCacheFetcher fetcher = new AccessTokenCacheFetcher(ALICE, SCOPES, TARGET);
     assertEquals(6789, fetcher.getRemoteCacheTime());
   }
+
+  @Test
+  public void testGetNegativeCacheTime() {
+    AccessTokenCacheFetcher fetcher = new AccessTokenCacheFetcher(ALICE, SCOPES, TARGET);
+    assertEquals(5, fetcher.getNegativeCacheTime());
+  }
+
+  @Test
+  public void testGetExpiresAt() {
+    AccessTokenCacheFetcher fetcher = new AccessTokenCacheFetcher(ALICE, SCOPES, TARGET);
+    AccessToken token = new AccessToken("blah", 888888888L);
+    assertEquals(888888888L, fetcher.getExpiresAt(token).longValue());
+    assertEquals(120, fetcher.getExpiryMargin());
+  }
+
+  @Test
+  public void testGetRefreshAheadFactor() {
+    AccessTokenCacheFetcher fetcher = new AccessTokenCacheFetcher(ALICE, SCOPES, TARGET);
+    assertEquals(0.75, fetcher.getRefreshAheadFactor(), 0);
+  }
 }
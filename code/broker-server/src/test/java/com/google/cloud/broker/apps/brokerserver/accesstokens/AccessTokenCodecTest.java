@@ -0,0 +1,68 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.apps.brokerserver.accesstokens;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import org.junit.Test;
+
+public class AccessTokenCodecTest {
+
+  private final AccessTokenCodec codec = new AccessTokenCodec();
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    AccessToken token = new AccessToken("blah", 888888888L);
+    AccessToken decoded = (AccessToken) codec.decode(codec.encode(token));
+    assertEquals("blah", decoded.getValue());
+    assertEquals(888888888L, decoded.getExpiresAt());
+  }
+
+  @Test
+  public void testEncodedSmallerThanJson() {
+    AccessToken token = new AccessToken("blah", 888888888L);
+    String json = "{\"value\":\"blah\",\"expiresAt\":888888888}";
+    assertTrue(codec.encode(token).length < json.length());
+  }
+
+  @Test
+  public void testDecodeLegacyJson() throws IOException {
+    String json = "{\"expiresAt\": 888888888, \"value\": \"blah\"}";
+    AccessToken decoded = (AccessToken) codec.decode(json.getBytes());
+    assertEquals("blah", decoded.getValue());
+    assertEquals(888888888L, decoded.getExpiresAt());
+  }
+
+  @Test
+  public void testDecodeUnsupportedVersion() {
+    try {
+      codec.decode(new byte[] {42, 0, 0});
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testDecodeTruncated() {
+    byte[] encoded = codec.encode(new AccessToken("blah", 888888888L));
+    byte[] truncated = new byte[encoded.length - 2];
+    System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+    try {
+      codec.decode(truncated);
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
@@ -35,6 +35,7 @@ public class SessionCacheFetcherTest {
       new SettingsOverride(
           Map.of(
               AppSettings.SESSION_LOCAL_CACHE_TIME, "1234",
+              AppSettings.SESSION_LOCAL_CACHE_CAPACITY, "2M",
               AppSettings.SESSION_RENEW_PERIOD, SESSION_RENEW_PERIOD.toString(),
               AppSettings.SESSION_MAXIMUM_LIFETIME, SESSION_MAXIMUM_LIFETIME.toString(),
               AppSettings.DATABASE_BACKEND,
@@ -75,7 +76,7 @@ public class SessionCacheFetcherTest {
             + "}";
     Session session;
     try {
-      session = (Session) fetcher.fromJson(json);
+      session = (Session) fetcher.getCodec().decode(json.getBytes());
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -91,7 +92,13 @@ public class SessionCacheFetcherTest {
   @Test
   public void testGetCacheKey() {
     SessionCacheFetcher fetcher = new SessionCacheFetcher("xxxx");
-    assertEquals("session-xxxx", fetcher.getCacheKey());
+    String cacheKey = fetcher.getCacheKey();
+    assertTrue(cacheKey.startsWith("session-"));
+    // The key doesn't contain the raw token...
+    assertFalse(cacheKey.contains("xxxx"));
+    // ... but is still unique to the token
+    assertEquals(cacheKey, new SessionCacheFetcher("xxxx").getCacheKey());
+    assertNotEquals(cacheKey, new SessionCacheFetcher("yyyy").getCacheKey());
   }
 
   @Test
@@ -100,6 +107,20 @@ public class SessionCacheFetcherTest {
     assertEquals(1234, fetcher.getLocalCacheTime());
   }
 
+  @Test
+  public void testGetLocalCacheCapacity() {
+    SessionCacheFetcher fetcher = new SessionCacheFetcher("xxxx");
+    assertEquals("session", fetcher.getLocalCacheNamespace());
+    assertEquals(2 * 1024 * 1024, fetcher.getLocalCacheCapacity());
+  }
+
+  @Test
+  public void testGetExpiresAt() {
+    Session session = createSession();
+    SessionCacheFetcher fetcher = new SessionCacheFetcher("xxxx");
+    assertEquals(session.getExpiresAt(), fetcher.getExpiresAt(session));
+  }
+
   @Test
   public void testGetRemoteCacheTime() {
     SessionCacheFetcher fetcher = new SessionCacheFetcher("xxxx");
@@ -0,0 +1,55 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.apps.brokerserver.sessions;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import org.junit.Test;
+
+public class SessionCodecTest {
+
+  private static final String GCS = "https://www.googleapis.com/auth/devstorage.read_write";
+
+  private final SessionCodec codec = new SessionCodec();
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Session session =
+        new Session(
+            "abcd",
+            "bob@EXAMPLE.COM",
+            "yarn@BAZ.NET",
+            "gs://blah",
+            GCS,
+            2000000000000L,
+            1000000000000L);
+    Session decoded = (Session) codec.decode(codec.encode(session));
+    assertEquals("abcd", decoded.getId());
+    assertEquals("bob@EXAMPLE.COM", decoded.getOwner());
+    assertEquals("yarn@BAZ.NET", decoded.getRenewer());
+    assertEquals("gs://blah", decoded.getTarget());
+    assertEquals(GCS, decoded.getScopes());
+    assertEquals(2000000000000L, decoded.getExpiresAt().longValue());
+    assertEquals(1000000000000L, decoded.getCreationTime().longValue());
+  }
+
+  @Test
+  public void testRoundTripWithNullFields() throws IOException {
+    Session session =
+        new Session(
+            "abcd", "bob@EXAMPLE.COM", null, "gs://blah", GCS, 2000000000000L, 1000000000000L);
+    Session decoded = (Session) codec.decode(codec.encode(session));
+    assertEquals("abcd", decoded.getId());
+    assertNull(decoded.getRenewer());
+  }
+}
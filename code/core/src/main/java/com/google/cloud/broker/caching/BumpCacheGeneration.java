@@ -0,0 +1,40 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching;
+
+import java.lang.invoke.MethodHandles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Invalidates all the cached entries of the given namespaces (e.g. "access-token"), for all broker
+ * instances, by bumping the namespaces' generations.
+ */
+public class BumpCacheGeneration {
+
+  private static final Class<?> klass = MethodHandles.lookup().lookupClass();
+  private static final Logger logger = LoggerFactory.getLogger(klass);
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      logger.error("This command requires at least one namespace argument.");
+      System.exit(1);
+    }
+    for (String namespace : args) {
+      String generation = CacheGenerations.bump(namespace);
+      logger.info(
+          String.format(
+              "%s - Bumped namespace `%s` to generation: %s",
+              klass.getSimpleName(), namespace, generation));
+    }
+  }
+}
@@ -11,87 +11,622 @@
 
 package com.google.cloud.broker.caching;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.broker.caching.codecs.CacheCodec;
 import com.google.cloud.broker.caching.local.LocalCache;
 import com.google.cloud.broker.caching.remote.AbstractRemoteCache;
+import com.google.cloud.broker.caching.remote.Lease;
+import com.google.cloud.broker.caching.remote.ValueOrLease;
 import com.google.cloud.broker.encryption.backends.AbstractEncryptionBackend;
+import com.google.cloud.broker.utils.AsyncUtils;
+import com.google.cloud.broker.utils.TimeUtils;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import java.io.IOException;
-import java.util.concurrent.locks.Lock;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public abstract class CacheFetcher {
 
+  private static final Logger logger =
+      LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final int REFRESH_AHEAD_THREADS = 4;
+
+  public static final long DEFAULT_LOCK_WAIT_TIME = 5000; // In milliseconds
+  public static final long DEFAULT_LOCK_LEASE_TIME = 10000; // In milliseconds
+
+  /** What to do when a fetch can't acquire the remote cache lock within the lock wait time. */
+  public enum LockTimeoutPolicy {
+    /** Compute the result without holding the lock, at the risk of computing it more than once. */
+    COMPUTE_WITHOUT_LOCK,
+    /** Fail the fetch with an UNAVAILABLE status. */
+    FAIL
+  }
+
+  // Fetches currently in progress in this JVM, indexed by cache key
+  private static final ConcurrentMap<String, InFlightFetch> inFlight = new ConcurrentHashMap<>();
+
+  // Background threads used to refresh local cache entries before they expire
+  private static final ExecutorService refreshExecutor =
+      Executors.newFixedThreadPool(
+          REFRESH_AHEAD_THREADS,
+          runnable -> {
+            Thread thread = new Thread(runnable, "cache-refresh-ahead");
+            thread.setDaemon(true);
+            return thread;
+          });
+
   protected boolean allowRemoteCache = true;
 
   public Object fetch() {
     String cacheKey = getCacheKey();
 
     // First check in local cache
-    Object result = LocalCache.get(cacheKey);
-    if (result != null) {
+    LocalCacheEntry entry = (LocalCacheEntry) LocalCache.get(getLocalCacheNamespace(), cacheKey);
+    if (entry != null) {
+      if (entry.failure != null) {
+        // The same fetch failed recently, so fail again right away
+        throw entry.failure.asRuntimeException();
+      }
+      if (TimeUtils.currentTimeMillis() >= entry.refreshAt) {
+        // The entry is still valid but is getting close to its expiry, so
+        // refresh it in the background while we keep serving the current value.
+        refreshInBackground(cacheKey);
+      }
+      return entry.value;
+    }
+
+    // Not found in local cache. If another thread is already fetching the same key,
+    // then simply wait for its result instead of hitting the remote cache again.
+    InFlightFetch future = new InFlightFetch(getLocalCacheNamespace());
+    CompletableFuture<Object> existing = inFlight.putIfAbsent(cacheKey, future);
+    if (existing != null) {
+      return AsyncUtils.join(existing);
+    }
+
+    try {
+      Object result = fetchAndCache(cacheKey, future);
+      future.complete(result);
       return result;
+    } catch (StatusRuntimeException e) {
+      if (!future.isInvalidated()) {
+        cacheFailure(cacheKey, e.getStatus());
+      }
+      future.completeExceptionally(e);
+      throw e;
+    } catch (RuntimeException | Error e) {
+      // Propagate the failure to the waiting threads as well
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(cacheKey, future);
     }
+  }
 
-    // Not found in local cache, so look in remote cache.
+  /**
+   * Asynchronous variant of {@link #fetch()}, which doesn't block the calling thread while the
+   * result is pulled from the remote cache or computed.
+   */
+  public CompletableFuture<Object> fetchAsync() {
+    String cacheKey = getCacheKey();
+
+    // First check in local cache
+    LocalCacheEntry entry = (LocalCacheEntry) LocalCache.get(getLocalCacheNamespace(), cacheKey);
+    if (entry != null) {
+      if (entry.failure != null) {
+        return CompletableFuture.failedFuture(entry.failure.asRuntimeException());
+      }
+      if (TimeUtils.currentTimeMillis() >= entry.refreshAt) {
+        refreshInBackground(cacheKey);
+      }
+      return CompletableFuture.completedFuture(entry.value);
+    }
+
+    // Not found in local cache. Share the result of any fetch already in progress for the same key.
+    InFlightFetch future = new InFlightFetch(getLocalCacheNamespace());
+    CompletableFuture<Object> existing = inFlight.putIfAbsent(cacheKey, future);
+    if (existing != null) {
+      // Return a copy so that the caller can't complete the shared future
+      return existing.copy();
+    }
+
+    CompletableFuture<Object> fetch;
+    try {
+      fetch = fetchAndCacheAsync(cacheKey, future);
+    } catch (RuntimeException | Error e) {
+      fetch = CompletableFuture.failedFuture(e);
+    }
+    fetch.whenComplete(
+        (result, throwable) -> {
+          if (throwable == null) {
+            future.complete(result);
+          } else {
+            Throwable cause = AsyncUtils.unwrap(throwable);
+            if (cause instanceof StatusRuntimeException && !future.isInvalidated()) {
+              cacheFailure(cacheKey, ((StatusRuntimeException) cause).getStatus());
+            }
+            future.completeExceptionally(cause);
+          }
+          inFlight.remove(cacheKey, future);
+        });
+    return future.copy();
+  }
+
+  /**
+   * Evicts the cached result from the local cache of every broker instance and from the remote
+   * cache, so that the next fetch computes a fresh result.
+   */
+  public void invalidate() {
+    String cacheKey = getCacheKey();
+    String namespace = getLocalCacheNamespace();
+    invalidateInFlight(cacheKey);
+    LocalCache.delete(namespace, cacheKey);
+    AbstractRemoteCache cache = AbstractRemoteCache.getInstance();
     if (allowRemoteCache) {
-      AbstractRemoteCache cache = AbstractRemoteCache.getInstance();
-      byte[] encryptedValue = cache.get(cacheKey);
-      if (encryptedValue != null) {
-        // Cache hit... Let's load the value.
-        String json = new String(AbstractEncryptionBackend.getInstance().decrypt(encryptedValue));
-        try {
-          result = fromJson(json);
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
-      } else {
-        // Cache miss...
-        // Start by acquiring a lock to avoid cache stampede
-        Lock lock = cache.acquireLock(cacheKey + "_lock");
-
-        try {
-          // Check again if there's still no value
-          encryptedValue = cache.get(cacheKey);
-          if (encryptedValue != null) {
-            // This time it's a cache hit. The value must have been generated
-            // by a competing thread. So we just load the value.
-            String json =
-                new String(AbstractEncryptionBackend.getInstance().decrypt(encryptedValue));
+      cache.delete(CacheGenerations.getRemoteKey(namespace, cacheKey));
+    }
+    cache.publishInvalidation(namespace, cacheKey);
+  }
+
+  /**
+   * Prevents the fetch in progress for the given key, if any, from caching its result, as that
+   * result may predate the invalidation. Later fetches for the same key start over instead of
+   * waiting for that fetch.
+   */
+  static void invalidateInFlight(String cacheKey) {
+    InFlightFetch fetch = inFlight.remove(cacheKey);
+    if (fetch != null) {
+      fetch.invalidated = true;
+    }
+  }
+
+  /**
+   * Same as {@link #invalidateInFlight(String)}, for all the fetches in progress in the given
+   * namespace, e.g. when the namespace's generation is bumped.
+   */
+  static void invalidateInFlightNamespace(String namespace) {
+    inFlight
+        .values()
+        .removeIf(
+            fetch -> {
+              if (fetch.namespace.equals(namespace)) {
+                fetch.invalidated = true;
+                return true;
+              }
+              return false;
+            });
+  }
+
+  /**
+   * Starts evicting entries from the local cache when they are invalidated by any broker instance,
+   * including whole namespaces when their generation is bumped (see {@link CacheGenerations}). Call
+   * this once when the application starts.
+   */
+  public static void listenForInvalidations() {
+    AbstractRemoteCache.getInstance().subscribeInvalidations(CacheGenerations::onInvalidation);
+  }
+
+  /**
+   * Returns the key of the given entry in the remote cache, which includes the current generation
+   * of the entry's namespace. The generation is recorded in the given fetch.
+   */
+  private String getRemoteCacheKey(String cacheKey, InFlightFetch fetch) {
+    fetch.generation = CacheGenerations.get(fetch.namespace);
+    return CacheGenerations.toRemoteKey(cacheKey, fetch.generation);
+  }
+
+  /** Asynchronous variant of {@link #getRemoteCacheKey(String, InFlightFetch)}. */
+  private CompletableFuture<String> getRemoteCacheKeyAsync(String cacheKey, InFlightFetch fetch) {
+    return CacheGenerations.getAsync(fetch.namespace)
+        .thenApply(
+            generation -> {
+              fetch.generation = generation;
+              return CacheGenerations.toRemoteKey(cacheKey, generation);
+            });
+  }
+
+  /** Temporarily keeps the given failure in the local cache, if enabled, to avoid retry storms. */
+  private void cacheFailure(String cacheKey, Status status) {
+    int negativeCacheTime = getNegativeCacheTime();
+    if (negativeCacheTime > 0 && isNegativelyCacheable(status)) {
+      String description = (status.getDescription() == null) ? "" : status.getDescription();
+      String namespace = getLocalCacheNamespace();
+      LocalCache.setCapacity(namespace, getLocalCacheCapacity());
+      LocalCache.set(
+          namespace,
+          cacheKey,
+          new LocalCacheEntry(status),
+          negativeCacheTime,
+          cacheKey.length() + description.length());
+    }
+  }
+
+  private void refreshInBackground(String cacheKey) {
+    InFlightFetch future = new InFlightFetch(getLocalCacheNamespace());
+    if (inFlight.putIfAbsent(cacheKey, future) != null) {
+      // A fetch or refresh is already in progress for this key
+      return;
+    }
+    try {
+      refreshExecutor.execute(
+          () -> {
             try {
-              result = fromJson(json);
-            } catch (IOException e) {
-              throw new RuntimeException(e);
+              future.complete(fetchAndCache(cacheKey, future));
+            } catch (RuntimeException | Error e) {
+              future.completeExceptionally(e);
+              logger.warn("Failed to refresh cache entry in the background", e);
+            } finally {
+              inFlight.remove(cacheKey, future);
             }
-          } else {
-            // Compute the result
-            result = computeResult();
+          });
+    } catch (RejectedExecutionException e) {
+      inFlight.remove(cacheKey, future);
+      future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Returns true if the remote cache should be used for this fetch. The remote cache is skipped
+   * while it's unavailable, e.g. when it's failing, in which case concurrent fetches from this
+   * broker instance are still coalesced by the local single-flight map.
+   */
+  private boolean useRemoteCache() {
+    return allowRemoteCache && AbstractRemoteCache.getInstance().isAvailable();
+  }
+
+  private Object fetchAndCache(String cacheKey, InFlightFetch fetch) {
+    CacheCodec codec = getCodec();
+    Object result;
+    byte[] encoded;
+
+    // Look in remote cache.
+    if (useRemoteCache()) {
+      AbstractRemoteCache cache = AbstractRemoteCache.getInstance();
+      String remoteKey = getRemoteCacheKey(cacheKey, fetch);
+      // On a cache miss, also acquire a lease to avoid cache stampede
+      ValueOrLease lookup = cache.getOrAcquire(remoteKey, getLockWaitTime(), getLockLeaseTime());
+      Lease lease = lookup.getLease();
+      try {
+        encoded = decrypt(lookup.getValue());
+        result = loadValue(codec, encoded);
+        if (result == null && lookup.getValue() != null) {
+          // The cached value is too close to its expiry. Evict it and look it up again, so that
+          // its replacement gets computed under a lease.
+          cache.delete(remoteKey);
+          lookup = cache.getOrAcquire(remoteKey, getLockWaitTime(), getLockLeaseTime());
+          lease = lookup.getLease();
+          encoded = decrypt(lookup.getValue());
+          result = loadValue(codec, encoded);
+        }
+        if (result == null) {
+          // Cache miss...
+          if (lease == null) {
+            onLockTimeout();
+          }
+          // Compute the result
+          result = computeResult();
+          encoded = codec.encode(result);
+          int remoteCacheTime = getCacheTime(result, getRemoteCacheTime());
+          if (remoteCacheTime > 0 && !fetch.isInvalidated()) {
             // Encrypt and cache the value for possible future requests
-            String json = null;
-            ObjectMapper objectMapper = new ObjectMapper();
-            try {
-              json = objectMapper.writeValueAsString(result);
-            } catch (JsonProcessingException e) {
-              throw new RuntimeException(e);
+            byte[] encryptedValue = AbstractEncryptionBackend.getInstance().encrypt(encoded);
+            if (lease == null) {
+              cache.set(remoteKey, encryptedValue, remoteCacheTime);
+            } else {
+              cache.setAndRelease(remoteKey, encryptedValue, remoteCacheTime, lease);
             }
-            encryptedValue = AbstractEncryptionBackend.getInstance().encrypt(json.getBytes());
-            cache.set(cacheKey, encryptedValue, getRemoteCacheTime());
           }
-        } finally {
-          // Release the lock
-          lock.unlock();
+        }
+      } finally {
+        // Release the lock, unless it was already released along with the value
+        if (lease != null) {
+          lease.release();
         }
       }
     } else {
-      // Remote cache is disabled, so simply compute the result.
+      // Remote cache is disabled or unavailable, so simply compute the result.
       result = computeResult();
+      encoded = codec.encode(result);
+    }
+
+    cacheLocally(cacheKey, fetch, result, encoded);
+    return result;
+  }
+
+  private CompletableFuture<Object> fetchAndCacheAsync(String cacheKey, InFlightFetch fetch) {
+    CacheCodec codec = getCodec();
+
+    if (!useRemoteCache()) {
+      // Remote cache is disabled or unavailable, so simply compute the result.
+      return computeResultAsync()
+          .thenApply(result -> cacheLocally(cacheKey, fetch, result, codec.encode(result)));
+    }
+
+    // Look in remote cache. On a cache miss, also acquire a lease to avoid cache stampede.
+    AbstractRemoteCache cache = AbstractRemoteCache.getInstance();
+    return getRemoteCacheKeyAsync(cacheKey, fetch)
+        .thenCompose(
+            remoteKey ->
+                cache
+                    .getOrAcquireAsync(remoteKey, getLockWaitTime(), getLockLeaseTime())
+                    .thenCompose(
+                        lookup ->
+                            AsyncUtils.composeBlocking(
+                                () ->
+                                    loadOrComputeAsync(
+                                        cache, remoteKey, codec, fetch, lookup, true))))
+        .thenApply(value -> cacheLocally(cacheKey, fetch, value.result, value.encoded));
+  }
+
+  /**
+   * Returns the value found by the given remote cache lookup, or computes the value if it's
+   * missing. If the value is too close to its expiry and "evictUnusable" is true, then the value is
+   * evicted and looked up again, so that its replacement gets computed under a lease.
+   */
+  private CompletableFuture<EncodedResult> loadOrComputeAsync(
+      AbstractRemoteCache cache,
+      String remoteKey,
+      CacheCodec codec,
+      InFlightFetch fetch,
+      ValueOrLease lookup,
+      boolean evictUnusable) {
+    EncodedResult value;
+    try {
+      value = loadEncodedValue(codec, lookup.getValue());
+    } catch (RuntimeException | Error e) {
+      if (lookup.getLease() != null) {
+        lookup.getLease().release();
+      }
+      return CompletableFuture.failedFuture(e);
+    }
+    if (value != null) {
+      return CompletableFuture.completedFuture(value);
+    }
+    if (lookup.getValue() != null && evictUnusable) {
+      return cache
+          .deleteAsync(remoteKey)
+          .thenCompose(
+              v -> cache.getOrAcquireAsync(remoteKey, getLockWaitTime(), getLockLeaseTime()))
+          .thenCompose(
+              retry ->
+                  AsyncUtils.composeBlocking(
+                      () -> loadOrComputeAsync(cache, remoteKey, codec, fetch, retry, false)));
     }
+    // Cache miss...
+    return computeAndCacheRemotelyAsync(cache, remoteKey, codec, fetch, lookup.getLease());
+  }
 
-    // Add unencrypted value to local cache
-    LocalCache.set(cacheKey, result, getLocalCacheTime());
+  /**
+   * Computes the result and stores it in the remote cache. The given lease is null if the lock
+   * couldn't be acquired in time.
+   */
+  private CompletableFuture<EncodedResult> computeAndCacheRemotelyAsync(
+      AbstractRemoteCache cache,
+      String remoteKey,
+      CacheCodec codec,
+      InFlightFetch fetch,
+      Lease lease) {
+    CompletableFuture<EncodedResult> computation;
+    try {
+      if (lease == null) {
+        onLockTimeout();
+      }
+      computation =
+          computeResultAsync()
+              .thenCompose(
+                  result ->
+                      AsyncUtils.composeBlocking(
+                          () -> {
+                            EncodedResult computed =
+                                new EncodedResult(result, codec.encode(result));
+                            int remoteCacheTime = getCacheTime(result, getRemoteCacheTime());
+                            if (remoteCacheTime <= 0 || fetch.isInvalidated()) {
+                              return CompletableFuture.completedFuture(computed);
+                            }
+                            // Encrypt and cache the value for possible future requests
+                            byte[] encryptedValue =
+                                AbstractEncryptionBackend.getInstance().encrypt(computed.encoded);
+                            CompletableFuture<Void> write =
+                                (lease == null)
+                                    ? cache.setAsync(remoteKey, encryptedValue, remoteCacheTime)
+                                    : cache.setAndReleaseAsync(
+                                        remoteKey, encryptedValue, remoteCacheTime, lease);
+                            return write.thenApply(v -> computed);
+                          }));
+    } catch (RuntimeException | Error e) {
+      computation = CompletableFuture.failedFuture(e);
+    }
+    if (lease == null) {
+      return computation;
+    }
+    // Release the lock, unless it was already released along with the value
+    return computation.whenComplete((v, e) -> lease.release());
+  }
 
+  /**
+   * Applies the lock timeout policy when the remote cache lock couldn't be acquired in time, so
+   * that a stuck lock holder doesn't block all fetches for the same key.
+   */
+  private void onLockTimeout() {
+    if (getLockTimeoutPolicy() == LockTimeoutPolicy.FAIL) {
+      throw Status.UNAVAILABLE
+          .withDescription("Timed out while waiting for the cache lock")
+          .asRuntimeException();
+    }
+    logger.warn("Timed out while waiting for the cache lock. Computing the result without it.");
+  }
+
+  /**
+   * Adds the given unencrypted value to the local cache, unless the key was invalidated during the
+   * fetch, and returns the value.
+   */
+  private Object cacheLocally(String cacheKey, InFlightFetch fetch, Object result, byte[] encoded) {
+    int localCacheTime = getCacheTime(result, getLocalCacheTime());
+    if (localCacheTime > 0 && !fetch.isInvalidated()) {
+      long expiresAt = TimeUtils.currentTimeMillis() + localCacheTime * 1000L;
+      long refreshAt = Long.MAX_VALUE;
+      double refreshAheadFactor = getRefreshAheadFactor();
+      if (refreshAheadFactor > 0 && refreshAheadFactor < 1) {
+        refreshAt =
+            TimeUtils.currentTimeMillis() + (long) (localCacheTime * 1000L * refreshAheadFactor);
+      }
+      String namespace = getLocalCacheNamespace();
+      LocalCache.setCapacity(namespace, getLocalCacheCapacity());
+      LocalCache.set(
+          namespace,
+          cacheKey,
+          new LocalCacheEntry(
+              result,
+              getCodec(),
+              refreshAt,
+              expiresAt,
+              getUsableUntil(result),
+              localCacheTime,
+              allowSnapshot()),
+          localCacheTime,
+          cacheKey.length() + encoded.length);
+    }
     return result;
   }
 
+  /**
+   * Decrypts and deserializes the given value from the remote cache. Returns null if there's no
+   * value or if the value is too close to its expiry to be used.
+   */
+  private EncodedResult loadEncodedValue(CacheCodec codec, byte[] encryptedValue) {
+    byte[] encoded = decrypt(encryptedValue);
+    Object result = loadValue(codec, encoded);
+    return (result == null) ? null : new EncodedResult(result, encoded);
+  }
+
+  /** Decrypts the given value from the remote cache. Returns null if there's no value. */
+  private static byte[] decrypt(byte[] encryptedValue) {
+    if (encryptedValue == null) {
+      return null;
+    }
+    return AbstractEncryptionBackend.getInstance().decrypt(encryptedValue);
+  }
+
+  /**
+   * Deserializes the given value. Returns null if there's no value or if the value is too close to
+   * its expiry to be used.
+   */
+  private Object loadValue(CacheCodec codec, byte[] encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    Object result;
+    try {
+      result = codec.decode(encoded);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (getCacheTime(result, Integer.MAX_VALUE) <= 0) {
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the lifetime (in seconds) for which the given result may be cached, i.e. the time left
+   * until the result's expiry minus the expiry margin, capped by the given maximum cache time.
+   */
+  private int getCacheTime(Object result, int maximumCacheTime) {
+    Long expiresAt = getExpiresAt(result);
+    if (expiresAt == null) {
+      return maximumCacheTime;
+    }
+    long timeLeft = (expiresAt - TimeUtils.currentTimeMillis()) / 1000 - getExpiryMargin();
+    return (int) Math.max(0, Math.min(maximumCacheTime, timeLeft));
+  }
+
+  /**
+   * Returns the time (in milliseconds) until which the given result may be served from cache, i.e.
+   * its expiry time minus the expiry margin, or Long.MAX_VALUE if the result doesn't expire.
+   */
+  private long getUsableUntil(Object result) {
+    Long expiresAt = getExpiresAt(result);
+    return (expiresAt == null) ? Long.MAX_VALUE : expiresAt - getExpiryMargin() * 1000L;
+  }
+
+  /**
+   * Returns the time (in milliseconds) when the given result expires, or null if the result does
+   * not have an expiry time.
+   */
+  protected Long getExpiresAt(Object result) {
+    return null;
+  }
+
+  /** Time (in seconds) before a result's expiry from which the result isn't served from cache. */
+  protected int getExpiryMargin() {
+    return 0;
+  }
+
+  /**
+   * Lifetime (in seconds) of failures in the local cache. Failures are not cached if the lifetime
+   * is 0.
+   */
+  protected int getNegativeCacheTime() {
+    return 0;
+  }
+
+  /** Returns true if the given failure status may be cached. */
+  protected boolean isNegativelyCacheable(Status status) {
+    return status.getCode() == Status.Code.PERMISSION_DENIED;
+  }
+
+  /**
+   * Returns true if the results may be saved in local cache snapshots (see {@link CacheSnapshot}).
+   * Results that can be revoked before they expire should not be, as a snapshot taken before the
+   * revocation would bring them back in the broker instances that load it.
+   */
+  protected boolean allowSnapshot() {
+    return true;
+  }
+
+  /** Name of the local cache namespace, which has its own separate capacity. */
+  protected String getLocalCacheNamespace() {
+    return LocalCache.DEFAULT_NAMESPACE;
+  }
+
+  /** Capacity of the local cache namespace, i.e. the approximate maximum size in bytes. */
+  protected long getLocalCacheCapacity() {
+    return LocalCache.DEFAULT_CAPACITY;
+  }
+
+  /**
+   * Fraction of the local cache lifetime after which a cached entry gets refreshed in the
+   * background the next time it is accessed. Return 0 to disable refresh-ahead.
+   */
+  protected double getRefreshAheadFactor() {
+    return 0;
+  }
+
+  /** Maximum time (in milliseconds) to wait for the remote cache lock on a cache miss. */
+  protected long getLockWaitTime() {
+    return DEFAULT_LOCK_WAIT_TIME;
+  }
+
+  /**
+   * Maximum time (in milliseconds) to hold the remote cache lock for, after which the lock is
+   * automatically released. Should be longer than the time it usually takes to compute a result.
+   */
+  protected long getLockLeaseTime() {
+    return DEFAULT_LOCK_LEASE_TIME;
+  }
+
+  /** What to do when the remote cache lock can't be acquired within the lock wait time. */
+  protected LockTimeoutPolicy getLockTimeoutPolicy() {
+    return LockTimeoutPolicy.COMPUTE_WITHOUT_LOCK;
+  }
+
   protected abstract String getCacheKey();
 
   protected abstract int getLocalCacheTime();
@@ -100,5 +635,102 @@ public abstract class CacheFetcher {
 
   protected abstract Object computeResult();
 
-  protected abstract Object fromJson(String json) throws IOException;
+  /**
+   * Asynchronous variant of {@link #computeResult()}. By default, the result is computed in a
+   * separate thread. Override to use a non-blocking implementation.
+   */
+  protected CompletableFuture<Object> computeResultAsync() {
+    return AsyncUtils.supplyBlocking(this::computeResult);
+  }
+
+  /**
+   * Returns the codec used to serialize results. Codecs are expected to be thread-safe and to be
+   * reused across fetches.
+   */
+  protected abstract CacheCodec getCodec();
+
+  /** Fetch in progress, whose result is shared by all the callers that look up the same key. */
+  private static class InFlightFetch extends CompletableFuture<Object> {
+
+    private final String namespace; // Local cache namespace of the fetched key
+    // Set when the key or its namespace is invalidated during the fetch, so that the result
+    // doesn't get cached
+    private volatile boolean invalidated;
+    // Generation of the namespace used for the remote cache key, if the remote cache is used
+    private volatile String generation;
+
+    InFlightFetch(String namespace) {
+      this.namespace = namespace;
+    }
+
+    /**
+     * Returns true if the result may predate an invalidation of the key or of its namespace. A
+     * bump of the namespace's generation by another broker instance may only be noticed once this
+     * instance reads the new generation, if the remote cache doesn't support invalidation
+     * messages.
+     */
+    boolean isInvalidated() {
+      if (invalidated) {
+        return true;
+      }
+      String currentGeneration = CacheGenerations.getIfCached(namespace);
+      return generation != null
+          && currentGeneration != null
+          && !currentGeneration.equals(generation);
+    }
+  }
+
+  private static class EncodedResult {
+
+    private final Object result;
+    private final byte[] encoded;
+
+    EncodedResult(Object result, byte[] encoded) {
+      this.result = result;
+      this.encoded = encoded;
+    }
+  }
+
+  static class LocalCacheEntry {
+
+    final Object value;
+    final CacheCodec codec; // Codec used to serialize the value
+    final long refreshAt; // Time after which the entry may be refreshed (in milliseconds)
+    final long expiresAt; // Time when the entry expires from the local cache (in milliseconds)
+    // Time until which the value itself may be served (in milliseconds), regardless of the local
+    // cache's lifetime. Long.MAX_VALUE if the value doesn't expire.
+    final long usableUntil;
+    final int localCacheTime; // Lifetime of the entry in the local cache (in seconds)
+    final boolean allowSnapshot; // Whether the entry may be saved in local cache snapshots
+    final Status failure; // Cached failure, if any
+
+    LocalCacheEntry(
+        Object value,
+        CacheCodec codec,
+        long refreshAt,
+        long expiresAt,
+        long usableUntil,
+        int localCacheTime,
+        boolean allowSnapshot) {
+      this.value = value;
+      this.codec = codec;
+      this.refreshAt = refreshAt;
+      this.expiresAt = expiresAt;
+      this.usableUntil = usableUntil;
+      this.localCacheTime = localCacheTime;
+      this.allowSnapshot = allowSnapshot;
+      this.failure = null;
+    }
+
+    LocalCacheEntry(Status failure) {
+      this.value = null;
+      this.codec = null;
+      this.refreshAt = Long.MAX_VALUE;
+      this.expiresAt = Long.MAX_VALUE;
+      this.usableUntil = Long.MAX_VALUE;
+      this.localCacheTime = 0;
+      this.allowSnapshot = false;
+      this.failure = failure;
+    }
+  }
 }
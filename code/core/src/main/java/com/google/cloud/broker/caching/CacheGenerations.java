@@ -0,0 +1,144 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching;
+
+import com.google.cloud.broker.caching.local.LocalCache;
+import com.google.cloud.broker.caching.remote.AbstractRemoteCache;
+import com.google.cloud.broker.utils.TimeUtils;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Generation counters of the cache namespaces. The current generation of a namespace is part of
+ * the remote cache keys of all the entries in that namespace, so bumping the generation logically
+ * invalidates the whole namespace at once, for all broker instances, without scanning or deleting
+ * any keys. The entries of previous generations simply expire at the end of their lifetime.
+ *
+ * <p>Each broker instance keeps the generations in its local cache for a few seconds, and evicts
+ * them as soon as a bump is published through the remote cache's invalidation messages.
+ */
+public class CacheGenerations {
+
+  /** Local cache namespace that holds the generations. */
+  public static final String LOCAL_CACHE_NAMESPACE = "cache-generation";
+
+  static final int LOCAL_CACHE_TIME = 10; // In seconds
+
+  // Lifetime of the generations in the remote cache, in seconds. Far longer than the remote cache
+  // time of any entry, and no longer than the 30 days that Memcached accepts as a relative expiry.
+  static final int REMOTE_CACHE_TIME = 30 * 24 * 3600;
+
+  private static final String KEY_PREFIX = "cache-generation-";
+
+  /**
+   * Returns the current generation of the given namespace. Returns an empty string if the
+   * generation was never bumped.
+   */
+  public static String get(String namespace) {
+    String generation = getIfCached(namespace);
+    if (generation != null) {
+      return generation;
+    }
+    AbstractRemoteCache cache = AbstractRemoteCache.getInstance();
+    return cacheLocally(cache, namespace, cache.get(KEY_PREFIX + namespace));
+  }
+
+  /**
+   * Asynchronous variant of {@link #get(String)}, which doesn't block the calling thread while the
+   * generation is pulled from the remote cache.
+   */
+  public static CompletableFuture<String> getAsync(String namespace) {
+    String generation = getIfCached(namespace);
+    if (generation != null) {
+      return CompletableFuture.completedFuture(generation);
+    }
+    AbstractRemoteCache cache = AbstractRemoteCache.getInstance();
+    return cache
+        .getAsync(KEY_PREFIX + namespace)
+        .thenApply(value -> cacheLocally(cache, namespace, value));
+  }
+
+  /**
+   * Returns the generation of the given namespace if it's in the local cache, or null otherwise.
+   */
+  static String getIfCached(String namespace) {
+    return (String) LocalCache.get(LOCAL_CACHE_NAMESPACE, namespace);
+  }
+
+  /**
+   * Returns the generation stored in the given remote cache value, and keeps it in the local cache.
+   */
+  private static String cacheLocally(AbstractRemoteCache cache, String namespace, byte[] value) {
+    String generation = (value == null) ? "" : new String(value, StandardCharsets.UTF_8);
+    if (cache.isAvailable()) {
+      LocalCache.set(
+          LOCAL_CACHE_NAMESPACE,
+          namespace,
+          generation,
+          LOCAL_CACHE_TIME,
+          namespace.length() + generation.length());
+    }
+    return generation;
+  }
+
+  /**
+   * Returns the remote cache key of the given entry, which includes the current generation of the
+   * given namespace.
+   */
+  public static String getRemoteKey(String namespace, String cacheKey) {
+    return toRemoteKey(cacheKey, get(namespace));
+  }
+
+  /** Returns the remote cache key of the given entry in the given generation. */
+  static String toRemoteKey(String cacheKey, String generation) {
+    return generation.isEmpty() ? cacheKey : cacheKey + "#" + generation;
+  }
+
+  /**
+   * Moves the given namespace to a new generation, which invalidates all of its entries in the
+   * remote cache, and notifies all broker instances so that they also clear the namespace from
+   * their local cache. Returns the new generation.
+   */
+  public static String bump(String namespace) {
+    AbstractRemoteCache cache = AbstractRemoteCache.getInstance();
+    // Generations are increasing timestamps, so they never repeat a previous generation
+    long previous = 0;
+    byte[] value = cache.get(KEY_PREFIX + namespace);
+    if (value != null) {
+      previous = Long.parseLong(new String(value, StandardCharsets.UTF_8));
+    }
+    String generation = Long.toString(Math.max(TimeUtils.currentTimeMillis(), previous + 1));
+    // The generation must outlive all the entries of previous generations. It's stored with an
+    // explicit expiry, as some backends don't keep values that are set without one.
+    cache.set(
+        KEY_PREFIX + namespace, generation.getBytes(StandardCharsets.UTF_8), REMOTE_CACHE_TIME);
+    onInvalidation(LOCAL_CACHE_NAMESPACE, namespace);
+    cache.publishInvalidation(LOCAL_CACHE_NAMESPACE, namespace);
+    return generation;
+  }
+
+  /**
+   * Handles an invalidation message. The key's fetch in progress, if any, won't cache its result.
+   * If the message is about a generation, then none of the fetches in progress in the whole
+   * namespace cache their result, and the namespace is also cleared from the local cache.
+   */
+  static void onInvalidation(String namespace, String key) {
+    if (namespace.equals(LOCAL_CACHE_NAMESPACE)) {
+      CacheFetcher.invalidateInFlightNamespace(key);
+      LocalCache.delete(namespace, key);
+      LocalCache.clear(key);
+    } else {
+      CacheFetcher.invalidateInFlight(key);
+      LocalCache.delete(namespace, key);
+    }
+  }
+}
@@ -0,0 +1,305 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching;
+
+import com.google.cloud.broker.caching.codecs.CacheCodec;
+import com.google.cloud.broker.caching.local.LocalCache;
+import com.google.cloud.broker.encryption.backends.AbstractEncryptionBackend;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.CloudStorageUtils;
+import com.google.cloud.broker.utils.InstanceUtils;
+import com.google.cloud.broker.utils.TimeUtils;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically saves the most frequently used entries of the local cache to an encrypted snapshot,
+ * so that newly started broker instances can load those entries instead of starting with an empty
+ * local cache. Only entries whose codec has a public no-argument constructor, and whose fetcher
+ * allows snapshots, are included.
+ *
+ * <p>Each namespace is saved along with its generation (see {@link CacheGenerations}), and is
+ * skipped when restoring if its generation has changed since, so that a bump invalidates the
+ * snapshot as well.
+ */
+public class CacheSnapshot {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final byte VERSION = 3;
+
+  private static ScheduledExecutorService scheduler;
+
+  /**
+   * Loads the existing snapshot, if any, into the local cache, then starts saving snapshots
+   * periodically. Does nothing if no snapshot URI is configured.
+   */
+  public static synchronized void start() {
+    String uri = getUri();
+    if (uri.isEmpty() || scheduler != null) {
+      return;
+    }
+    try {
+      byte[] snapshot = read(uri);
+      if (snapshot != null) {
+        int numEntries = restore(snapshot);
+        logger.info("Loaded " + numEntries + " entries from the local cache snapshot");
+      }
+    } catch (Exception e) {
+      // The snapshot is only an optimization, so start with an empty cache
+      logger.warn("Failed to load the local cache snapshot", e);
+    }
+    int interval = AppSettings.getInstance().getInt(AppSettings.LOCAL_CACHE_SNAPSHOT_INTERVAL);
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "cache-snapshot");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleAtFixedRate(CacheSnapshot::save, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /** Stops saving snapshots periodically, after saving one last snapshot. */
+  public static synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+      save();
+    }
+  }
+
+  private static void save() {
+    try {
+      int maxEntries =
+          AppSettings.getInstance().getInt(AppSettings.LOCAL_CACHE_SNAPSHOT_MAX_ENTRIES);
+      write(getUri(), create(maxEntries));
+    } catch (Exception e) {
+      logger.warn("Failed to save the local cache snapshot", e);
+    }
+  }
+
+  private static String getUri() {
+    return AppSettings.getInstance().getString(AppSettings.LOCAL_CACHE_SNAPSHOT_URI);
+  }
+
+  /**
+   * Returns an encrypted snapshot of up to the given number of the most frequently used entries in
+   * each namespace of the local cache.
+   */
+  static byte[] create(int maxEntries) throws IOException {
+    long now = TimeUtils.currentTimeMillis();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeByte(VERSION);
+      for (String namespace : LocalCache.getNamespaces()) {
+        List<String> keys = new ArrayList<>();
+        List<CacheFetcher.LocalCacheEntry> entries = new ArrayList<>();
+        LocalCache.getHottest(namespace, maxEntries)
+            .forEach(
+                (key, value) -> {
+                  if (value instanceof CacheFetcher.LocalCacheEntry) {
+                    CacheFetcher.LocalCacheEntry entry = (CacheFetcher.LocalCacheEntry) value;
+                    if (isRestorable(entry, now)) {
+                      keys.add(key);
+                      entries.add(entry);
+                    }
+                  }
+                });
+        if (entries.isEmpty()) {
+          continue;
+        }
+        String generation;
+        try {
+          generation = CacheGenerations.get(namespace);
+        } catch (RuntimeException e) {
+          // The entries can't be checked against the generation when restoring, so leave them out
+          logger.warn("Failed to get the generation of namespace `" + namespace + "`", e);
+          continue;
+        }
+        output.writeUTF(namespace);
+        output.writeLong(LocalCache.getCapacity(namespace));
+        output.writeUTF(generation);
+        output.writeInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+          CacheFetcher.LocalCacheEntry entry = entries.get(i);
+          byte[] encoded = entry.codec.encode(entry.value);
+          output.writeUTF(keys.get(i));
+          output.writeUTF(entry.codec.getClass().getName());
+          output.writeLong(entry.refreshAt);
+          output.writeLong(entry.expiresAt);
+          output.writeLong(entry.usableUntil);
+          output.writeInt(entry.localCacheTime);
+          output.writeInt(encoded.length);
+          output.write(encoded);
+        }
+      }
+    }
+    return AbstractEncryptionBackend.getInstance().encrypt(bytes.toByteArray());
+  }
+
+  private static boolean isRestorable(CacheFetcher.LocalCacheEntry entry, long now) {
+    if (entry.failure != null || !entry.allowSnapshot) {
+      return false;
+    }
+    if (getRestoredExpiry(entry.expiresAt, entry.usableUntil, entry.localCacheTime, now) <= now) {
+      return false;
+    }
+    try {
+      entry.codec.getClass().getConstructor();
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the time when an entry restored at the given time expires from the local cache. Values
+   * that have their own expiry are restored for the local cache's full lifetime, as long as they
+   * stay usable, since snapshots are taken much less often than the local cache lifetime. Other
+   * values keep the local cache expiry that they had when the snapshot was taken.
+   */
+  static long getRestoredExpiry(
+      long expiresAt, long usableUntil, int localCacheTime, long now) {
+    if (usableUntil == Long.MAX_VALUE) {
+      return expiresAt;
+    }
+    return Math.min(now + localCacheTime * 1000L, usableUntil);
+  }
+
+  /**
+   * Adds the entries from the given encrypted snapshot to the local cache, skipping the entries
+   * that are no longer usable and the namespaces whose generation has changed. Returns the number
+   * of added entries.
+   */
+  static int restore(byte[] snapshot) throws IOException {
+    byte[] decrypted = AbstractEncryptionBackend.getInstance().decrypt(snapshot);
+    long now = TimeUtils.currentTimeMillis();
+    Map<String, CacheCodec> codecs = new HashMap<>();
+    int numEntries = 0;
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(decrypted))) {
+      byte version = input.readByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot format: " + version);
+      }
+      while (input.available() > 0) {
+        String namespace = input.readUTF();
+        LocalCache.setCapacity(namespace, input.readLong());
+        boolean isCurrent = isCurrentGeneration(namespace, input.readUTF());
+        int size = input.readInt();
+        for (int i = 0; i < size; i++) {
+          String key = input.readUTF();
+          String codecClassName = input.readUTF();
+          long refreshAt = input.readLong();
+          long expiresAt = input.readLong();
+          long usableUntil = input.readLong();
+          int localCacheTime = input.readInt();
+          byte[] encoded = new byte[input.readInt()];
+          input.readFully(encoded);
+          if (!isCurrent) {
+            continue;
+          }
+          expiresAt = getRestoredExpiry(expiresAt, usableUntil, localCacheTime, now);
+          int expireIn = (int) ((expiresAt - now) / 1000);
+          if (expireIn <= 0) {
+            continue;
+          }
+          CacheCodec codec =
+              codecs.computeIfAbsent(
+                  codecClassName, name -> (CacheCodec) InstanceUtils.invokeConstructor(name));
+          CacheFetcher.LocalCacheEntry entry =
+              new CacheFetcher.LocalCacheEntry(
+                  codec.decode(encoded),
+                  codec,
+                  refreshAt,
+                  expiresAt,
+                  usableUntil,
+                  localCacheTime,
+                  true);
+          LocalCache.set(namespace, key, entry, expireIn, key.length() + encoded.length);
+          numEntries++;
+        }
+      }
+    }
+    return numEntries;
+  }
+
+  private static boolean isCurrentGeneration(String namespace, String generation) {
+    try {
+      if (CacheGenerations.get(namespace).equals(generation)) {
+        return true;
+      }
+      logger.info(
+          "Skipping namespace `" + namespace + "` of the local cache snapshot, as its generation"
+              + " has changed");
+    } catch (RuntimeException e) {
+      // Skip the namespace, as it may have been invalidated since the snapshot was taken
+      logger.warn("Failed to get the generation of namespace `" + namespace + "`", e);
+    }
+    return false;
+  }
+
+  private static byte[] read(String uri) throws IOException {
+    if (uri.startsWith("gs://")) {
+      Blob blob = CloudStorageUtils.getCloudStorageClient().get(getBlobId(uri));
+      return (blob == null) ? null : blob.getContent();
+    }
+    Path path = Paths.get(uri);
+    return Files.exists(path) ? Files.readAllBytes(path) : null;
+  }
+
+  private static void write(String uri, byte[] snapshot) throws IOException {
+    if (uri.startsWith("gs://")) {
+      BlobInfo blobInfo = BlobInfo.newBuilder(getBlobId(uri)).build();
+      CloudStorageUtils.getCloudStorageClient().create(blobInfo, snapshot);
+    } else {
+      // Write to a temporary file first so that readers never see a partial snapshot
+      Path path = Paths.get(uri);
+      Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+      Files.write(temporaryPath, snapshot);
+      Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static BlobId getBlobId(String uri) {
+    URI parsed;
+    try {
+      parsed = new URI(uri);
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+    return BlobId.of(parsed.getAuthority(), parsed.getPath().substring(1));
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.codecs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base class for compact binary codecs. Encoded values start with a format version byte. Values
+ * that were stored as JSON by previous versions of the broker are still decoded, so that the
+ * format can be changed without flushing the remote cache.
+ */
+public abstract class BinaryCodec implements CacheCodec {
+
+  private static final byte VERSION = 1;
+
+  private final JsonCodec legacyCodec;
+
+  protected BinaryCodec(Class<?> type) {
+    this.legacyCodec = new JsonCodec(type);
+  }
+
+  @Override
+  public byte[] encode(Object value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeByte(VERSION);
+      write(value, output);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public Object decode(byte[] bytes) throws IOException {
+    if (bytes.length > 0 && bytes[0] == '{') {
+      // Value was stored as JSON
+      return legacyCodec.decode(bytes);
+    }
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      byte version = input.readByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported cache value format: " + version);
+      }
+      return read(input);
+    }
+  }
+
+  protected abstract void write(Object value, DataOutputStream output) throws IOException;
+
+  protected abstract Object read(DataInputStream input) throws IOException;
+
+  protected static void writeString(DataOutputStream output, String value) throws IOException {
+    if (value == null) {
+      output.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+  }
+
+  protected static String readString(DataInputStream input) throws IOException {
+    int length = input.readInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > input.available()) {
+      throw new IOException("Truncated cache value");
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  protected static void writeNullableLong(DataOutputStream output, Long value) throws IOException {
+    output.writeBoolean(value != null);
+    if (value != null) {
+      output.writeLong(value);
+    }
+  }
+
+  protected static Long readNullableLong(DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readLong() : null;
+  }
+}
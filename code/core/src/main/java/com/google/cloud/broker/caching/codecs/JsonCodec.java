@@ -0,0 +1,44 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.codecs;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.IOException;
+
+/** Codec that stores values as JSON documents. */
+public class JsonCodec implements CacheCodec {
+
+  // ObjectMapper is thread-safe once configured, so a single instance is shared by all codecs
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final ObjectReader reader;
+
+  public JsonCodec(Class<?> type) {
+    this.reader = objectMapper.readerFor(type);
+  }
+
+  @Override
+  public byte[] encode(Object value) {
+    try {
+      return objectMapper.writeValueAsBytes(value);
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public Object decode(byte[] bytes) throws IOException {
+    return reader.readValue(bytes);
+  }
+}
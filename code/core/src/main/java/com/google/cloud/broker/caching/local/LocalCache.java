@@ -11,28 +11,185 @@
 
 package com.google.cloud.broker.caching.local;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import net.jodah.expiringmap.ExpirationPolicy;
-import net.jodah.expiringmap.ExpiringMap;
 
+/**
+ * In-memory cache, split into namespaces that each have their own capacity. Each namespace is
+ * bounded by the total weight (i.e. approximate size in bytes) of its entries. When a namespace
+ * exceeds its capacity, entries are evicted based on how frequently and recently they were
+ * accessed (W-TinyLFU policy), so that hot entries stay resident while one-off entries are
+ * evicted first.
+ */
 public class LocalCache {
 
-  private static ExpiringMap<String, Object> cache =
-      ExpiringMap.builder().variableExpiration().build();
+  public static final String DEFAULT_NAMESPACE = "default";
+  public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024; // In bytes
+
+  private static final ConcurrentMap<String, Cache<String, Entry>> namespaces =
+      new ConcurrentHashMap<>();
+
+  private static class Entry {
+
+    private final Object value;
+    private final long expireIn; // In nanoseconds
+    private final int weight;
+
+    Entry(Object value, long expireIn, int weight) {
+      this.value = value;
+      this.expireIn = expireIn;
+      this.weight = weight;
+    }
+  }
+
+  private static class EntryExpiry implements Expiry<String, Entry> {
+
+    @Override
+    public long expireAfterCreate(String key, Entry entry, long currentTime) {
+      return entry.expireIn;
+    }
+
+    @Override
+    public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+      return entry.expireIn;
+    }
+
+    @Override
+    public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  private static Cache<String, Entry> createNamespace(long capacity) {
+    return Caffeine.newBuilder()
+        .maximumWeight(capacity)
+        .weigher((String key, Entry entry) -> entry.weight)
+        .expireAfter(new EntryExpiry())
+        // Run evictions in the calling thread
+        .executor(Runnable::run)
+        .build();
+  }
+
+  private static Cache<String, Entry> getNamespace(String namespace) {
+    return namespaces.computeIfAbsent(namespace, k -> createNamespace(DEFAULT_CAPACITY));
+  }
+
+  /** Sets the capacity (i.e. maximum total weight) for the given namespace. */
+  public static void setCapacity(String namespace, long capacity) {
+    Cache<String, Entry> cache =
+        namespaces.computeIfAbsent(namespace, k -> createNamespace(capacity));
+    cache
+        .policy()
+        .eviction()
+        .ifPresent(
+            eviction -> {
+              if (eviction.getMaximum() != capacity) {
+                eviction.setMaximum(capacity);
+              }
+            });
+  }
+
+  /** Returns the capacity (i.e. maximum total weight) of the given namespace. */
+  public static long getCapacity(String namespace) {
+    Cache<String, Entry> cache = namespaces.get(namespace);
+    if (cache == null) {
+      return DEFAULT_CAPACITY;
+    }
+    return cache
+        .policy()
+        .eviction()
+        .map(eviction -> eviction.getMaximum())
+        .orElse(DEFAULT_CAPACITY);
+  }
+
+  /** Returns the names of all existing namespaces. */
+  public static Set<String> getNamespaces() {
+    return Set.copyOf(namespaces.keySet());
+  }
+
+  /**
+   * Returns up to the given number of values from the given namespace, starting with the values
+   * that are the most likely to be retained (i.e. the most frequently and recently used).
+   */
+  public static Map<String, Object> getHottest(String namespace, int limit) {
+    Map<String, Object> hottest = new LinkedHashMap<>();
+    Cache<String, Entry> cache = namespaces.get(namespace);
+    if (cache != null) {
+      cache
+          .policy()
+          .eviction()
+          .ifPresent(
+              eviction ->
+                  eviction.hottest(limit).forEach((key, entry) -> hottest.put(key, entry.value)));
+    }
+    return hottest;
+  }
+
+  public static Object get(String namespace, String key) {
+    Cache<String, Entry> cache = namespaces.get(namespace);
+    if (cache == null) {
+      return null;
+    }
+    Entry entry = cache.getIfPresent(key);
+    return (entry == null) ? null : entry.value;
+  }
+
+  /**
+   * Adds the given value to the cache.
+   *
+   * @param expireIn Lifetime of the entry, in seconds.
+   * @param weight Approximate size of the entry, in bytes.
+   */
+  public static void set(String namespace, String key, Object value, int expireIn, int weight) {
+    Entry entry = new Entry(value, TimeUnit.SECONDS.toNanos(expireIn), weight);
+    getNamespace(namespace).put(key, entry);
+  }
+
+  public static void delete(String namespace, String key) {
+    Cache<String, Entry> cache = namespaces.get(namespace);
+    if (cache != null) {
+      cache.invalidate(key);
+    }
+  }
+
+  /** Removes all the entries of the given namespace. */
+  public static void clear(String namespace) {
+    Cache<String, Entry> cache = namespaces.get(namespace);
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  /** Returns the approximate number of entries in the given namespace. */
+  static long size(String namespace) {
+    Cache<String, Entry> cache = namespaces.get(namespace);
+    if (cache == null) {
+      return 0;
+    }
+    cache.cleanUp();
+    return cache.estimatedSize();
+  }
 
   public static Object get(String key) {
-    return cache.get(key);
+    return get(DEFAULT_NAMESPACE, key);
   }
 
   public static void set(String key, Object value) {
-    cache.put(key, value);
+    getNamespace(DEFAULT_NAMESPACE).put(key, new Entry(value, Long.MAX_VALUE, key.length()));
   }
 
   public static void set(String key, Object value, int expireIn) {
-    cache.put(key, value, ExpirationPolicy.CREATED, expireIn, TimeUnit.SECONDS);
+    set(DEFAULT_NAMESPACE, key, value, expireIn, key.length());
   }
 
   public static void delete(String key) {
-    cache.remove(key);
+    delete(DEFAULT_NAMESPACE, key);
   }
 }
@@ -13,13 +13,27 @@ package com.google.cloud.broker.caching.remote;
 
 import com.google.cloud.broker.checks.CheckResult;
 import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.AsyncUtils;
 import com.google.cloud.broker.utils.InstanceUtils;
+import com.google.cloud.broker.utils.TimeUtils;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
 
 public abstract class AbstractRemoteCache {
 
   private static AbstractRemoteCache instance;
 
+  // Last fencing token handed out by the default implementation of tryAcquire()
+  private static final AtomicLong lastFencingToken = new AtomicLong();
+
   public abstract byte[] get(String key);
 
   public abstract void set(String key, byte[] value);
@@ -28,10 +42,207 @@ public abstract class AbstractRemoteCache {
 
   public abstract void delete(String key);
 
+  // Multi-key variants of the above methods. By default, those simply handle one key at a time.
+  // Backends that support batch operations should override them so that all keys are handled in
+  // a single round trip.
+
+  /** Returns the values of the given keys. Keys that have no value are absent from the result. */
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    Map<String, byte[]> values = new HashMap<>();
+    for (String key : keys) {
+      byte[] value = get(key);
+      if (value != null) {
+        values.put(key, value);
+      }
+    }
+    return values;
+  }
+
+  public void setAll(Map<String, byte[]> values, int expireIn) { // "expireIn" in seconds
+    values.forEach((key, value) -> set(key, value, expireIn));
+  }
+
+  public void deleteAll(Collection<String> keys) {
+    keys.forEach(this::delete);
+  }
+
   public abstract Lock acquireLock(String lockName);
 
+  /**
+   * Attempts to acquire the given lock, waiting for at most the given wait time. Once acquired,
+   * the lock is held for at most the given lease time, after which it is automatically released.
+   * Returns null if the lock couldn't be acquired within the wait time.
+   *
+   * <p>By default, the lock is acquired with {@link #acquireLock(String)} by a separate thread,
+   * which holds it until the lease is released or expires. The fencing tokens are then based on
+   * each broker instance's clock, so they only increase across instances if the clocks are in
+   * sync. Backends should override this method to keep the fencing tokens in the backend.
+   *
+   * @param waitTime Maximum time to wait for the lock, in milliseconds.
+   * @param leaseTime Maximum time to hold the lock for, in milliseconds.
+   */
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    CountDownLatch acquired = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    // Locks may only be unlocked by the thread that locked them, so the same thread does both
+    Thread holder =
+        new Thread(
+            () -> {
+              Lock lock;
+              try {
+                lock = acquireLock(lockName);
+              } catch (RuntimeException e) {
+                failure.set(e);
+                acquired.countDown();
+                return;
+              }
+              acquired.countDown();
+              try {
+                released.await(leaseTime, TimeUnit.MILLISECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              } finally {
+                lock.unlock();
+              }
+            },
+            "remote-cache-lease");
+    holder.setDaemon(true);
+    holder.start();
+    try {
+      if (!acquired.await(waitTime, TimeUnit.MILLISECONDS)) {
+        // Give up, and let the thread release the lock as soon as it gets it
+        released.countDown();
+        return null;
+      }
+    } catch (InterruptedException e) {
+      released.countDown();
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    long fencingToken =
+        lastFencingToken.updateAndGet(
+            previous -> Math.max(TimeUtils.currentTimeMillis(), previous + 1));
+    return new Lease(fencingToken, leaseTime) {
+      @Override
+      protected void releaseLock() {
+        released.countDown();
+      }
+    };
+  }
+
+  /**
+   * Returns the value of the given key if there is one. Otherwise, attempts to acquire a lease on
+   * the key (see {@link #tryAcquire(String, long, long)}) so that the caller can compute the
+   * missing value and store it with {@link #setAndRelease(String, byte[], int, Lease)}. If the
+   * value is set by someone else while waiting for the lease, then that value is returned instead.
+   *
+   * <p>By default, this takes several round trips. Backends that support server-side scripting
+   * should override it to check the value and acquire the lease in a single round trip.
+   */
+  public ValueOrLease getOrAcquire(String key, long waitTime, long leaseTime) {
+    byte[] value = get(key);
+    if (value != null) {
+      return ValueOrLease.ofValue(value);
+    }
+    Lease lease = tryAcquire(key + "_lock", waitTime, leaseTime);
+    // Check again if there's still no value. If there is one this time, then it must have been
+    // set by the previous lock holder.
+    value = get(key);
+    if (value != null) {
+      if (lease != null) {
+        lease.release();
+      }
+      return ValueOrLease.ofValue(value);
+    }
+    return (lease == null) ? ValueOrLease.timedOut() : ValueOrLease.ofLease(lease);
+  }
+
+  /**
+   * Sets the given value and releases the given lease. The value isn't set if the lease has
+   * expired, as someone else may have acquired the lock and set a newer value in the meantime.
+   */
+  public void setAndRelease(String key, byte[] value, int expireIn, Lease lease) {
+    try {
+      if (!lease.isExpired()) {
+        set(key, value, expireIn);
+      }
+    } finally {
+      lease.release();
+    }
+  }
+
   public abstract CheckResult checkConnection();
 
+  /**
+   * Returns false if the remote cache shouldn't be used for now, in which case callers should
+   * compute results directly instead of looking them up in the remote cache.
+   */
+  public boolean isAvailable() {
+    return true;
+  }
+
+  /**
+   * Notifies all broker instances that the given key must be evicted from the given namespace of
+   * their local cache. Backends that don't support messaging between instances ignore this call.
+   */
+  public void publishInvalidation(String namespace, String key) {}
+
+  /**
+   * Registers a listener that is called with the namespace and key of every invalidation published
+   * by any broker instance. Backends that don't support messaging between instances ignore this
+   * call.
+   */
+  public void subscribeInvalidations(BiConsumer<String, String> listener) {}
+
+  // Asynchronous variants of the above methods. By default, those simply run the blocking
+  // methods in a separate thread. Backends that have an asynchronous client should override them.
+
+  public CompletableFuture<byte[]> getAsync(String key) {
+    return AsyncUtils.supplyBlocking(() -> get(key));
+  }
+
+  public CompletableFuture<Void> setAsync(String key, byte[] value, int expireIn) {
+    return AsyncUtils.runBlocking(() -> set(key, value, expireIn));
+  }
+
+  public CompletableFuture<Void> deleteAsync(String key) {
+    return AsyncUtils.runBlocking(() -> delete(key));
+  }
+
+  public CompletableFuture<Map<String, byte[]>> getAllAsync(Collection<String> keys) {
+    return AsyncUtils.supplyBlocking(() -> getAll(keys));
+  }
+
+  public CompletableFuture<Void> setAllAsync(Map<String, byte[]> values, int expireIn) {
+    return AsyncUtils.runBlocking(() -> setAll(values, expireIn));
+  }
+
+  public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+    return AsyncUtils.runBlocking(() -> deleteAll(keys));
+  }
+
+  /**
+   * Asynchronous variant of {@link #tryAcquire(String, long, long)}. The future completes with null
+   * if the lock couldn't be acquired within the wait time.
+   */
+  public CompletableFuture<Lease> tryAcquireAsync(String lockName, long waitTime, long leaseTime) {
+    return AsyncUtils.supplyBlocking(() -> tryAcquire(lockName, waitTime, leaseTime));
+  }
+
+  public CompletableFuture<ValueOrLease> getOrAcquireAsync(
+      String key, long waitTime, long leaseTime) {
+    return AsyncUtils.supplyBlocking(() -> getOrAcquire(key, waitTime, leaseTime));
+  }
+
+  public CompletableFuture<Void> setAndReleaseAsync(
+      String key, byte[] value, int expireIn, Lease lease) {
+    return AsyncUtils.runBlocking(() -> setAndRelease(key, value, expireIn, lease));
+  }
+
   public static AbstractRemoteCache getInstance() {
     String className = AppSettings.getInstance().getString(AppSettings.REMOTE_CACHE);
     if (instance == null || !className.equals(instance.getClass().getCanonicalName())) {
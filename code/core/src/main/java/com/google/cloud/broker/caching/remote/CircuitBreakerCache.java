@@ -0,0 +1,358 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import com.google.cloud.broker.checks.CheckResult;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.InstanceUtils;
+import com.typesafe.config.Config;
+import java.lang.invoke.MethodHandles;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorator that stops using the wrapped remote cache backend while it's failing or slow, so that
+ * cache lookups don't hold up requests. The outcomes of the most recent calls are tracked, and once
+ * the proportion of failed or slow calls reaches a threshold, the circuit opens: calls are no
+ * longer sent to the backend, and {@link #isAvailable()} returns false so that cache fetchers
+ * compute results directly. The backend's connection is then checked periodically, and the circuit
+ * closes again once the backend is healthy.
+ *
+ * <p>While the circuit is open, the methods behave as if the remote cache were empty: reads find
+ * nothing, writes are dropped, and leases are granted locally right away.
+ */
+public class CircuitBreakerCache extends AbstractRemoteCache {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private final AbstractRemoteCache backend;
+  private final long slowCallThreshold; // In milliseconds
+  private final long probeInterval; // In milliseconds
+  private final int minimumCalls;
+  private final double failureRateThreshold;
+
+  // Outcomes of the most recent calls, in a ring buffer. True for calls that failed or were slow.
+  private final boolean[] outcomes;
+  private int nextOutcome; // Guarded by this object's monitor
+  private int numCalls; // Guarded by this object's monitor
+  private int numBadCalls; // Guarded by this object's monitor
+  private volatile boolean open;
+
+  private final ScheduledExecutorService prober =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "remote-cache-probe");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  public CircuitBreakerCache() {
+    this(
+        (AbstractRemoteCache)
+            InstanceUtils.invokeConstructor(
+                AppSettings.getInstance()
+                    .getString(AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_BACKEND)));
+  }
+
+  /** Creates a circuit breaker for the given backend, with the thresholds set in the settings. */
+  CircuitBreakerCache(AbstractRemoteCache backend) {
+    Config settings = AppSettings.getInstance();
+    this.backend = backend;
+    this.outcomes =
+        new boolean[settings.getInt(AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_WINDOW_SIZE)];
+    this.minimumCalls = settings.getInt(AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_MINIMUM_CALLS);
+    this.failureRateThreshold =
+        settings.getDouble(AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD);
+    this.slowCallThreshold =
+        settings.getLong(AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD);
+    this.probeInterval = settings.getLong(AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_PROBE_INTERVAL);
+  }
+
+  AbstractRemoteCache getBackend() {
+    return backend;
+  }
+
+  /** Returns false while the circuit is open, i.e. while the backend isn't used. */
+  @Override
+  public boolean isAvailable() {
+    return !open;
+  }
+
+  /**
+   * Records the outcome of a call that started at the given time (from {@link System#nanoTime()}),
+   * and opens the circuit if too many of the recent calls failed or were slow.
+   *
+   * @param timed Whether the call counts as failed if it's slow. Calls that may legitimately wait
+   *     (e.g. for a lock held by someone else) are only counted as failed if they throw.
+   */
+  private void record(long start, boolean failed, boolean timed) {
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    boolean bad = failed || (timed && elapsed >= slowCallThreshold);
+    synchronized (this) {
+      if (open) {
+        return;
+      }
+      if (numCalls == outcomes.length) {
+        // Forget the oldest outcome
+        if (outcomes[nextOutcome]) {
+          numBadCalls--;
+        }
+      } else {
+        numCalls++;
+      }
+      outcomes[nextOutcome] = bad;
+      if (bad) {
+        numBadCalls++;
+      }
+      nextOutcome = (nextOutcome + 1) % outcomes.length;
+      if (numCalls < minimumCalls || numBadCalls < failureRateThreshold * numCalls) {
+        return;
+      }
+      open = true;
+    }
+    logger.warn(
+        String.format(
+            "The remote cache is failing or slow (%d of the last %d calls). Using the local cache"
+                + " only until it recovers.",
+            numBadCalls, numCalls));
+    scheduleProbe();
+  }
+
+  private void scheduleProbe() {
+    prober.schedule(this::probe, probeInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /** Checks the backend's connection, and closes the circuit if the backend is healthy. */
+  private void probe() {
+    long start = System.nanoTime();
+    boolean healthy;
+    try {
+      CheckResult result = backend.checkConnection();
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      healthy = result.isSuccess() && elapsed < slowCallThreshold;
+    } catch (RuntimeException e) {
+      healthy = false;
+    }
+    if (!healthy) {
+      scheduleProbe();
+      return;
+    }
+    synchronized (this) {
+      // Start over with a clean history
+      nextOutcome = 0;
+      numCalls = 0;
+      numBadCalls = 0;
+      open = false;
+    }
+    logger.info("The remote cache has recovered");
+  }
+
+  /** Runs the given call on the backend, or returns the fallback if the circuit is open. */
+  private <T> T call(Supplier<T> operation, T fallback, boolean timed) {
+    if (open) {
+      return fallback;
+    }
+    long start = System.nanoTime();
+    try {
+      T result = operation.get();
+      record(start, false, timed);
+      return result;
+    } catch (RuntimeException e) {
+      record(start, true, timed);
+      throw e;
+    }
+  }
+
+  private void run(Runnable operation) {
+    call(
+        () -> {
+          operation.run();
+          return null;
+        },
+        null,
+        true);
+  }
+
+  /** Asynchronous variant of {@link #call(Supplier, Object, boolean)}. */
+  private <T> CompletableFuture<T> callAsync(
+      Supplier<CompletableFuture<T>> operation, T fallback, boolean timed) {
+    if (open) {
+      return CompletableFuture.completedFuture(fallback);
+    }
+    long start = System.nanoTime();
+    CompletableFuture<T> future;
+    try {
+      future = operation.get();
+    } catch (RuntimeException e) {
+      record(start, true, timed);
+      return CompletableFuture.failedFuture(e);
+    }
+    return future.whenComplete((result, throwable) -> record(start, throwable != null, timed));
+  }
+
+  /** Lease granted without involving the backend, while the circuit is open. */
+  private static Lease createLocalLease(long leaseTime) {
+    return new Lease(0, leaseTime) {
+      @Override
+      protected void releaseLock() {}
+    };
+  }
+
+  @Override
+  public byte[] get(String key) {
+    return call(() -> backend.get(key), null, true);
+  }
+
+  @Override
+  public void set(String key, byte[] value) {
+    run(() -> backend.set(key, value));
+  }
+
+  @Override
+  public void set(String key, byte[] value, int expireIn) {
+    run(() -> backend.set(key, value, expireIn));
+  }
+
+  @Override
+  public void delete(String key) {
+    run(() -> backend.delete(key));
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    return call(() -> backend.getAll(keys), new HashMap<>(), true);
+  }
+
+  @Override
+  public void setAll(Map<String, byte[]> values, int expireIn) {
+    run(() -> backend.setAll(values, expireIn));
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    run(() -> backend.deleteAll(keys));
+  }
+
+  @Override
+  public Lock acquireLock(String lockName) {
+    return call(() -> backend.acquireLock(lockName), new DummyCache.NoOpLock(), false);
+  }
+
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    return call(
+        () -> backend.tryAcquire(lockName, waitTime, leaseTime),
+        createLocalLease(leaseTime),
+        false);
+  }
+
+  @Override
+  public ValueOrLease getOrAcquire(String key, long waitTime, long leaseTime) {
+    return call(
+        () -> backend.getOrAcquire(key, waitTime, leaseTime),
+        ValueOrLease.ofLease(createLocalLease(leaseTime)),
+        false);
+  }
+
+  @Override
+  public void setAndRelease(String key, byte[] value, int expireIn, Lease lease) {
+    if (open) {
+      // Don't wait for the backend. The lease expires by itself if it came from the backend.
+      lease.markReleased();
+      return;
+    }
+    run(() -> backend.setAndRelease(key, value, expireIn, lease));
+  }
+
+  @Override
+  public CheckResult checkConnection() {
+    return backend.checkConnection();
+  }
+
+  @Override
+  public void publishInvalidation(String namespace, String key) {
+    run(() -> backend.publishInvalidation(namespace, key));
+  }
+
+  @Override
+  public void subscribeInvalidations(BiConsumer<String, String> listener) {
+    backend.subscribeInvalidations(listener);
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getAsync(String key) {
+    return callAsync(() -> backend.getAsync(key), null, true);
+  }
+
+  @Override
+  public CompletableFuture<Void> setAsync(String key, byte[] value, int expireIn) {
+    return callAsync(() -> backend.setAsync(key, value, expireIn), null, true);
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAsync(String key) {
+    return callAsync(() -> backend.deleteAsync(key), null, true);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, byte[]>> getAllAsync(Collection<String> keys) {
+    return callAsync(() -> backend.getAllAsync(keys), new HashMap<>(), true);
+  }
+
+  @Override
+  public CompletableFuture<Void> setAllAsync(Map<String, byte[]> values, int expireIn) {
+    return callAsync(() -> backend.setAllAsync(values, expireIn), null, true);
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+    return callAsync(() -> backend.deleteAllAsync(keys), null, true);
+  }
+
+  @Override
+  public CompletableFuture<Lease> tryAcquireAsync(String lockName, long waitTime, long leaseTime) {
+    return callAsync(
+        () -> backend.tryAcquireAsync(lockName, waitTime, leaseTime),
+        createLocalLease(leaseTime),
+        false);
+  }
+
+  @Override
+  public CompletableFuture<ValueOrLease> getOrAcquireAsync(
+      String key, long waitTime, long leaseTime) {
+    return callAsync(
+        () -> backend.getOrAcquireAsync(key, waitTime, leaseTime),
+        ValueOrLease.ofLease(createLocalLease(leaseTime)),
+        false);
+  }
+
+  @Override
+  public CompletableFuture<Void> setAndReleaseAsync(
+      String key, byte[] value, int expireIn, Lease lease) {
+    if (open) {
+      lease.markReleased();
+      return CompletableFuture.completedFuture(null);
+    }
+    return callAsync(() -> backend.setAndReleaseAsync(key, value, expireIn, lease), null, true);
+  }
+}
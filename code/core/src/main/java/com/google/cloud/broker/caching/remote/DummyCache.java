@@ -41,6 +41,14 @@ public class DummyCache extends AbstractRemoteCache {
     return new NoOpLock();
   }
 
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    return new Lease(0, leaseTime) {
+      @Override
+      protected void releaseLock() {}
+    };
+  }
+
   @Override
   public CheckResult checkConnection() {
     return new CheckResult(true);
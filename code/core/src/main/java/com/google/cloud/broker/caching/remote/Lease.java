@@ -0,0 +1,69 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.broker.caching.remote;
+
+import com.google.cloud.broker.utils.TimeUtils;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lock held for a limited period of time (the lease). If the holder doesn't release the lock
+ * before the end of the lease, for example because it crashed or got stuck, then the lock is
+ * automatically released so that other callers can acquire it.
+ */
+public abstract class Lease {
+
+  private final long fencingToken;
+  private final long expiresAt; // In milliseconds
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  protected Lease(long fencingToken, long leaseTime) {
+    this.fencingToken = fencingToken;
+    this.expiresAt = TimeUtils.currentTimeMillis() + leaseTime;
+  }
+
+  /**
+   * Returns a number that is greater than the tokens of all previous leases for the same lock.
+   * Resources protected by the lock can use it to reject writes from a holder whose lease has
+   * already expired and been granted to someone else.
+   */
+  public long getFencingToken() {
+    return fencingToken;
+  }
+
+  /** Returns true if the lease has run out, in which case the lock may now be held by others. */
+  public boolean isExpired() {
+    return TimeUtils.currentTimeMillis() >= expiresAt;
+  }
+
+  /**
+   * Releases the lock. Can be called from any thread. Has no effect if the lease was already
+   * released. If the lease has expired, then the lock may have been granted to someone else in the
+   * meantime, in which case the backend leaves the new holder's lock in place.
+   */
+  public void release() {
+    if (markReleased()) {
+      releaseLock();
+    }
+  }
+
+  /**
+   * Marks the lease as released, for backends that release the lock as part of another operation.
+   * Returns false if the lease was already released.
+   */
+  protected boolean markReleased() {
+    return released.compareAndSet(false, true);
+  }
+
+  /** Releases the lock in the backend. Called at most once. */
+  protected abstract void releaseLock();
+}
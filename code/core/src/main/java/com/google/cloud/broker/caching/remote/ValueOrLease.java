@@ -0,0 +1,51 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.broker.caching.remote;
+
+/**
+ * Result of {@link AbstractRemoteCache#getOrAcquire}. It holds either the cached value, or the
+ * lease that lets the caller compute and fill in the missing value. It holds neither if the lock
+ * couldn't be acquired in time.
+ */
+public class ValueOrLease {
+
+  private final byte[] value;
+  private final Lease lease;
+
+  private ValueOrLease(byte[] value, Lease lease) {
+    this.value = value;
+    this.lease = lease;
+  }
+
+  public static ValueOrLease ofValue(byte[] value) {
+    return new ValueOrLease(value, null);
+  }
+
+  public static ValueOrLease ofLease(Lease lease) {
+    return new ValueOrLease(null, lease);
+  }
+
+  public static ValueOrLease timedOut() {
+    return new ValueOrLease(null, null);
+  }
+
+  /** Returns the cached value, or null if the value is missing. */
+  public byte[] getValue() {
+    return value;
+  }
+
+  /** Returns the lease to fill in the missing value, or null if the lease wasn't acquired. */
+  public Lease getLease() {
+    return lease;
+  }
+}
@@ -16,6 +16,7 @@ import com.google.cloud.broker.database.DatabaseObjectNotFound;
 import com.google.cloud.broker.database.models.Model;
 import com.google.cloud.broker.settings.AppSettings;
 import com.google.cloud.broker.utils.InstanceUtils;
+import java.util.Collection;
 import java.util.List;
 
 public abstract class AbstractDatabaseBackend {
@@ -30,6 +31,26 @@ public abstract class AbstractDatabaseBackend {
 
   public abstract void delete(Model model);
 
+  /**
+   * Saves all the given models. Backends that support it save the models in bulk, which is much
+   * faster than saving them one at a time. By default, the models are saved one by one.
+   */
+  public void saveAll(Collection<? extends Model> models) {
+    for (Model model : models) {
+      save(model);
+    }
+  }
+
+  /**
+   * Deletes all the given models. Backends that support it delete the models in bulk, which is
+   * much faster than deleting them one at a time. By default, the models are deleted one by one.
+   */
+  public void deleteAll(Collection<? extends Model> models) {
+    for (Model model : models) {
+      delete(model);
+    }
+  }
+
   public int deleteExpiredItems(Class modelClass, String field, Long cutoffTime) {
     return deleteExpiredItems(modelClass, field, cutoffTime, null);
   }
@@ -37,10 +37,12 @@ public class AppSettings {
   public static final String LOGGING_LEVEL = "logging.level";
   public static final String SERVER_HOST = "server.host";
   public static final String SERVER_PORT = "server.port";
+  public static final String SERVER_SHUTDOWN_TIMEOUT = "server.shutdown-timeout";
   public static final String TLS_ENABLED = "server.tls.enabled";
   public static final String TLS_CERTIFICATE_PATH = "server.tls.certificate-path";
   public static final String TLS_PRIVATE_KEY_PATH = "server.tls.private-key-path";
   public static final String SESSION_LOCAL_CACHE_TIME = "sessions.local-cache-time";
+  public static final String SESSION_LOCAL_CACHE_CAPACITY = "sessions.local-cache-capacity";
   public static final String SESSION_MAXIMUM_LIFETIME = "sessions.maximum-lifetime";
   public static final String SESSION_RENEW_PERIOD = "sessions.renew-period";
   public static final String PROXY_USERS = "proxy-users";
@@ -50,17 +52,106 @@ public class AppSettings {
       "provider.access-tokens.boundary-permissions";
   public static final String ACCESS_TOKEN_LOCAL_CACHE_TIME =
       "provider.access-tokens.local-cache-time";
+  public static final String ACCESS_TOKEN_LOCAL_CACHE_CAPACITY =
+      "provider.access-tokens.local-cache-capacity";
   public static final String ACCESS_TOKEN_REMOTE_CACHE_TIME =
       "provider.access-tokens.remote-cache-time";
+  public static final String ACCESS_TOKEN_NEGATIVE_CACHE_TIME =
+      "provider.access-tokens.negative-cache-time";
+  public static final String ACCESS_TOKEN_LOCK_WAIT_TIME =
+      "provider.access-tokens.lock-wait-time";
+  public static final String ACCESS_TOKEN_LOCK_LEASE_TIME =
+      "provider.access-tokens.lock-lease-time";
+  public static final String ACCESS_TOKEN_EXPIRY_MARGIN = "provider.access-tokens.expiry-margin";
+  public static final String ACCESS_TOKEN_REFRESH_AHEAD_FACTOR =
+      "provider.access-tokens.refresh-ahead-factor";
   public static final String HYBRID_USER_PROVIDER = "provider.hybrid.user-provider";
   public static final String JSON_FILE_CREDENTIALS_PROVIDER_BASE_DIR =
       "provider.json-file-credentials.base-dir";
+  public static final String BLOCKING_EXECUTOR_MAX_THREADS = "blocking-executor.max-threads";
+  public static final String BLOCKING_EXECUTOR_QUEUE_CAPACITY =
+      "blocking-executor.queue-capacity";
   public static final String DATABASE_BACKEND = "database.backend";
   public static final String DATABASE_JDBC_URL = "database.jdbc.driver-url";
+  public static final String DATABASE_JDBC_POOL_MINIMUM_IDLE = "database.jdbc.pool.minimum-idle";
+  public static final String DATABASE_JDBC_POOL_MAXIMUM_SIZE = "database.jdbc.pool.maximum-size";
+  public static final String DATABASE_JDBC_POOL_CONNECTION_TIMEOUT =
+      "database.jdbc.pool.connection-timeout";
+  public static final String DATABASE_JDBC_POOL_VALIDATION_TIMEOUT =
+      "database.jdbc.pool.validation-timeout";
+  public static final String DATABASE_JDBC_POOL_IDLE_TIMEOUT = "database.jdbc.pool.idle-timeout";
+  public static final String DATABASE_JDBC_POOL_MAX_LIFETIME = "database.jdbc.pool.max-lifetime";
+  public static final String DATABASE_JDBC_POOL_LEAK_DETECTION_THRESHOLD =
+      "database.jdbc.pool.leak-detection-threshold";
+  public static final String DATABASE_JDBC_POOL_METRICS_INTERVAL =
+      "database.jdbc.pool.metrics-interval";
+  public static final String DATABASE_JDBC_STATEMENT_CACHE_SIZE =
+      "database.jdbc.statement-cache-size";
+  public static final String DATASTORE_CONNECT_TIMEOUT = "datastore.connect-timeout";
+  public static final String DATASTORE_READ_TIMEOUT = "datastore.read-timeout";
+  public static final String DATASTORE_MAX_ATTEMPTS = "datastore.max-attempts";
+  public static final String DATASTORE_INITIAL_RETRY_DELAY = "datastore.initial-retry-delay";
+  public static final String DATASTORE_MAX_RETRY_DELAY = "datastore.max-retry-delay";
+  public static final String DATASTORE_TOTAL_TIMEOUT = "datastore.total-timeout";
+  public static final String LOCAL_CACHE_SNAPSHOT_URI = "local-cache.snapshot.uri";
+  public static final String LOCAL_CACHE_SNAPSHOT_INTERVAL = "local-cache.snapshot.interval";
+  public static final String LOCAL_CACHE_SNAPSHOT_MAX_ENTRIES = "local-cache.snapshot.max-entries";
   public static final String REMOTE_CACHE = "remote-cache.backend";
+  public static final String REMOTE_CACHE_CIRCUIT_BREAKER_BACKEND =
+      "remote-cache.circuit-breaker.backend";
+  public static final String REMOTE_CACHE_CIRCUIT_BREAKER_WINDOW_SIZE =
+      "remote-cache.circuit-breaker.window-size";
+  public static final String REMOTE_CACHE_CIRCUIT_BREAKER_MINIMUM_CALLS =
+      "remote-cache.circuit-breaker.minimum-calls";
+  public static final String REMOTE_CACHE_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD =
+      "remote-cache.circuit-breaker.failure-rate-threshold";
+  public static final String REMOTE_CACHE_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD =
+      "remote-cache.circuit-breaker.slow-call-threshold";
+  public static final String REMOTE_CACHE_CIRCUIT_BREAKER_PROBE_INTERVAL =
+      "remote-cache.circuit-breaker.probe-interval";
+  public static final String DATASTORE_CLEANUP_PARALLELISM =
+      "remote-cache.cloud-datastore.cleanup-parallelism";
+  public static final String DATASTORE_LOCK_DEADLOCK_TIMEOUT =
+      "remote-cache.cloud-datastore.lock-deadlock-timeout";
+  public static final String DATASTORE_LOCK_PATIENCE_TIMEOUT =
+      "remote-cache.cloud-datastore.lock-patience-timeout";
+  public static final String DATASTORE_LOCK_INITIAL_BACKOFF =
+      "remote-cache.cloud-datastore.lock-initial-backoff";
+  public static final String DATASTORE_LOCK_MAX_BACKOFF =
+      "remote-cache.cloud-datastore.lock-max-backoff";
+  public static final String HAZELCAST_CACHE_CLUSTER_NAME = "remote-cache.hazelcast.cluster-name";
+  public static final String HAZELCAST_CACHE_PORT = "remote-cache.hazelcast.port";
+  public static final String HAZELCAST_CACHE_MEMBERS = "remote-cache.hazelcast.members";
+  public static final String HAZELCAST_CACHE_KUBERNETES_SERVICE_DNS =
+      "remote-cache.hazelcast.kubernetes-service-dns";
+  public static final String HAZELCAST_CACHE_REPLICATION_FACTOR =
+      "remote-cache.hazelcast.replication-factor";
+  public static final String MEMCACHED_CACHE_SERVERS = "remote-cache.memcached.servers";
+  public static final String MEMCACHED_CACHE_OPERATION_TIMEOUT =
+      "remote-cache.memcached.operation-timeout";
+  public static final String MEMCACHED_CACHE_LOCK_LEASE_TIME =
+      "remote-cache.memcached.lock-lease-time";
   public static final String REDIS_CACHE_HOST = "remote-cache.redis.host";
   public static final String REDIS_CACHE_PORT = "remote-cache.redis.port";
   public static final String REDIS_CACHE_DB = "remote-cache.redis.db";
+  public static final String REDIS_CACHE_INVALIDATION_CHANNEL =
+      "remote-cache.redis.invalidation-channel";
+  public static final String REDIS_CACHE_MODE = "remote-cache.redis.mode";
+  public static final String REDIS_CACHE_NODES = "remote-cache.redis.nodes";
+  public static final String REDIS_CACHE_SENTINEL_MASTER = "remote-cache.redis.sentinel-master";
+  public static final String REDIS_CACHE_READ_FROM_REPLICAS =
+      "remote-cache.redis.read-from-replicas";
+  public static final String REDIS_CACHE_CONNECTION_POOL_SIZE =
+      "remote-cache.redis.connection-pool-size";
+  public static final String REDIS_CACHE_CONNECTION_MINIMUM_IDLE_SIZE =
+      "remote-cache.redis.connection-minimum-idle-size";
+  public static final String REDIS_CACHE_NETTY_THREADS = "remote-cache.redis.netty-threads";
+  public static final String REDIS_CACHE_THREADS = "remote-cache.redis.threads";
+  public static final String REDIS_CACHE_SHARDS = "remote-cache.redis.shards";
+  public static final String REDIS_CACHE_SHARD_VIRTUAL_NODES =
+      "remote-cache.redis.shard-virtual-nodes";
+  public static final String REDIS_CACHE_SHARD_RETRY_INTERVAL =
+      "remote-cache.redis.shard-retry-interval";
   public static final String OAUTH_CLIENT_ID = "oauth.client-id";
   public static final String OAUTH_CLIENT_SECRET = "oauth.client-secret";
   public static final String OAUTH_CLIENT_SECRET_JSON_PATH = "oauth.client-secret-json-path";
@@ -0,0 +1,136 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.utils;
+
+import com.google.cloud.broker.settings.AppSettings;
+import com.typesafe.config.Config;
+import io.grpc.Status;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public final class AsyncUtils {
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  // Threads used to run blocking calls (e.g. to backends that don't have an asynchronous client)
+  // so that asynchronous callers don't have to wait for them. Created on first use.
+  private static ExecutorService blockingExecutor;
+
+  public static synchronized ExecutorService getBlockingExecutor() {
+    if (blockingExecutor == null) {
+      blockingExecutor = createBlockingExecutor();
+    }
+    return blockingExecutor;
+  }
+
+  /**
+   * Returns a pool with up to `blocking-executor.max-threads` threads. Calls are queued when all
+   * threads are busy, and once the queue is full, they're rejected. They never run in the calling
+   * thread, which may be an I/O thread of a cache client that must not be blocked.
+   */
+  static ThreadPoolExecutor createBlockingExecutor() {
+    Config settings = AppSettings.getInstance();
+    int maxThreads = settings.getInt(AppSettings.BLOCKING_EXECUTOR_MAX_THREADS);
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            maxThreads,
+            maxThreads,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(
+                settings.getInt(AppSettings.BLOCKING_EXECUTOR_QUEUE_CAPACITY)),
+            runnable -> {
+              String name = "broker-blocking-" + threadCount.incrementAndGet();
+              Thread thread = new Thread(runnable, name);
+              thread.setDaemon(true);
+              return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    // Let idle threads stop, so that the pool only keeps the threads that it needs
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Runs the given blocking call in the blocking executor. If the executor is saturated, then the
+   * returned future fails with an UNAVAILABLE status.
+   */
+  public static <T> CompletableFuture<T> supplyBlocking(Supplier<T> supplier) {
+    return supplyAsync(supplier, getBlockingExecutor());
+  }
+
+  /** Variant of {@link #supplyBlocking(Supplier)} for calls that don't return anything. */
+  public static CompletableFuture<Void> runBlocking(Runnable runnable) {
+    return supplyBlocking(
+        () -> {
+          runnable.run();
+          return null;
+        });
+  }
+
+  /**
+   * Variant of {@link #supplyBlocking(Supplier)} for calls that start another asynchronous
+   * operation, whose result the returned future completes with.
+   */
+  public static <T> CompletableFuture<T> composeBlocking(Supplier<CompletableFuture<T>> supplier) {
+    return supplyBlocking(supplier).thenCompose(Function.identity());
+  }
+
+  static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier, Executor executor) {
+    try {
+      return CompletableFuture.supplyAsync(supplier, executor);
+    } catch (RejectedExecutionException e) {
+      return CompletableFuture.failedFuture(
+          Status.UNAVAILABLE
+              .withDescription("Too many pending blocking calls")
+              .withCause(e)
+              .asRuntimeException());
+    }
+  }
+
+  /** Returns the original exception wrapped by a CompletableFuture, if any. */
+  public static Throwable unwrap(Throwable throwable) {
+    while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+        && throwable.getCause() != null) {
+      throwable = throwable.getCause();
+    }
+    return throwable;
+  }
+
+  /**
+   * Waits for the given future to complete and returns its result. If the future completed
+   * exceptionally, then the original exception is rethrown.
+   */
+  public static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = unwrap(e);
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of long-lived clients (e.g. for Google Cloud APIs) that are shared by several
+ * components, so that the cost of setting up their connections and credentials is only paid once.
+ * The clients are closed together when the application shuts down.
+ */
+public class SharedClients {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static class Entry {
+
+    private final Consumer<Object> closer;
+    // Set once, while holding this entry's monitor
+    private volatile Object client;
+    private long creationOrder; // Guarded by this entry's monitor
+    private boolean closed; // Guarded by this entry's monitor
+
+    Entry(Consumer<Object> closer) {
+      this.closer = closer;
+    }
+  }
+
+  private static final ConcurrentMap<String, Entry> clients = new ConcurrentHashMap<>();
+  private static final AtomicLong creationCounter = new AtomicLong();
+
+  /**
+   * Returns the client registered under the given name. If there is none, then a new client is
+   * created with the given factory and registered. Looking up an existing client doesn't take any
+   * lock, and creating a client only blocks the callers that want the same client.
+   *
+   * @param closer Releases the client's resources when the client is closed.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T get(String name, Supplier<T> factory, Consumer<T> closer) {
+    while (true) {
+      Entry entry = clients.get(name);
+      if (entry == null) {
+        entry = clients.computeIfAbsent(name, key -> new Entry((Consumer<Object>) closer));
+      }
+      Object client = entry.client;
+      if (client != null) {
+        return (T) client;
+      }
+      synchronized (entry) {
+        if (entry.closed) {
+          // Closed in the meantime, so start over with a new entry
+          continue;
+        }
+        if (entry.client == null) {
+          entry.client = factory.get();
+          entry.creationOrder = creationCounter.incrementAndGet();
+        }
+        return (T) entry.client;
+      }
+    }
+  }
+
+  /** Closes the client registered under the given name, if any. */
+  public static void close(String name) {
+    Entry entry = clients.remove(name);
+    if (entry != null) {
+      close(name, entry);
+    }
+  }
+
+  /** Closes all registered clients, in the reverse order of their creation. */
+  public static void closeAll() {
+    Map<String, Long> creationOrders = new HashMap<>();
+    clients.forEach(
+        (name, entry) -> {
+          synchronized (entry) {
+            creationOrders.put(name, entry.creationOrder);
+          }
+        });
+    List<String> names = new ArrayList<>(creationOrders.keySet());
+    names.sort(Comparator.comparing(creationOrders::get, Comparator.reverseOrder()));
+    for (String name : names) {
+      close(name);
+    }
+  }
+
+  private static void close(String name, Entry entry) {
+    synchronized (entry) {
+      entry.closed = true;
+      if (entry.client == null) {
+        return;
+      }
+      try {
+        entry.closer.accept(entry.client);
+      } catch (RuntimeException e) {
+        // Keep closing the other clients
+        logger.warn("Failed to close client: " + name, e);
+      }
+    }
+  }
+}
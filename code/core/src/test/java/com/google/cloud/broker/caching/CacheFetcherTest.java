@@ -0,0 +1,653 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.caching.CacheFetcher.LockTimeoutPolicy;
+import com.google.cloud.broker.caching.codecs.CacheCodec;
+import com.google.cloud.broker.caching.codecs.JsonCodec;
+import com.google.cloud.broker.caching.local.LocalCache;
+import com.google.cloud.broker.caching.remote.AbstractRemoteCache;
+import com.google.cloud.broker.caching.remote.Lease;
+import com.google.cloud.broker.caching.remote.MockFailingCache;
+import com.google.cloud.broker.caching.remote.MockRemoteCache;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class CacheFetcherTest {
+
+  private static final int NUM_THREADS = 10;
+
+  static class FooCacheFetcher extends CacheFetcher {
+
+    private String key;
+    private AtomicInteger numComputations;
+    private CountDownLatch latch;
+    private RuntimeException exception;
+    private int localCacheTime = 60;
+    private double refreshAheadFactor = 0;
+    private Long expiresAt;
+    private int expiryMargin = 0;
+    private int negativeCacheTime = 0;
+    private LockTimeoutPolicy lockTimeoutPolicy = LockTimeoutPolicy.COMPUTE_WITHOUT_LOCK;
+
+    FooCacheFetcher(String key, AtomicInteger numComputations, CountDownLatch latch) {
+      this.key = key;
+      this.numComputations = numComputations;
+      this.latch = latch;
+      this.allowRemoteCache = false;
+    }
+
+    FooCacheFetcher withException(RuntimeException exception) {
+      this.exception = exception;
+      return this;
+    }
+
+    FooCacheFetcher withRefreshAhead(int localCacheTime, double refreshAheadFactor) {
+      this.localCacheTime = localCacheTime;
+      this.refreshAheadFactor = refreshAheadFactor;
+      return this;
+    }
+
+    FooCacheFetcher withExpiry(Long expiresAt, int expiryMargin) {
+      this.expiresAt = expiresAt;
+      this.expiryMargin = expiryMargin;
+      return this;
+    }
+
+    FooCacheFetcher withNegativeCacheTime(int negativeCacheTime) {
+      this.negativeCacheTime = negativeCacheTime;
+      return this;
+    }
+
+    FooCacheFetcher withRemoteCache(LockTimeoutPolicy lockTimeoutPolicy) {
+      this.allowRemoteCache = true;
+      this.lockTimeoutPolicy = lockTimeoutPolicy;
+      return this;
+    }
+
+    @Override
+    protected String getCacheKey() {
+      return key;
+    }
+
+    @Override
+    protected int getLocalCacheTime() {
+      return localCacheTime;
+    }
+
+    @Override
+    protected int getRemoteCacheTime() {
+      return 60;
+    }
+
+    @Override
+    protected LockTimeoutPolicy getLockTimeoutPolicy() {
+      return lockTimeoutPolicy;
+    }
+
+    @Override
+    protected int getNegativeCacheTime() {
+      return negativeCacheTime;
+    }
+
+    @Override
+    protected Long getExpiresAt(Object result) {
+      return expiresAt;
+    }
+
+    @Override
+    protected int getExpiryMargin() {
+      return expiryMargin;
+    }
+
+    @Override
+    protected double getRefreshAheadFactor() {
+      return refreshAheadFactor;
+    }
+
+    @Override
+    protected Object computeResult() {
+      int count = numComputations.incrementAndGet();
+      try {
+        // Hold on for a while to let the competing threads pile up
+        latch.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (exception != null) {
+        throw exception;
+      }
+      return "result-" + key + "-" + count;
+    }
+
+    @Override
+    protected CacheCodec getCodec() {
+      return new JsonCodec(String.class);
+    }
+  }
+
+  private List<Future<Object>> fetchConcurrently(List<Callable<Object>> tasks, CountDownLatch latch)
+      throws InterruptedException {
+    ExecutorService executorService = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<Object>> futures = new ArrayList<>();
+    for (Callable<Object> task : tasks) {
+      futures.add(executorService.submit(task));
+    }
+    // Give some time for all the threads to start, then release the computation
+    Thread.sleep(200);
+    latch.countDown();
+    executorService.shutdown();
+    executorService.awaitTermination(10, TimeUnit.SECONDS);
+    return futures;
+  }
+
+  @Test
+  public void testConcurrentFetchesAreCoalesced() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(1);
+    List<Callable<Object>> tasks = new ArrayList<>();
+    for (int i = 0; i < NUM_THREADS; i++) {
+      tasks.add(() -> new FooCacheFetcher("coalesced", numComputations, latch).fetch());
+    }
+
+    List<Future<Object>> futures = fetchConcurrently(tasks, latch);
+
+    // Check that the result was computed only once and shared with all the threads
+    assertEquals(1, numComputations.get());
+    for (Future<Object> future : futures) {
+      assertEquals("result-coalesced-1", future.get());
+    }
+  }
+
+  @Test
+  public void testDifferentKeysAreNotCoalesced() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(1);
+    List<Callable<Object>> tasks = new ArrayList<>();
+    for (int i = 0; i < NUM_THREADS; i++) {
+      String key = "distinct-" + i;
+      tasks.add(() -> new FooCacheFetcher(key, numComputations, latch).fetch());
+    }
+
+    List<Future<Object>> futures = fetchConcurrently(tasks, latch);
+
+    assertEquals(NUM_THREADS, numComputations.get());
+    for (int i = 0; i < NUM_THREADS; i++) {
+      assertTrue(((String) futures.get(i).get()).startsWith("result-distinct-" + i + "-"));
+    }
+  }
+
+  @Test
+  public void testExceptionIsPropagatedToWaitingThreads() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(1);
+    IllegalStateException exception = new IllegalStateException("Boom");
+    List<Callable<Object>> tasks = new ArrayList<>();
+    for (int i = 0; i < NUM_THREADS; i++) {
+      tasks.add(
+          () ->
+              new FooCacheFetcher("failure", numComputations, latch)
+                  .withException(exception)
+                  .fetch());
+    }
+
+    List<Future<Object>> futures = fetchConcurrently(tasks, latch);
+
+    assertEquals(1, numComputations.get());
+    for (Future<Object> future : futures) {
+      try {
+        future.get();
+        fail();
+      } catch (ExecutionException e) {
+        assertSame(exception, e.getCause());
+      }
+    }
+  }
+
+  @Test
+  public void testRefreshAhead() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(0);
+    FooCacheFetcher fetcher =
+        new FooCacheFetcher("refresh", numComputations, latch).withRefreshAhead(2, 0.5);
+
+    // Initial fetch
+    assertEquals("result-refresh-1", fetcher.fetch());
+
+    // The entry isn't due for a refresh yet
+    assertEquals("result-refresh-1", fetcher.fetch());
+    assertEquals(1, numComputations.get());
+
+    // Wait until the entry is due for a refresh
+    Thread.sleep(1100);
+
+    // The current value is still returned while the refresh happens in the background
+    assertEquals("result-refresh-1", fetcher.fetch());
+    Thread.sleep(200);
+    assertEquals(2, numComputations.get());
+
+    // The refreshed value is now returned
+    assertEquals("result-refresh-2", fetcher.fetch());
+  }
+
+  @Test
+  public void testRefreshAheadDisabled() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(0);
+    FooCacheFetcher fetcher =
+        new FooCacheFetcher("no-refresh", numComputations, latch).withRefreshAhead(2, 0);
+
+    assertEquals("result-no-refresh-1", fetcher.fetch());
+    Thread.sleep(1100);
+    assertEquals("result-no-refresh-1", fetcher.fetch());
+    Thread.sleep(200);
+    assertEquals(1, numComputations.get());
+  }
+
+  @Test
+  public void testCacheTimeCappedByExpiry() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(0);
+    long expiresAt = System.currentTimeMillis() + 3000;
+    FooCacheFetcher fetcher =
+        new FooCacheFetcher("expiry", numComputations, latch).withExpiry(expiresAt, 1);
+
+    // The result is cached...
+    assertEquals("result-expiry-1", fetcher.fetch());
+    assertEquals("result-expiry-1", fetcher.fetch());
+    assertEquals(1, numComputations.get());
+
+    // ... but only until its expiry time minus the margin, even though the
+    // local cache time is longer.
+    Thread.sleep(2100);
+    assertEquals("result-expiry-2", fetcher.fetch());
+    assertEquals(2, numComputations.get());
+  }
+
+  @Test
+  public void testResultTooCloseToExpiryNotCached() {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(0);
+    long expiresAt = System.currentTimeMillis() + 30000;
+    FooCacheFetcher fetcher =
+        new FooCacheFetcher("close-to-expiry", numComputations, latch).withExpiry(expiresAt, 60);
+
+    assertEquals("result-close-to-expiry-1", fetcher.fetch());
+    assertEquals("result-close-to-expiry-2", fetcher.fetch());
+    assertEquals(2, numComputations.get());
+  }
+
+  private void assertFetchFails(FooCacheFetcher fetcher, Status.Code code) {
+    try {
+      fetcher.fetch();
+      fail();
+    } catch (StatusRuntimeException e) {
+      assertEquals(code, e.getStatus().getCode());
+    }
+  }
+
+  @Test
+  public void testNegativeCaching() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(0);
+    FooCacheFetcher fetcher =
+        new FooCacheFetcher("negative", numComputations, latch)
+            .withException(Status.PERMISSION_DENIED.withDescription("Denied").asRuntimeException())
+            .withNegativeCacheTime(1);
+
+    // The failure is cached...
+    assertFetchFails(fetcher, Status.Code.PERMISSION_DENIED);
+    assertFetchFails(fetcher, Status.Code.PERMISSION_DENIED);
+    assertEquals(1, numComputations.get());
+
+    // ... until the negative cache time has elapsed
+    Thread.sleep(1100);
+    assertFetchFails(fetcher, Status.Code.PERMISSION_DENIED);
+    assertEquals(2, numComputations.get());
+  }
+
+  @Test
+  public void testNegativeCachingDisabled() {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(0);
+    FooCacheFetcher fetcher =
+        new FooCacheFetcher("negative-disabled", numComputations, latch)
+            .withException(Status.PERMISSION_DENIED.asRuntimeException());
+
+    assertFetchFails(fetcher, Status.Code.PERMISSION_DENIED);
+    assertFetchFails(fetcher, Status.Code.PERMISSION_DENIED);
+    assertEquals(2, numComputations.get());
+  }
+
+  @Test
+  public void testNegativeCachingIgnoresOtherFailures() {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(0);
+    FooCacheFetcher fetcher =
+        new FooCacheFetcher("negative-unavailable", numComputations, latch)
+            .withException(Status.UNAVAILABLE.asRuntimeException())
+            .withNegativeCacheTime(60);
+
+    assertFetchFails(fetcher, Status.Code.UNAVAILABLE);
+    assertFetchFails(fetcher, Status.Code.UNAVAILABLE);
+    assertEquals(2, numComputations.get());
+  }
+
+  @Test
+  public void testFetchAsync() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(1);
+    List<CompletableFuture<Object>> futures = new ArrayList<>();
+    for (int i = 0; i < NUM_THREADS; i++) {
+      futures.add(new FooCacheFetcher("async", numComputations, latch).fetchAsync());
+    }
+
+    // The calling thread isn't blocked while the result is being computed
+    for (CompletableFuture<Object> future : futures) {
+      assertFalse(future.isDone());
+    }
+    latch.countDown();
+
+    // Check that the result was computed only once and shared with all the callers
+    for (CompletableFuture<Object> future : futures) {
+      assertEquals("result-async-1", future.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(1, numComputations.get());
+
+    // The result is now served from the local cache
+    CompletableFuture<Object> future =
+        new FooCacheFetcher("async", numComputations, latch).fetchAsync();
+    assertTrue(future.isDone());
+    assertEquals("result-async-1", future.get());
+    assertEquals(1, numComputations.get());
+  }
+
+  @Test
+  public void testFetchAsyncFailure() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(0);
+    FooCacheFetcher fetcher =
+        new FooCacheFetcher("async-failure", numComputations, latch)
+            .withException(Status.PERMISSION_DENIED.asRuntimeException())
+            .withNegativeCacheTime(60);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        fetcher.fetchAsync().get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        StatusRuntimeException cause = (StatusRuntimeException) e.getCause();
+        assertEquals(Status.Code.PERMISSION_DENIED, cause.getStatus().getCode());
+      }
+    }
+    // The failure was cached after the first attempt
+    assertEquals(1, numComputations.get());
+  }
+
+  @Test
+  public void testInvalidate() {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REMOTE_CACHE, "com.google.cloud.broker.caching.remote.DummyCache"))) {
+      AtomicInteger numComputations = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(0);
+      FooCacheFetcher fetcher = new FooCacheFetcher("invalidate", numComputations, latch);
+
+      assertEquals("result-invalidate-1", fetcher.fetch());
+      assertEquals("result-invalidate-1", fetcher.fetch());
+
+      // The result is computed again after being invalidated
+      fetcher.invalidate();
+      assertEquals("result-invalidate-2", fetcher.fetch());
+      assertEquals(2, numComputations.get());
+    }
+  }
+
+  @Test
+  public void testInvalidateDuringFetch() throws Exception {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REMOTE_CACHE,
+                "com.google.cloud.broker.caching.remote.MockRemoteCache",
+                AppSettings.ENCRYPTION_BACKEND,
+                "com.google.cloud.broker.encryption.backends.DummyEncryptionBackend"))) {
+      AtomicInteger numComputations = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(1);
+      FooCacheFetcher fetcher =
+          new FooCacheFetcher("invalidate-in-flight", numComputations, latch)
+              .withRemoteCache(LockTimeoutPolicy.COMPUTE_WITHOUT_LOCK);
+      CompletableFuture<Object> future = fetcher.fetchAsync();
+      while (numComputations.get() == 0) {
+        Thread.sleep(10);
+      }
+
+      // Invalidate the key while its result is being computed
+      fetcher.invalidate();
+      latch.countDown();
+      assertEquals("result-invalidate-in-flight-1", future.get(5, TimeUnit.SECONDS));
+
+      // The stale result wasn't cached, either locally or remotely
+      assertEquals("result-invalidate-in-flight-2", fetcher.fetch());
+      assertEquals(2, numComputations.get());
+    } finally {
+      MockRemoteCache.reset();
+    }
+  }
+
+  @Test
+  public void testLockTimeoutComputesWithoutLock() throws Exception {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REMOTE_CACHE,
+                "com.google.cloud.broker.caching.remote.MockBusyCache",
+                AppSettings.ENCRYPTION_BACKEND,
+                "com.google.cloud.broker.encryption.backends.DummyEncryptionBackend"))) {
+      AtomicInteger numComputations = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(0);
+
+      // The lock is never available, but the result is still computed
+      FooCacheFetcher fetcher =
+          new FooCacheFetcher("lock-timeout", numComputations, latch)
+              .withRemoteCache(LockTimeoutPolicy.COMPUTE_WITHOUT_LOCK);
+      assertEquals("result-lock-timeout-1", fetcher.fetch());
+
+      FooCacheFetcher asyncFetcher =
+          new FooCacheFetcher("lock-timeout-async", numComputations, latch)
+              .withRemoteCache(LockTimeoutPolicy.COMPUTE_WITHOUT_LOCK);
+      assertEquals(
+          "result-lock-timeout-async-2", asyncFetcher.fetchAsync().get(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testLockTimeoutFails() throws Exception {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REMOTE_CACHE,
+                "com.google.cloud.broker.caching.remote.MockBusyCache",
+                AppSettings.ENCRYPTION_BACKEND,
+                "com.google.cloud.broker.encryption.backends.DummyEncryptionBackend"))) {
+      AtomicInteger numComputations = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(0);
+
+      FooCacheFetcher fetcher =
+          new FooCacheFetcher("lock-timeout-fail", numComputations, latch)
+              .withRemoteCache(LockTimeoutPolicy.FAIL);
+      try {
+        fetcher.fetch();
+        fail();
+      } catch (StatusRuntimeException e) {
+        assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+      }
+
+      try {
+        fetcher.fetchAsync().get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        StatusRuntimeException cause = (StatusRuntimeException) e.getCause();
+        assertEquals(Status.Code.UNAVAILABLE, cause.getStatus().getCode());
+      }
+      assertEquals(0, numComputations.get());
+    }
+  }
+
+  @Test
+  public void testRemoteCache() throws Exception {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REMOTE_CACHE,
+                "com.google.cloud.broker.caching.remote.MockRemoteCache",
+                AppSettings.ENCRYPTION_BACKEND,
+                "com.google.cloud.broker.encryption.backends.DummyEncryptionBackend"))) {
+      AtomicInteger numComputations = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(0);
+      FooCacheFetcher fetcher =
+          new FooCacheFetcher("remote", numComputations, latch)
+              .withRemoteCache(LockTimeoutPolicy.FAIL);
+      assertEquals("result-remote-1", fetcher.fetch());
+
+      // Once evicted from the local cache, the result is pulled from the remote cache
+      LocalCache.delete(LocalCache.DEFAULT_NAMESPACE, "remote");
+      assertEquals("result-remote-1", fetcher.fetch());
+      LocalCache.delete(LocalCache.DEFAULT_NAMESPACE, "remote");
+      assertEquals("result-remote-1", fetcher.fetchAsync().get(5, TimeUnit.SECONDS));
+      assertEquals(1, numComputations.get());
+
+      // The lock was released after the result was computed
+      Lease lease = AbstractRemoteCache.getInstance().tryAcquire("remote_lock", 0, 60000);
+      assertNotNull(lease);
+      lease.release();
+    } finally {
+      MockRemoteCache.reset();
+    }
+  }
+
+  @Test
+  public void testRemoteCacheUnavailable() throws Exception {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REMOTE_CACHE,
+                "com.google.cloud.broker.caching.remote.CircuitBreakerCache",
+                AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_BACKEND,
+                "com.google.cloud.broker.caching.remote.MockFailingCache",
+                AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_WINDOW_SIZE,
+                10,
+                AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_MINIMUM_CALLS,
+                1,
+                AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD,
+                0.5,
+                AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD,
+                1000,
+                AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_PROBE_INTERVAL,
+                60000,
+                AppSettings.ENCRYPTION_BACKEND,
+                "com.google.cloud.broker.encryption.backends.DummyEncryptionBackend"))) {
+      MockFailingCache.setFailing(true);
+      AtomicInteger numComputations = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(0);
+      FooCacheFetcher fetcher =
+          new FooCacheFetcher("unavailable", numComputations, latch)
+              .withRemoteCache(LockTimeoutPolicy.FAIL);
+      // The remote cache fails, which opens the circuit
+      try {
+        fetcher.fetch();
+        fail();
+      } catch (RuntimeException e) {
+        assertEquals("Remote cache unavailable", e.getMessage());
+      }
+      assertFalse(AbstractRemoteCache.getInstance().isAvailable());
+
+      // Results are now computed without involving the remote cache
+      int numCalls = MockFailingCache.getNumCalls();
+      assertEquals("result-unavailable-1", fetcher.fetch());
+      LocalCache.delete(LocalCache.DEFAULT_NAMESPACE, "unavailable");
+      assertEquals("result-unavailable-2", fetcher.fetchAsync().get(5, TimeUnit.SECONDS));
+      assertEquals(numCalls, MockFailingCache.getNumCalls());
+    } finally {
+      MockFailingCache.resetBehavior();
+      MockRemoteCache.reset();
+    }
+  }
+
+  @Test
+  public void testBumpGeneration() throws Exception {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REMOTE_CACHE,
+                "com.google.cloud.broker.caching.remote.MockRemoteCache",
+                AppSettings.ENCRYPTION_BACKEND,
+                "com.google.cloud.broker.encryption.backends.DummyEncryptionBackend"))) {
+      AtomicInteger numComputations = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(0);
+      FooCacheFetcher fetcher =
+          new FooCacheFetcher("generation", numComputations, latch)
+              .withRemoteCache(LockTimeoutPolicy.FAIL);
+      assertEquals("result-generation-1", fetcher.fetch());
+
+      // Bumping the generation invalidates the result in both the local and remote caches
+      CacheGenerations.bump(LocalCache.DEFAULT_NAMESPACE);
+      assertEquals("result-generation-2", fetcher.fetch());
+      LocalCache.delete(LocalCache.DEFAULT_NAMESPACE, "generation");
+      assertEquals("result-generation-2", fetcher.fetchAsync().get(5, TimeUnit.SECONDS));
+      assertEquals(2, numComputations.get());
+    } finally {
+      LocalCache.clear(CacheGenerations.LOCAL_CACHE_NAMESPACE);
+      MockRemoteCache.reset();
+    }
+  }
+
+  @Test
+  public void testBumpGenerationDuringFetch() throws Exception {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REMOTE_CACHE,
+                "com.google.cloud.broker.caching.remote.MockRemoteCache"))) {
+      AtomicInteger numComputations = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(1);
+      FooCacheFetcher fetcher = new FooCacheFetcher("generation-in-flight", numComputations, latch);
+      CompletableFuture<Object> future = fetcher.fetchAsync();
+      while (numComputations.get() == 0) {
+        Thread.sleep(10);
+      }
+
+      // Bump the namespace's generation while the result is being computed
+      CacheGenerations.bump(LocalCache.DEFAULT_NAMESPACE);
+      latch.countDown();
+      assertEquals("result-generation-in-flight-1", future.get(5, TimeUnit.SECONDS));
+
+      // The stale result wasn't cached
+      assertEquals("result-generation-in-flight-2", fetcher.fetch());
+      assertEquals(2, numComputations.get());
+    } finally {
+      LocalCache.clear(CacheGenerations.LOCAL_CACHE_NAMESPACE);
+      MockRemoteCache.reset();
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.caching.local.LocalCache;
+import com.google.cloud.broker.caching.remote.AbstractRemoteCache;
+import com.google.cloud.broker.caching.remote.MockRemoteCache;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+public class CacheGenerationsTest {
+
+  @ClassRule
+  public static SettingsOverride settingsOverride =
+      new SettingsOverride(
+          Map.of(
+              AppSettings.REMOTE_CACHE, "com.google.cloud.broker.caching.remote.MockRemoteCache"));
+
+  @After
+  public void teardown() {
+    LocalCache.clear(CacheGenerations.LOCAL_CACHE_NAMESPACE);
+    MockRemoteCache.reset();
+  }
+
+  @Test
+  public void testInitialGeneration() {
+    assertEquals("", CacheGenerations.get("test"));
+    // Keys are unchanged until the first bump
+    assertEquals("key", CacheGenerations.getRemoteKey("test", "key"));
+  }
+
+  @Test
+  public void testBump() {
+    String generation = CacheGenerations.bump("test");
+    assertEquals(generation, CacheGenerations.get("test"));
+    assertEquals("key#" + generation, CacheGenerations.getRemoteKey("test", "key"));
+
+    // Generations keep increasing
+    String nextGeneration = CacheGenerations.bump("test");
+    assertTrue(Long.parseLong(nextGeneration) > Long.parseLong(generation));
+    assertEquals("key#" + nextGeneration, CacheGenerations.getRemoteKey("test", "key"));
+
+    // Other namespaces aren't affected
+    assertEquals("key", CacheGenerations.getRemoteKey("other", "key"));
+  }
+
+  @Test
+  public void testGetAsync() throws Exception {
+    assertEquals("", CacheGenerations.getAsync("test").get());
+    String generation = CacheGenerations.bump("test");
+    assertEquals(generation, CacheGenerations.getAsync("test").get());
+
+    // The generation is also cached locally
+    LocalCache.clear(CacheGenerations.LOCAL_CACHE_NAMESPACE);
+    assertEquals(generation, CacheGenerations.getAsync("test").get());
+    AbstractRemoteCache.getInstance().delete("cache-generation-test");
+    assertEquals(generation, CacheGenerations.getAsync("test").get());
+  }
+
+  @Test
+  public void testBumpClearsLocalNamespace() {
+    LocalCache.set("test-bump", "a", "value", 60, 10);
+    LocalCache.set("test-other", "a", "value", 60, 10);
+    CacheGenerations.bump("test-bump");
+    assertNull(LocalCache.get("test-bump", "a"));
+    assertEquals("value", LocalCache.get("test-other", "a"));
+  }
+
+  @Test
+  public void testGenerationIsCachedLocally() {
+    assertEquals("", CacheGenerations.get("test"));
+    // Simulate a bump by another process, without invalidation messages
+    AbstractRemoteCache.getInstance()
+        .set("cache-generation-test", "12345".getBytes(StandardCharsets.UTF_8));
+    assertEquals("", CacheGenerations.get("test"));
+
+    // The bump is picked up once the generation leaves the local cache
+    CacheGenerations.onInvalidation(CacheGenerations.LOCAL_CACHE_NAMESPACE, "test");
+    assertEquals("12345", CacheGenerations.get("test"));
+  }
+}
@@ -0,0 +1,298 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.caching.codecs.BinaryCodec;
+import com.google.cloud.broker.caching.codecs.CacheCodec;
+import com.google.cloud.broker.caching.local.LocalCache;
+import com.google.cloud.broker.caching.remote.MockRemoteCache;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
+import com.google.cloud.broker.utils.TimeUtils;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+public class CacheSnapshotTest {
+
+  private static final String NAMESPACE = "test-snapshot";
+
+  @ClassRule
+  public static SettingsOverride settingsOverride =
+      new SettingsOverride(
+          Map.of(
+              AppSettings.ENCRYPTION_BACKEND,
+                  "com.google.cloud.broker.encryption.backends.DummyEncryptionBackend",
+              AppSettings.REMOTE_CACHE, "com.google.cloud.broker.caching.remote.MockRemoteCache",
+              AppSettings.LOCAL_CACHE_SNAPSHOT_INTERVAL, "300",
+              AppSettings.LOCAL_CACHE_SNAPSHOT_MAX_ENTRIES, "1000"));
+
+  public static class StringCodec extends BinaryCodec {
+
+    public StringCodec() {
+      super(String.class);
+    }
+
+    @Override
+    protected void write(Object value, DataOutputStream output) throws IOException {
+      writeString(output, (String) value);
+    }
+
+    @Override
+    protected Object read(DataInputStream input) throws IOException {
+      return readString(input);
+    }
+  }
+
+  static class SnapshotCacheFetcher extends CacheFetcher {
+
+    private static final CacheCodec CODEC = new StringCodec();
+
+    private String key;
+    private AtomicInteger numComputations;
+    private int localCacheTime;
+    private Long expiresAt;
+    private boolean allowSnapshot = true;
+
+    SnapshotCacheFetcher(String key, AtomicInteger numComputations, int localCacheTime) {
+      this.key = key;
+      this.numComputations = numComputations;
+      this.localCacheTime = localCacheTime;
+      this.allowRemoteCache = false;
+    }
+
+    SnapshotCacheFetcher withExpiry(Long expiresAt) {
+      this.expiresAt = expiresAt;
+      return this;
+    }
+
+    SnapshotCacheFetcher withoutSnapshot() {
+      this.allowSnapshot = false;
+      return this;
+    }
+
+    @Override
+    protected Long getExpiresAt(Object result) {
+      return expiresAt;
+    }
+
+    @Override
+    protected boolean allowSnapshot() {
+      return allowSnapshot;
+    }
+
+    @Override
+    protected String getCacheKey() {
+      return key;
+    }
+
+    @Override
+    protected String getLocalCacheNamespace() {
+      return NAMESPACE;
+    }
+
+    @Override
+    protected int getLocalCacheTime() {
+      return localCacheTime;
+    }
+
+    @Override
+    protected int getRemoteCacheTime() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected Object computeResult() {
+      return "result-" + key + "-" + numComputations.incrementAndGet();
+    }
+
+    @Override
+    protected CacheCodec getCodec() {
+      return CODEC;
+    }
+  }
+
+  @After
+  public void teardown() {
+    LocalCache.clear(CacheGenerations.LOCAL_CACHE_NAMESPACE);
+    MockRemoteCache.reset();
+  }
+
+  @Test
+  public void testCreateAndRestore() throws IOException {
+    AtomicInteger numComputations = new AtomicInteger();
+    assertEquals("result-a-1", new SnapshotCacheFetcher("a", numComputations, 60).fetch());
+    assertEquals("result-b-2", new SnapshotCacheFetcher("b", numComputations, 60).fetch());
+    byte[] snapshot = CacheSnapshot.create(1000);
+
+    // Simulate a restart
+    LocalCache.delete(NAMESPACE, "a");
+    LocalCache.delete(NAMESPACE, "b");
+    assertTrue(CacheSnapshot.restore(snapshot) >= 2);
+
+    // Check that the values are served from the local cache
+    assertEquals("result-a-1", new SnapshotCacheFetcher("a", numComputations, 60).fetch());
+    assertEquals("result-b-2", new SnapshotCacheFetcher("b", numComputations, 60).fetch());
+    assertEquals(2, numComputations.get());
+  }
+
+  @Test
+  public void testExpiredEntriesAreSkipped() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    assertEquals("result-c-1", new SnapshotCacheFetcher("c", numComputations, 1).fetch());
+    byte[] snapshot = CacheSnapshot.create(1000);
+
+    // Wait until the entry has expired, then restore the snapshot
+    Thread.sleep(1100);
+    CacheSnapshot.restore(snapshot);
+
+    // The value is computed again
+    assertEquals("result-c-2", new SnapshotCacheFetcher("c", numComputations, 1).fetch());
+  }
+
+  @Test
+  public void testStartAndStop() throws IOException {
+    Path directory = Files.createTempDirectory("snapshot");
+    Path path = directory.resolve("snapshot.bin");
+    try (SettingsOverride override =
+        SettingsOverride.apply(Map.of(AppSettings.LOCAL_CACHE_SNAPSHOT_URI, path.toString()))) {
+      AtomicInteger numComputations = new AtomicInteger();
+      new SnapshotCacheFetcher("d", numComputations, 60).fetch();
+
+      // A snapshot is saved when stopping
+      CacheSnapshot.start();
+      CacheSnapshot.stop();
+      assertTrue(Files.exists(path));
+
+      // The snapshot is loaded when starting
+      LocalCache.delete(NAMESPACE, "d");
+      CacheSnapshot.start();
+      CacheSnapshot.stop();
+      assertEquals("result-d-1", new SnapshotCacheFetcher("d", numComputations, 60).fetch());
+      assertEquals(1, numComputations.get());
+    }
+  }
+
+  @Test
+  public void testRestoredExpiryWithDefaultSettings() {
+    // Default local cache time of access tokens and sessions, and default snapshot interval
+    int localCacheTime = 30;
+    long snapshotInterval = 300000;
+    long snapshotTime = 1000000000000L;
+    long expiresAt = snapshotTime + 20000;
+    long restoreTime = snapshotTime + snapshotInterval;
+
+    // A value that is usable for another hour gets the local cache's full lifetime
+    long usableUntil = snapshotTime + 3600000;
+    assertEquals(
+        restoreTime + 30000,
+        CacheSnapshot.getRestoredExpiry(expiresAt, usableUntil, localCacheTime, restoreTime));
+
+    // ... but not beyond the time until which the value is usable
+    usableUntil = restoreTime + 10000;
+    assertEquals(
+        usableUntil,
+        CacheSnapshot.getRestoredExpiry(expiresAt, usableUntil, localCacheTime, restoreTime));
+
+    // A value without expiry keeps its original local cache expiry
+    assertEquals(
+        expiresAt,
+        CacheSnapshot.getRestoredExpiry(expiresAt, Long.MAX_VALUE, localCacheTime, restoreTime));
+  }
+
+  @Test
+  public void testRestoreAfterLocalCacheTime() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    long expiresAt = TimeUtils.currentTimeMillis() + 3600000;
+    assertEquals(
+        "result-e-1",
+        new SnapshotCacheFetcher("e", numComputations, 1).withExpiry(expiresAt).fetch());
+    byte[] snapshot = CacheSnapshot.create(1000);
+
+    // Restore the snapshot after the local cache entry has expired, as usually happens with
+    // periodic snapshots
+    Thread.sleep(1100);
+    assertTrue(CacheSnapshot.restore(snapshot) >= 1);
+
+    // The value is still usable, so it's served from the local cache
+    assertEquals(
+        "result-e-1",
+        new SnapshotCacheFetcher("e", numComputations, 1).withExpiry(expiresAt).fetch());
+    assertEquals(1, numComputations.get());
+  }
+
+  @Test
+  public void testUnusableEntriesAreSkipped() throws Exception {
+    AtomicInteger numComputations = new AtomicInteger();
+    long expiresAt = TimeUtils.currentTimeMillis() + 2500;
+    assertEquals(
+        "result-f-1",
+        new SnapshotCacheFetcher("f", numComputations, 60).withExpiry(expiresAt).fetch());
+    byte[] snapshot = CacheSnapshot.create(1000);
+
+    // Wait until the value itself has expired, then restore the snapshot
+    Thread.sleep(2600);
+    LocalCache.delete(NAMESPACE, "f");
+    CacheSnapshot.restore(snapshot);
+
+    // The value is computed again
+    assertEquals(
+        "result-f-2",
+        new SnapshotCacheFetcher("f", numComputations, 60).withExpiry(expiresAt + 60000).fetch());
+  }
+
+  @Test
+  public void testEntriesWithoutSnapshotAreSkipped() throws IOException {
+    AtomicInteger numComputations = new AtomicInteger();
+    assertEquals(
+        "result-g-1", new SnapshotCacheFetcher("g", numComputations, 60).withoutSnapshot().fetch());
+    byte[] snapshot = CacheSnapshot.create(1000);
+
+    // Simulate a restart
+    LocalCache.delete(NAMESPACE, "g");
+    CacheSnapshot.restore(snapshot);
+
+    // The value is computed again
+    assertEquals(
+        "result-g-2", new SnapshotCacheFetcher("g", numComputations, 60).withoutSnapshot().fetch());
+  }
+
+  @Test
+  public void testBumpedNamespacesAreSkipped() throws IOException {
+    AtomicInteger numComputations = new AtomicInteger();
+    assertEquals("result-h-1", new SnapshotCacheFetcher("h", numComputations, 60).fetch());
+    byte[] snapshot = CacheSnapshot.create(1000);
+
+    // Invalidate the namespace, then simulate a restart
+    CacheGenerations.bump(NAMESPACE);
+    CacheSnapshot.restore(snapshot);
+    assertNull(LocalCache.get(NAMESPACE, "h"));
+
+    // The value is computed again
+    assertEquals("result-h-2", new SnapshotCacheFetcher("h", numComputations, 60).fetch());
+
+    // Snapshots taken after the bump are restored as usual
+    snapshot = CacheSnapshot.create(1000);
+    LocalCache.delete(NAMESPACE, "h");
+    assertTrue(CacheSnapshot.restore(snapshot) >= 1);
+    assertEquals("result-h-2", new SnapshotCacheFetcher("h", numComputations, 60).fetch());
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.local;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LocalCacheTest {
+
+  @Test
+  public void testGetSet() {
+    assertNull(LocalCache.get("test-get-set", "key"));
+    LocalCache.set("test-get-set", "key", "value", 60, 10);
+    assertEquals("value", LocalCache.get("test-get-set", "key"));
+  }
+
+  @Test
+  public void testDelete() {
+    LocalCache.set("test-delete", "key", "value", 60, 10);
+    LocalCache.delete("test-delete", "key");
+    assertNull(LocalCache.get("test-delete", "key"));
+  }
+
+  @Test
+  public void testClear() {
+    LocalCache.set("test-clear", "a", "value", 60, 10);
+    LocalCache.set("test-clear", "b", "value", 60, 10);
+    LocalCache.set("test-clear-other", "a", "value", 60, 10);
+    LocalCache.clear("test-clear");
+    assertNull(LocalCache.get("test-clear", "a"));
+    assertNull(LocalCache.get("test-clear", "b"));
+    assertEquals("value", LocalCache.get("test-clear-other", "a"));
+  }
+
+  @Test
+  public void testExpiry() throws InterruptedException {
+    LocalCache.set("test-expiry", "key", "value", 1, 10);
+    assertEquals("value", LocalCache.get("test-expiry", "key"));
+    Thread.sleep(1100);
+    assertNull(LocalCache.get("test-expiry", "key"));
+  }
+
+  @Test
+  public void testNamespacesAreIsolated() {
+    LocalCache.set("test-namespace-a", "key", "a", 60, 10);
+    LocalCache.set("test-namespace-b", "key", "b", 60, 10);
+    assertEquals("a", LocalCache.get("test-namespace-a", "key"));
+    assertEquals("b", LocalCache.get("test-namespace-b", "key"));
+    LocalCache.delete("test-namespace-a", "key");
+    assertNull(LocalCache.get("test-namespace-a", "key"));
+    assertEquals("b", LocalCache.get("test-namespace-b", "key"));
+  }
+
+  @Test
+  public void testCapacity() {
+    LocalCache.setCapacity("test-capacity", 1000);
+    for (int i = 0; i < 100; i++) {
+      LocalCache.set("test-capacity", "key-" + i, "value-" + i, 60, 100);
+    }
+    // Check that the namespace doesn't hold more than its capacity
+    assertTrue(LocalCache.size("test-capacity") <= 10);
+  }
+
+  @Test
+  public void testFrequentEntriesAreRetained() {
+    LocalCache.setCapacity("test-frequency", 1000);
+    LocalCache.set("test-frequency", "hot", "hot-value", 60, 100);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("hot-value", LocalCache.get("test-frequency", "hot"));
+    }
+    // Add a lot of keys that are only used once
+    for (int i = 0; i < 100; i++) {
+      LocalCache.set("test-frequency", "one-shot-" + i, "value-" + i, 60, 100);
+    }
+    // Check that the frequently used entry was not evicted
+    assertEquals("hot-value", LocalCache.get("test-frequency", "hot"));
+  }
+}
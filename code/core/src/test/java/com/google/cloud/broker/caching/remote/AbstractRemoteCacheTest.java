@@ -15,11 +15,20 @@ import static org.junit.Assert.*;
 
 import com.google.cloud.broker.settings.AppSettings;
 import com.google.cloud.broker.settings.SettingsOverride;
+import java.util.List;
 import java.util.Map;
+import org.junit.After;
 import org.junit.Test;
 
 public class AbstractRemoteCacheTest {
 
+  private final MockRemoteCache cache = new MockRemoteCache();
+
+  @After
+  public void teardown() {
+    MockRemoteCache.reset();
+  }
+
   @Test
   public void testGetInstance() {
     try (SettingsOverride override =
@@ -32,4 +41,75 @@ public class AbstractRemoteCacheTest {
       }
     }
   }
+
+  @Test
+  public void testGetOrAcquire() {
+    // Cache miss, so the lease to fill in the value is acquired
+    ValueOrLease lookup = cache.getOrAcquire("key", 0, 60000);
+    assertNull(lookup.getValue());
+    Lease lease = lookup.getLease();
+    assertNotNull(lease);
+
+    // Other callers can't acquire the lease in the meantime
+    ValueOrLease competing = cache.getOrAcquire("key", 0, 60000);
+    assertNull(competing.getValue());
+    assertNull(competing.getLease());
+
+    // Once the value is filled in, callers get the value
+    cache.setAndRelease("key", "abcd".getBytes(), 60, lease);
+    lookup = cache.getOrAcquire("key", 0, 60000);
+    assertArrayEquals("abcd".getBytes(), lookup.getValue());
+    assertNull(lookup.getLease());
+
+    // The lease was released
+    Lease nextLease = cache.tryAcquire("key_lock", 0, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testDefaultTryAcquire() throws InterruptedException {
+    AbstractRemoteCache lockingCache = new MockLockingCache();
+    Lease lease = lockingCache.tryAcquire("test-default-lease", 0, 60000);
+    assertNotNull(lease);
+
+    // The lock can't be acquired again until it's released
+    assertNull(lockingCache.tryAcquire("test-default-lease", 100, 60000));
+
+    // Each new lease gets a greater fencing token
+    lease.release();
+    Lease nextLease = lockingCache.tryAcquire("test-default-lease", 1000, 200);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+
+    // The lock gets released automatically at the end of the lease
+    Thread.sleep(300);
+    assertTrue(nextLease.isExpired());
+    Lease lastLease = lockingCache.tryAcquire("test-default-lease", 1000, 60000);
+    assertNotNull(lastLease);
+    lastLease.release();
+  }
+
+  @Test
+  public void testSetAndReleaseWithExpiredLease() throws InterruptedException {
+    Lease lease = cache.getOrAcquire("key", 0, 10).getLease();
+    Thread.sleep(20);
+
+    // The value isn't set as someone else may have acquired the lock in the meantime
+    cache.setAndRelease("key", "abcd".getBytes(), 60, lease);
+    assertNull(cache.get("key"));
+  }
+
+  @Test
+  public void testMultiKeyOperations() {
+    cache.setAll(Map.of("key-1", "abcd".getBytes(), "key-2", "efgh".getBytes()), 60);
+    Map<String, byte[]> values = cache.getAll(List.of("key-1", "key-2", "whatever"));
+    assertEquals(2, values.size());
+    assertArrayEquals("abcd".getBytes(), values.get("key-1"));
+    assertArrayEquals("efgh".getBytes(), values.get("key-2"));
+
+    cache.deleteAll(List.of("key-1", "key-2"));
+    assertTrue(cache.getAll(List.of("key-1", "key-2")).isEmpty());
+  }
 }
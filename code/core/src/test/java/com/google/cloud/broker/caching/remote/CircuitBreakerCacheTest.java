@@ -0,0 +1,167 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+
+public class CircuitBreakerCacheTest {
+
+  private CircuitBreakerCache cache;
+
+  @ClassRule
+  public static SettingsOverride settingsOverride =
+      new SettingsOverride(
+          Map.of(
+              AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_BACKEND,
+              "com.google.cloud.broker.caching.remote.MockFailingCache",
+              AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_WINDOW_SIZE,
+              10,
+              AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_MINIMUM_CALLS,
+              4,
+              AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD,
+              0.5,
+              AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD,
+              100,
+              AppSettings.REMOTE_CACHE_CIRCUIT_BREAKER_PROBE_INTERVAL,
+              50));
+
+  @Before
+  public void setup() {
+    cache = new CircuitBreakerCache();
+  }
+
+  @After
+  public void teardown() {
+    MockFailingCache.resetBehavior();
+    MockRemoteCache.reset();
+  }
+
+  private void failCalls(int numCalls) {
+    for (int i = 0; i < numCalls; i++) {
+      try {
+        cache.get("test");
+        fail();
+      } catch (RuntimeException e) {
+        assertEquals("Remote cache unavailable", e.getMessage());
+      }
+    }
+  }
+
+  private void waitUntilAvailable() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!cache.isAvailable() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testClosed() {
+    assertTrue(cache.getBackend() instanceof MockFailingCache);
+    cache.set("test", "abcd".getBytes(), 60);
+    assertArrayEquals("abcd".getBytes(), cache.get("test"));
+    assertTrue(cache.isAvailable());
+    assertEquals(2, MockFailingCache.getNumCalls());
+  }
+
+  @Test
+  public void testFewFailuresKeepClosed() {
+    MockFailingCache.setFailing(true);
+    // Not enough calls yet to judge the backend
+    failCalls(3);
+    assertTrue(cache.isAvailable());
+
+    // Failures below the threshold
+    cache = new CircuitBreakerCache();
+    MockFailingCache.setFailing(false);
+    for (int i = 0; i < 7; i++) {
+      cache.get("test");
+    }
+    MockFailingCache.setFailing(true);
+    failCalls(3);
+    assertTrue(cache.isAvailable());
+  }
+
+  @Test
+  public void testFailuresOpen() {
+    MockFailingCache.setFailing(true);
+    failCalls(4);
+    assertFalse(cache.isAvailable());
+
+    // The backend isn't called anymore
+    int numCalls = MockFailingCache.getNumCalls();
+    assertNull(cache.get("test"));
+    cache.set("test", "abcd".getBytes(), 60);
+    cache.delete("test");
+    assertTrue(cache.getAll(List.of("a", "b")).isEmpty());
+    assertEquals(numCalls, MockFailingCache.getNumCalls());
+  }
+
+  @Test
+  public void testSlowCallsOpen() {
+    MockFailingCache.setDelay(150);
+    for (int i = 0; i < 4; i++) {
+      cache.get("test");
+    }
+    assertFalse(cache.isAvailable());
+  }
+
+  @Test
+  public void testLeasesWhileOpen() throws Exception {
+    MockFailingCache.setFailing(true);
+    failCalls(4);
+
+    // Leases are granted locally
+    Lease lease = cache.tryAcquire("test", 0, 60000);
+    assertNotNull(lease);
+    ValueOrLease lookup = cache.getOrAcquire("test", 0, 60000);
+    assertNull(lookup.getValue());
+    assertNotNull(lookup.getLease());
+    cache.setAndRelease("test", "abcd".getBytes(), 60, lookup.getLease());
+    lease.release();
+    assertNotNull(cache.getOrAcquireAsync("test", 0, 60000).get().getLease());
+    assertNull(cache.getAsync("test").get());
+  }
+
+  @Test
+  public void testProbeCloses() throws InterruptedException {
+    MockFailingCache.setFailing(true);
+    failCalls(4);
+    assertFalse(cache.isAvailable());
+
+    // The backend is still failing, so the circuit stays open
+    Thread.sleep(200);
+    assertFalse(cache.isAvailable());
+
+    // The backend has recovered
+    MockFailingCache.setFailing(false);
+    waitUntilAvailable();
+    assertTrue(cache.isAvailable());
+    cache.set("test", "abcd".getBytes(), 60);
+    assertArrayEquals("abcd".getBytes(), cache.get("test"));
+  }
+
+  @Test
+  public void testAsyncFailuresOpen() {
+    MockFailingCache.setFailing(true);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(cache.getAsync("test").handle((value, e) -> e != null).join());
+    }
+    assertFalse(cache.isAvailable());
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import com.google.cloud.broker.checks.CheckResult;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory remote cache backend that can be made to fail or to respond slowly. All instances share
+ * the same data and the same behavior.
+ */
+public class MockFailingCache extends MockRemoteCache {
+
+  private static volatile boolean failing;
+  private static volatile long delay; // In milliseconds
+  private static final AtomicInteger numCalls = new AtomicInteger();
+
+  public static void setFailing(boolean failing) {
+    MockFailingCache.failing = failing;
+  }
+
+  public static void setDelay(long delay) {
+    MockFailingCache.delay = delay;
+  }
+
+  public static int getNumCalls() {
+    return numCalls.get();
+  }
+
+  public static void resetBehavior() {
+    failing = false;
+    delay = 0;
+    numCalls.set(0);
+  }
+
+  private static void simulate() {
+    numCalls.incrementAndGet();
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    if (failing) {
+      throw new RuntimeException("Remote cache unavailable");
+    }
+  }
+
+  @Override
+  public byte[] get(String key) {
+    simulate();
+    return super.get(key);
+  }
+
+  @Override
+  public void set(String key, byte[] value) {
+    simulate();
+    super.set(key, value);
+  }
+
+  @Override
+  public void set(String key, byte[] value, int expireIn) {
+    simulate();
+    super.set(key, value, expireIn);
+  }
+
+  @Override
+  public void delete(String key) {
+    simulate();
+    super.delete(key);
+  }
+
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    simulate();
+    return super.tryAcquire(lockName, waitTime, leaseTime);
+  }
+
+  @Override
+  public CheckResult checkConnection() {
+    if (failing) {
+      return new CheckResult(false, "Remote cache unavailable");
+    }
+    return super.checkConnection();
+  }
+}
@@ -0,0 +1,54 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.broker.caching.remote;
+
+import com.google.cloud.broker.checks.CheckResult;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remote cache backend that only implements {@link #acquireLock(String)}, so that leases are
+ * acquired with the default implementation of {@link #tryAcquire(String, long, long)}.
+ */
+public class MockLockingCache extends AbstractRemoteCache {
+
+  private static final ConcurrentMap<String, Lock> locks = new ConcurrentHashMap<>();
+
+  @Override
+  public byte[] get(String key) {
+    return null;
+  }
+
+  @Override
+  public void set(String key, byte[] value) {}
+
+  @Override
+  public void set(String key, byte[] value, int expireIn) {}
+
+  @Override
+  public void delete(String key) {}
+
+  @Override
+  public Lock acquireLock(String lockName) {
+    Lock lock = locks.computeIfAbsent(lockName, name -> new ReentrantLock());
+    lock.lock();
+    return lock;
+  }
+
+  @Override
+  public CheckResult checkConnection() {
+    return new CheckResult(true);
+  }
+}
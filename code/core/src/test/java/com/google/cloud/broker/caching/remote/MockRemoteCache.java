@@ -0,0 +1,102 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.broker.caching.remote;
+
+import com.google.cloud.broker.checks.CheckResult;
+import com.google.cloud.broker.utils.TimeUtils;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * In-memory remote cache backend that relies on the default implementations of the optional
+ * methods. All instances share the same data.
+ */
+public class MockRemoteCache extends AbstractRemoteCache {
+
+  private static final ConcurrentMap<String, byte[]> values = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Holder> locks = new ConcurrentHashMap<>();
+  private static final AtomicLong fencingTokens = new AtomicLong();
+
+  private static class Holder {
+
+    private final long expiry; // In milliseconds
+
+    Holder(long expiry) {
+      this.expiry = expiry;
+    }
+  }
+
+  public static void reset() {
+    values.clear();
+    locks.clear();
+  }
+
+  @Override
+  public byte[] get(String key) {
+    return values.get(key);
+  }
+
+  @Override
+  public void set(String key, byte[] value) {
+    values.put(key, value);
+  }
+
+  @Override
+  public void set(String key, byte[] value, int expireIn) {
+    values.put(key, value);
+  }
+
+  @Override
+  public void delete(String key) {
+    values.remove(key);
+  }
+
+  @Override
+  public Lock acquireLock(String lockName) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    long deadline = TimeUtils.currentTimeMillis() + waitTime;
+    while (true) {
+      long now = TimeUtils.currentTimeMillis();
+      Holder mine = new Holder(now + leaseTime);
+      Holder holder =
+          locks.merge(lockName, mine, (current, next) -> (current.expiry > now) ? current : next);
+      if (holder == mine) {
+        return new Lease(fencingTokens.incrementAndGet(), leaseTime) {
+          @Override
+          protected void releaseLock() {
+            locks.remove(lockName, mine);
+          }
+        };
+      }
+      if (now >= deadline) {
+        return null;
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  @Override
+  public CheckResult checkConnection() {
+    return new CheckResult(true);
+  }
+}
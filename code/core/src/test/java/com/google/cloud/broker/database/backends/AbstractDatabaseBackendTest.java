@@ -13,8 +13,11 @@ package com.google.cloud.broker.database.backends;
 
 import static org.junit.Assert.*;
 
+import com.google.cloud.broker.database.DatabaseObjectNotFound;
+import com.google.cloud.broker.oauth.RefreshToken;
 import com.google.cloud.broker.settings.AppSettings;
 import com.google.cloud.broker.settings.SettingsOverride;
+import java.util.List;
 import java.util.Map;
 import org.junit.Test;
 
@@ -32,4 +35,24 @@ public class AbstractDatabaseBackendTest {
       }
     }
   }
+
+  @Test
+  public void testSaveAllAndDeleteAll() throws DatabaseObjectNotFound {
+    // The dummy backend relies on the default implementations
+    DummyDatabaseBackend backend = new DummyDatabaseBackend();
+    RefreshToken a = new RefreshToken("a", "abcd".getBytes(), 1111111111111L);
+    RefreshToken b = new RefreshToken(null, "efgh".getBytes(), 2222222222222L);
+    backend.saveAll(List.of(a, b));
+    assertEquals(a, backend.get(RefreshToken.class, "a"));
+    assertEquals(b, backend.get(RefreshToken.class, b.getDBId()));
+
+    backend.deleteAll(List.of(a, b));
+    try {
+      backend.get(RefreshToken.class, "a");
+      fail();
+    } catch (DatabaseObjectNotFound e) {
+      // Expected
+    }
+    DummyDatabaseBackend.getCache().clear();
+  }
 }
@@ -0,0 +1,87 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.utils;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.junit.Test;
+
+public class AsyncUtilsTest {
+
+  @Test
+  public void testBlockingExecutorDefaults() {
+    ThreadPoolExecutor executor = AsyncUtils.createBlockingExecutor();
+    try {
+      assertEquals(64, executor.getMaximumPoolSize());
+      assertEquals(1000, executor.getQueue().remainingCapacity());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testBlockingExecutorIsBounded() {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.BLOCKING_EXECUTOR_MAX_THREADS, 2,
+                AppSettings.BLOCKING_EXECUTOR_QUEUE_CAPACITY, 1))) {
+      ThreadPoolExecutor executor = AsyncUtils.createBlockingExecutor();
+      CountDownLatch latch = new CountDownLatch(1);
+      try {
+        // Keep both threads busy and fill up the queue
+        for (int i = 0; i < 3; i++) {
+          executor.execute(
+              () -> {
+                try {
+                  latch.await();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              });
+        }
+        assertEquals(2, executor.getPoolSize());
+
+        // The next call is rejected rather than run in the calling thread
+        Thread[] thread = new Thread[1];
+        try {
+          executor.execute(() -> thread[0] = Thread.currentThread());
+          fail();
+        } catch (RejectedExecutionException e) {
+          // Expected
+        }
+        assertNull(thread[0]);
+
+        // Rejected calls fail the returned future
+        CompletableFuture<String> future = AsyncUtils.supplyAsync(() -> "abcd", executor);
+        try {
+          AsyncUtils.join(future);
+          fail();
+        } catch (StatusRuntimeException e) {
+          assertEquals(Status.UNAVAILABLE.getCode(), e.getStatus().getCode());
+        }
+      } finally {
+        latch.countDown();
+        executor.shutdownNow();
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class SharedClientsTest {
+
+  @After
+  public void teardown() {
+    SharedClients.closeAll();
+  }
+
+  @Test
+  public void testClientIsShared() {
+    Object client = SharedClients.get("test", Object::new, c -> {});
+    assertSame(client, SharedClients.get("test", Object::new, c -> {}));
+    assertNotSame(client, SharedClients.get("other", Object::new, c -> {}));
+  }
+
+  @Test
+  public void testSlowFactoryOnlyBlocksSameClient() throws Exception {
+    CountDownLatch creating = new CountDownLatch(1);
+    CountDownLatch proceed = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Object> slow =
+          executor.submit(
+              () ->
+                  SharedClients.get(
+                      "slow",
+                      () -> {
+                        creating.countDown();
+                        try {
+                          proceed.await();
+                        } catch (InterruptedException e) {
+                          throw new RuntimeException(e);
+                        }
+                        return new Object();
+                      },
+                      c -> {}));
+      assertTrue(creating.await(5, TimeUnit.SECONDS));
+
+      // Other clients can be created while the slow client is being created
+      assertNotNull(SharedClients.get("fast", Object::new, c -> {}));
+
+      // Callers that want the slow client wait for it, and the factory only runs once
+      Future<Object> waiting =
+          executor.submit(
+              () ->
+                  SharedClients.get(
+                      "slow",
+                      () -> {
+                        throw new AssertionError("Created twice");
+                      },
+                      c -> {}));
+      proceed.countDown();
+      assertSame(slow.get(5, TimeUnit.SECONDS), waiting.get(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testClose() {
+    List<String> closed = new ArrayList<>();
+    Object client = SharedClients.get("test", Object::new, c -> closed.add("test"));
+    SharedClients.close("test");
+    assertEquals(List.of("test"), closed);
+    // A new client is created after the previous one was closed
+    assertNotSame(client, SharedClients.get("test", Object::new, c -> {}));
+  }
+
+  @Test
+  public void testCloseAll() {
+    List<String> closed = new ArrayList<>();
+    SharedClients.get("first", Object::new, c -> closed.add("first"));
+    SharedClients.get(
+        "failing",
+        Object::new,
+        c -> {
+          throw new RuntimeException("Failed");
+        });
+    SharedClients.get("last", Object::new, c -> closed.add("last"));
+    SharedClients.closeAll();
+    // Clients are closed in the reverse order of their creation, even if some fail to close
+    assertEquals(List.of("last", "first"), closed);
+  }
+}
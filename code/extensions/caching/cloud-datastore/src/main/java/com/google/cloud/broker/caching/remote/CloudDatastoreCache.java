@@ -12,123 +12,284 @@
 package com.google.cloud.broker.caching.remote;
 
 import com.google.cloud.broker.checks.CheckResult;
+import com.google.cloud.broker.datastore.DatastoreClientFactory;
 import com.google.cloud.broker.settings.AppSettings;
 import com.google.cloud.broker.utils.TimeUtils;
 import com.google.cloud.datastore.*;
 import com.google.cloud.datastore.StructuredQuery.*;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class CloudDatastoreCache extends AbstractRemoteCache {
 
   public static class DatastoreLock implements Lock {
 
     public static final String LOCK_KIND = "Lock";
+    static final String LOCK_OWNER_FIELD = "owner";
+    static final String LOCK_EXPIRY_FIELD = "expiry";
+    static final String LOCK_FENCING_TOKEN_FIELD = "fencing_token";
+    static final String LOCK_RELEASED_FIELD = "released";
+    // Time that released or expired locks are kept for before the cleanup deletes them, in
+    // milliseconds. Meanwhile, the fencing token of the next holder is derived from the previous
+    // one. Afterwards, the token seeded from the next holder's clock is greater anyway, unless the
+    // clocks are off by more than that.
+    static final long LOCK_RETENTION_TIME = 3600 * 1000L;
+    // Threads of this JVM that are waiting for a lock, by lock name. Only present while someone is
+    // waiting, so that the map doesn't grow with the number of locks ever used.
+    private static final ConcurrentMap<String, LocalWaiters> localWaiters =
+        new ConcurrentHashMap<>();
+
+    private static class LocalWaiters {
+
+      private int count; // Guarded by the localWaiters map
+      private long releases; // Guarded by this object's monitor
+    }
+
     private Key key;
     private Datastore datastore;
-    int deadlockTimeout =
-        5 * 1000; // Maximum time that someone can hold the lock for. In milliseconds.
-    int patienceTimeout = 15 * 1000; // Maximum time that one is willing to wait. In milliseconds.
-    int waitInterval = 500; // Wait time interval. In milliseconds.
+    private final String owner = UUID.randomUUID().toString();
+    private long fencingToken;
+    long deadlockTimeout; // Maximum time that someone can hold the lock for. In milliseconds.
+    long patienceTimeout; // Maximum time that one is willing to wait. In milliseconds.
+    long initialBackoff; // First wait between two attempts. In milliseconds.
+    long maxBackoff; // Maximum wait between two attempts. In milliseconds.
 
     public DatastoreLock(String key) {
       datastore = getService();
       KeyFactory keyFactory = datastore.newKeyFactory().setKind(LOCK_KIND);
       this.key = keyFactory.newKey(key);
+      com.typesafe.config.Config settings = AppSettings.getInstance();
+      deadlockTimeout = settings.getLong(AppSettings.DATASTORE_LOCK_DEADLOCK_TIMEOUT);
+      patienceTimeout = settings.getLong(AppSettings.DATASTORE_LOCK_PATIENCE_TIMEOUT);
+      initialBackoff = settings.getLong(AppSettings.DATASTORE_LOCK_INITIAL_BACKOFF);
+      maxBackoff = settings.getLong(AppSettings.DATASTORE_LOCK_MAX_BACKOFF);
     }
 
-    private void waitForAWhile() {
-      try {
-        Thread.sleep(waitInterval);
-      } catch (InterruptedException ie) {
-        throw new RuntimeException(ie);
+    public DatastoreLock(String key, long leaseTime) {
+      this(key);
+      this.deadlockTimeout = leaseTime;
+    }
+
+    long getFencingToken() {
+      return fencingToken;
+    }
+
+    /**
+     * Returns the time at which the given lock entity expires, in milliseconds, or 0 if the lock
+     * was released.
+     */
+    private long getExpiry(Entity lock) {
+      if (lock.contains(LOCK_EXPIRY_FIELD)) {
+        return lock.getLong(LOCK_EXPIRY_FIELD);
       }
+      // Lock created by an older version of the broker
+      return lock.getLong("creation_time") + deadlockTimeout;
     }
 
-    @Override
-    public void lock() {
-      long start = TimeUtils.currentTimeMillis();
-      while (true) {
-        if (TimeUtils.currentTimeMillis() > start + patienceTimeout) {
-          // We've waited too long. Bail out.
-          throw new RuntimeException("Ran out of patience");
+    /**
+     * Returns true if the given lock entity was released or expired before the given time, so that
+     * it may be deleted.
+     */
+    static boolean isStale(Entity lock, long cutoff) {
+      if (!lock.contains(LOCK_EXPIRY_FIELD)) {
+        return false;
+      }
+      long expiry = lock.getLong(LOCK_EXPIRY_FIELD);
+      if (expiry == 0) {
+        return lock.contains(LOCK_RELEASED_FIELD) && lock.getLong(LOCK_RELEASED_FIELD) < cutoff;
+      }
+      return expiry < cutoff;
+    }
+
+    /**
+     * Makes one attempt at acquiring the lock. Returns true if the lock was acquired, or false if
+     * someone else currently holds it.
+     */
+    private boolean attempt() {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Entity lock = transaction.get(key);
+        long now = TimeUtils.currentTimeMillis();
+        long token = now;
+        if (lock != null) {
+          if (now < getExpiry(lock)) {
+            // Someone else is holding the lock
+            return false;
+          }
+          // The lock was released or the previous lease has expired, so we take over the lock.
+          // The fencing token must be greater than the previous holder's, even if our clock is
+          // behind.
+          if (lock.contains(LOCK_FENCING_TOKEN_FIELD)) {
+            token = Math.max(now, lock.getLong(LOCK_FENCING_TOKEN_FIELD) + 1);
+          }
         }
-        // Look up the lock entry
-        Transaction transaction = datastore.newTransaction();
-        try {
-          Entity lock = transaction.get(key);
-          if (lock == null) { // No one has created the lock yet
-            // Let's attempt to create the lock
-            Entity.Builder builder = Entity.newBuilder(key);
-            builder.set("creation_time", TimeUtils.currentTimeMillis());
-            Entity entity = builder.build();
-            try {
-              transaction.add(entity);
-              transaction.commit();
-            } catch (DatastoreException e) {
-              if (e.getReason().equals("ALREADY_EXISTS") || e.getReason().equals("ABORTED")) {
-                // Someone just beat us to the punch, so we wait for a while...
-                waitForAWhile();
-                // ... then try again
-                continue;
-              } else {
-                // Unhandled error
-                throw new RuntimeException(e);
-              }
-            }
-            // We've got the lock. Our work is done here.
-            return;
-          } else {
-            // Someone else already owns the lock.
-            // Check if the lock is still alive
-            if (TimeUtils.currentTimeMillis() > lock.getLong("creation_time") + deadlockTimeout) {
-              try {
-                // Lock was been created too long ago, so we delete it to avoid deadlock
-                transaction.delete(key);
-                transaction.commit();
-              } catch (DatastoreException e) {
-                if (e.getReason().equals("ABORTED")) {
-                  // Someone else might have tried to delete or update the lock,
-                  // so we ignore the deletion failure.
-                } else {
-                  // Unhandled error
-                  throw new RuntimeException(e);
-                }
-              }
-            } else {
-              // Someone else is holding the lock, so we wait for a while...
-              waitForAWhile();
-            }
+        Entity.Builder builder = Entity.newBuilder(key);
+        builder.set(LOCK_OWNER_FIELD, owner);
+        builder.set(LOCK_EXPIRY_FIELD, now + deadlockTimeout);
+        builder.set(LOCK_FENCING_TOKEN_FIELD, token);
+        transaction.put(builder.build());
+        transaction.commit();
+        fencingToken = token;
+        return true;
+      } catch (DatastoreException e) {
+        if (e.getReason().equals("ABORTED")) {
+          // Someone else just updated the lock
+          return false;
+        }
+        // Unhandled error
+        throw new RuntimeException(e);
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+
+    /**
+     * Attempts to acquire the lock, waiting for at most the given time (in milliseconds). Returns
+     * true if the lock was acquired.
+     */
+    boolean acquire(long waitTime) {
+      try {
+        return acquireInterruptibly(waitTime);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * Attempts to acquire the lock, waiting for at most the given time (in milliseconds). Between
+     * two attempts, waits for an exponentially growing, randomized delay so that contending
+     * waiters don't retry in lockstep, or until the lock is released by another thread of this
+     * JVM. Returns true if the lock was acquired.
+     */
+    private boolean acquireInterruptibly(long waitTime) throws InterruptedException {
+      long deadline = TimeUtils.currentTimeMillis() + waitTime;
+      long backoff = initialBackoff;
+      LocalWaiters waiters =
+          localWaiters.compute(
+              key.getName(),
+              (name, existing) -> {
+                LocalWaiters result = (existing == null) ? new LocalWaiters() : existing;
+                result.count++;
+                return result;
+              });
+      try {
+        while (true) {
+          long releases;
+          synchronized (waiters) {
+            releases = waiters.releases;
+          }
+          if (attempt()) {
+            return true;
           }
-        } finally {
-          if (transaction.isActive()) {
-            transaction.rollback();
+          long remaining = deadline - TimeUtils.currentTimeMillis();
+          if (remaining <= 0) {
+            return false;
           }
+          // Equal jitter: wait between half and all of the current backoff
+          long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+          synchronized (waiters) {
+            // Skip the wait if the lock was released locally since the last attempt
+            if (waiters.releases == releases) {
+              waiters.wait(Math.max(1, Math.min(delay, remaining)));
+            }
+          }
+          backoff = Math.min(backoff * 2, maxBackoff);
+        }
+      } finally {
+        localWaiters.computeIfPresent(
+            key.getName(), (name, existing) -> (--existing.count == 0) ? null : existing);
+      }
+    }
+
+    /** Wakes up the threads of this JVM that are waiting for the lock, so they retry right away. */
+    private void notifyLocalWaiters() {
+      LocalWaiters waiters = localWaiters.get(key.getName());
+      if (waiters != null) {
+        synchronized (waiters) {
+          waiters.releases++;
+          waiters.notifyAll();
         }
       }
     }
 
+    @Override
+    public void lock() {
+      if (!acquire(patienceTimeout)) {
+        // We've waited too long. Bail out.
+        throw new RuntimeException("Ran out of patience");
+      }
+    }
+
     @Override
     public void unlock() {
-      datastore.delete(key);
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Entity lock = transaction.get(key);
+        // Only release the lock if we still own it, i.e. if our lease hasn't been taken over.
+        // The entity is kept for a while, without an owner, so that the next holder's fencing token
+        // is derived from ours rather than from its own clock.
+        if (lock != null
+            && lock.contains(LOCK_OWNER_FIELD)
+            && owner.equals(lock.getString(LOCK_OWNER_FIELD))) {
+          Entity.Builder builder = Entity.newBuilder(key);
+          builder.set(LOCK_EXPIRY_FIELD, 0);
+          builder.set(LOCK_FENCING_TOKEN_FIELD, fencingToken);
+          builder.set(LOCK_RELEASED_FIELD, TimeUtils.currentTimeMillis());
+          transaction.put(builder.build());
+          transaction.commit();
+          notifyLocalWaiters();
+        }
+      } catch (DatastoreException e) {
+        if (!e.getReason().equals("ABORTED")) {
+          // Unhandled error
+          throw new RuntimeException(e);
+        }
+        // Someone else took over the lock in the meantime, so there's nothing left to release
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
     }
 
     @Override
     public void lockInterruptibly() throws InterruptedException {
-      throw new UnsupportedOperationException();
+      if (!acquireInterruptibly(patienceTimeout)) {
+        throw new RuntimeException("Ran out of patience");
+      }
     }
 
     @Override
     public boolean tryLock() {
-      throw new UnsupportedOperationException();
+      return attempt();
     }
 
     @Override
     public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-      throw new UnsupportedOperationException();
+      return acquireInterruptibly(unit.toMillis(time));
     }
 
     @Override
@@ -140,10 +301,58 @@ public class CloudDatastoreCache extends AbstractRemoteCache {
   public static final String CACHE_KIND = "Cache";
   public static final String CACHE_VALUE_FIELD = "value";
   public static final String CACHE_EXPIRY_FIELD = "expiry";
+  // Maximum number of entities read or written in a single batch request
+  static final int MAX_BATCH_SIZE = 500;
+  // Checkpoints of the ranges of expired items that are being cleaned up
+  public static final String CLEANUP_KIND = "CacheCleanup";
+  static final String CLEANUP_START_FIELD = "start";
+  static final String CLEANUP_END_FIELD = "end";
+  static final String CLEANUP_CURSOR_FIELD = "cursor";
+  static final String CLEANUP_DELETED_FIELD = "deleted";
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Range of expiry times, from start (inclusive) to end (exclusive), to be cleaned up. */
+  private static class CleanupRange {
+
+    private final Key checkpointKey; // Null if the progress isn't checkpointed
+    private final long start;
+    private final long end;
+    private Cursor cursor; // Position of the last deleted item, if any
+    private long numDeletedItems;
+
+    CleanupRange(Key checkpointKey, long start, long end) {
+      this.checkpointKey = checkpointKey;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + start + ", " + end + ")";
+    }
+
+    Entity toCheckpoint() {
+      Entity.Builder builder = Entity.newBuilder(checkpointKey);
+      builder.set(CLEANUP_START_FIELD, start);
+      builder.set(CLEANUP_END_FIELD, end);
+      builder.set(CLEANUP_DELETED_FIELD, numDeletedItems);
+      if (cursor != null) {
+        builder.set(
+            CLEANUP_CURSOR_FIELD,
+            StringValue.newBuilder(cursor.toUrlSafe()).setExcludeFromIndexes(true).build());
+      }
+      return builder.build();
+    }
+  }
+
+  // Number of ranges of expired items that are cleaned up in parallel
+  int cleanupParallelism =
+      AppSettings.getInstance().getInt(AppSettings.DATASTORE_CLEANUP_PARALLELISM);
 
   private static Datastore getService() {
-    String projectId = AppSettings.getInstance().getString(AppSettings.GCP_PROJECT);
-    return DatastoreOptions.newBuilder().setProjectId(projectId).build().getService();
+    return DatastoreClientFactory.getClient();
   }
 
   @Override
@@ -153,18 +362,42 @@ public class CloudDatastoreCache extends AbstractRemoteCache {
     Key datastoreKey = keyFactory.newKey(key);
     Entity entity = datastore.get(datastoreKey);
     if (entity != null) {
-      long expiry = entity.getLong(CACHE_EXPIRY_FIELD);
-      long now = TimeUtils.currentTimeMillis();
-      if (expiry == 0 || now < expiry) {
-        return entity.getBlob(CACHE_VALUE_FIELD).toByteArray();
-      }
+      return getValue(entity);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the value of the given cache entity, or null if the entity has expired. Entities with
+   * an expiry of 0 never expire.
+   */
+  private static byte[] getValue(Entity entity) {
+    long expiry = entity.getLong(CACHE_EXPIRY_FIELD);
+    long now = TimeUtils.currentTimeMillis();
+    if (expiry == 0 || now < expiry) {
+      return entity.getBlob(CACHE_VALUE_FIELD).toByteArray();
     }
     return null;
   }
 
+  /** Creates a cache entity that expires at the given time (in milliseconds), or never if 0. */
+  private static Entity createEntityExpiringAt(Key key, byte[] value, long expiry) {
+    Entity.Builder builder = Entity.newBuilder(key);
+    builder.set(CACHE_VALUE_FIELD, BlobValue.of(Blob.copyFrom(value)));
+    builder.set(CACHE_EXPIRY_FIELD, expiry);
+    return builder.build();
+  }
+
+  private static Entity createEntity(Key key, byte[] value, int expireIn) {
+    return createEntityExpiringAt(key, value, TimeUtils.currentTimeMillis() + expireIn * 1000L);
+  }
+
   @Override
   public void set(String key, byte[] value) {
-    set(key, value, 0);
+    Datastore datastore = getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(CACHE_KIND);
+    Key datastoreKey = keyFactory.newKey(key);
+    datastore.put(createEntityExpiringAt(datastoreKey, value, 0));
   }
 
   @Override
@@ -172,12 +405,7 @@ public class CloudDatastoreCache extends AbstractRemoteCache {
     Datastore datastore = getService();
     KeyFactory keyFactory = datastore.newKeyFactory().setKind(CACHE_KIND);
     Key datastoreKey = keyFactory.newKey(key);
-    Entity.Builder builder = Entity.newBuilder(datastoreKey);
-    long now = TimeUtils.currentTimeMillis();
-    builder.set(CACHE_VALUE_FIELD, BlobValue.of(Blob.copyFrom(value)));
-    builder.set(CACHE_EXPIRY_FIELD, now + expireIn * 1000);
-    Entity entity = builder.build();
-    datastore.put(entity);
+    datastore.put(createEntity(datastoreKey, value, expireIn));
   }
 
   @Override
@@ -188,35 +416,300 @@ public class CloudDatastoreCache extends AbstractRemoteCache {
     datastore.delete(datastoreKey);
   }
 
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    Datastore datastore = getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(CACHE_KIND);
+    List<Key> datastoreKeys = new ArrayList<>();
+    for (String key : keys) {
+      datastoreKeys.add(keyFactory.newKey(key));
+    }
+    Map<String, byte[]> values = new HashMap<>();
+    for (List<Key> batch : partition(datastoreKeys)) {
+      // Entities that don't exist are skipped
+      Iterator<Entity> entities = datastore.get(batch);
+      while (entities.hasNext()) {
+        Entity entity = entities.next();
+        byte[] value = getValue(entity);
+        if (value != null) {
+          values.put(entity.getKey().getName(), value);
+        }
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public void setAll(Map<String, byte[]> values, int expireIn) {
+    Datastore datastore = getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(CACHE_KIND);
+    List<FullEntity<?>> entities = new ArrayList<>();
+    for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+      entities.add(createEntity(keyFactory.newKey(entry.getKey()), entry.getValue(), expireIn));
+    }
+    for (List<FullEntity<?>> batch : partition(entities)) {
+      datastore.put(batch.toArray(new FullEntity<?>[0]));
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    Datastore datastore = getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(CACHE_KIND);
+    List<Key> datastoreKeys = new ArrayList<>();
+    for (String key : keys) {
+      datastoreKeys.add(keyFactory.newKey(key));
+    }
+    for (List<Key> batch : partition(datastoreKeys)) {
+      datastore.delete(batch.toArray(new Key[0]));
+    }
+  }
+
+  /** Splits the given list into batches that don't exceed the maximum batch size. */
+  private static <T> List<List<T>> partition(List<T> list) {
+    List<List<T>> batches = new ArrayList<>();
+    for (int i = 0; i < list.size(); i += MAX_BATCH_SIZE) {
+      batches.add(list.subList(i, Math.min(i + MAX_BATCH_SIZE, list.size())));
+    }
+    return batches;
+  }
+
   public int deleteExpiredItems() {
     return deleteExpiredItems(null);
   }
 
+  /**
+   * Deletes the expired cache items, in batches. If a limit is given, then only that number of the
+   * longest expired items are deleted. Otherwise, the expiry times are split into ranges that are
+   * cleaned up in parallel. The progress of each range is checkpointed in Cloud Datastore, so that
+   * an interrupted cleanup resumes where it stopped the next time this method is called. Stale
+   * locks are deleted as well.
+   *
+   * @return The number of deleted items, not counting the locks.
+   */
   public int deleteExpiredItems(Integer limit) {
     Datastore datastore = getService();
     long now = TimeUtils.currentTimeMillis();
-    KeyQuery.Builder queryBuilder =
-        Query.newKeyQueryBuilder()
-            .setKind(CACHE_KIND)
-            .setFilter(PropertyFilter.le(CACHE_EXPIRY_FIELD, now))
-            .setOrderBy(OrderBy.asc(CACHE_EXPIRY_FIELD));
+    int numDeletedLocks = deleteStaleLocks(datastore, now - DatastoreLock.LOCK_RETENTION_TIME);
+    if (numDeletedLocks > 0) {
+      logger.info(String.format("Deleted %d stale lock(s)", numDeletedLocks));
+    }
     if (limit != null) {
-      queryBuilder.setLimit(limit);
+      // Delete the longest expired items first, so the range can't be split. Items with an expiry
+      // of 0 never expire, so they're left out.
+      return cleanUp(datastore, new CleanupRange(null, 1, now + 1), limit);
+    }
+    List<CleanupRange> ranges = loadCleanupRanges(datastore);
+    if (ranges.isEmpty()) {
+      ranges = createCleanupRanges(datastore, now);
+    } else {
+      logger.info("Resuming the cleanup of " + ranges.size() + " range(s) of expired items");
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(cleanupParallelism);
+    try {
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (CleanupRange range : ranges) {
+        futures.add(executor.submit(() -> cleanUp(datastore, range, Integer.MAX_VALUE)));
+      }
+      int numDeletedItems = 0;
+      for (Future<Integer> future : futures) {
+        numDeletedItems += future.get();
+      }
+      return numDeletedItems;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Returns the ranges left over by a previous cleanup that didn't complete, if any. */
+  private static List<CleanupRange> loadCleanupRanges(Datastore datastore) {
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind(CLEANUP_KIND).build();
+    QueryResults<Entity> entities = datastore.run(query);
+    List<CleanupRange> ranges = new ArrayList<>();
+    while (entities.hasNext()) {
+      Entity entity = entities.next();
+      CleanupRange range =
+          new CleanupRange(
+              entity.getKey(),
+              entity.getLong(CLEANUP_START_FIELD),
+              entity.getLong(CLEANUP_END_FIELD));
+      range.numDeletedItems = entity.getLong(CLEANUP_DELETED_FIELD);
+      if (entity.contains(CLEANUP_CURSOR_FIELD)) {
+        range.cursor = Cursor.fromUrlSafe(entity.getString(CLEANUP_CURSOR_FIELD));
+      }
+      ranges.add(range);
+    }
+    return ranges;
+  }
+
+  /**
+   * Splits the expiry times of the items that expired before the given time into ranges of equal
+   * length, and saves the ranges' checkpoints.
+   */
+  private List<CleanupRange> createCleanupRanges(Datastore datastore, long now) {
+    Query<ProjectionEntity> query =
+        Query.newProjectionEntityQueryBuilder()
+            .setKind(CACHE_KIND)
+            .setProjection(CACHE_EXPIRY_FIELD)
+            .setFilter(
+                CompositeFilter.and(
+                    // Items with an expiry of 0 never expire
+                    PropertyFilter.gt(CACHE_EXPIRY_FIELD, 0),
+                    PropertyFilter.le(CACHE_EXPIRY_FIELD, now)))
+            .setOrderBy(OrderBy.asc(CACHE_EXPIRY_FIELD))
+            .setLimit(1)
+            .build();
+    QueryResults<ProjectionEntity> results = datastore.run(query);
+    if (!results.hasNext()) {
+      // Nothing has expired
+      return new ArrayList<>();
+    }
+    long start = results.next().getLong(CACHE_EXPIRY_FIELD);
+    long end = now + 1;
+    int numRanges = (int) Math.min(cleanupParallelism, end - start);
+    long length = (end - start) / numRanges;
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(CLEANUP_KIND);
+    List<CleanupRange> ranges = new ArrayList<>();
+    List<Entity> checkpoints = new ArrayList<>();
+    for (int i = 0; i < numRanges; i++) {
+      long rangeStart = start + i * length;
+      long rangeEnd = (i == numRanges - 1) ? end : rangeStart + length;
+      CleanupRange range =
+          new CleanupRange(keyFactory.newKey(String.valueOf(i)), rangeStart, rangeEnd);
+      ranges.add(range);
+      checkpoints.add(range.toCheckpoint());
     }
-    KeyQuery query = queryBuilder.build();
-    final QueryResults<Key> keys = datastore.run(query);
+    datastore.put(checkpoints.toArray(new Entity[0]));
+    return ranges;
+  }
+
+  /**
+   * Deletes the expired items in the given range, in batches, until the given number of items has
+   * been deleted or until no items are left in the range.
+   */
+  private static int cleanUp(Datastore datastore, CleanupRange range, int limit) {
     int numDeletedItems = 0;
-    while (keys.hasNext()) {
-      Key key = keys.next();
-      datastore.delete(key);
-      numDeletedItems++;
-      if (limit != null && limit > 0 && numDeletedItems == limit) {
-        return limit;
+    while (numDeletedItems < limit) {
+      int batchSize = Math.min(MAX_BATCH_SIZE, limit - numDeletedItems);
+      KeyQuery.Builder queryBuilder =
+          Query.newKeyQueryBuilder()
+              .setKind(CACHE_KIND)
+              .setFilter(
+                  CompositeFilter.and(
+                      PropertyFilter.ge(CACHE_EXPIRY_FIELD, range.start),
+                      PropertyFilter.lt(CACHE_EXPIRY_FIELD, range.end)))
+              .setOrderBy(OrderBy.asc(CACHE_EXPIRY_FIELD))
+              .setLimit(batchSize);
+      if (range.cursor != null) {
+        queryBuilder.setStartCursor(range.cursor);
+      }
+      QueryResults<Key> results = datastore.run(queryBuilder.build());
+      List<Key> keys = new ArrayList<>();
+      results.forEachRemaining(keys::add);
+      if (!keys.isEmpty()) {
+        datastore.delete(keys.toArray(new Key[0]));
+        numDeletedItems += keys.size();
+        range.numDeletedItems += keys.size();
+        range.cursor = results.getCursorAfter();
+        if (range.checkpointKey != null) {
+          datastore.put(range.toCheckpoint());
+        }
+        logger.info(
+            String.format(
+                "Deleted %d expired item(s) in range %s (%d so far)",
+                keys.size(), range, range.numDeletedItems));
+      }
+      if (keys.size() < batchSize) {
+        // The range is exhausted
+        break;
       }
     }
+    if (range.checkpointKey != null) {
+      datastore.delete(range.checkpointKey);
+    }
     return numDeletedItems;
   }
 
+  /**
+   * Deletes the locks that were released or that expired before the given time, in batches.
+   *
+   * @return The number of deleted locks.
+   */
+  private static int deleteStaleLocks(Datastore datastore, long cutoff) {
+    return deleteStaleLocks(
+            datastore, PropertyFilter.lt(DatastoreLock.LOCK_RELEASED_FIELD, cutoff), cutoff)
+        + deleteStaleLocks(
+            datastore,
+            CompositeFilter.and(
+                // Released locks have an expiry of 0
+                PropertyFilter.gt(DatastoreLock.LOCK_EXPIRY_FIELD, 0),
+                PropertyFilter.lt(DatastoreLock.LOCK_EXPIRY_FIELD, cutoff)),
+            cutoff);
+  }
+
+  private static int deleteStaleLocks(Datastore datastore, Filter filter, long cutoff) {
+    int numDeletedLocks = 0;
+    Cursor cursor = null;
+    while (true) {
+      KeyQuery.Builder queryBuilder =
+          Query.newKeyQueryBuilder()
+              .setKind(DatastoreLock.LOCK_KIND)
+              .setFilter(filter)
+              .setLimit(MAX_BATCH_SIZE);
+      if (cursor != null) {
+        queryBuilder.setStartCursor(cursor);
+      }
+      QueryResults<Key> results = datastore.run(queryBuilder.build());
+      List<Key> keys = new ArrayList<>();
+      results.forEachRemaining(keys::add);
+      if (!keys.isEmpty()) {
+        numDeletedLocks += deleteIfStale(datastore, keys, cutoff);
+        cursor = results.getCursorAfter();
+      }
+      if (keys.size() < MAX_BATCH_SIZE) {
+        return numDeletedLocks;
+      }
+    }
+  }
+
+  /**
+   * Deletes the given locks, except those that were acquired again since they were found to be
+   * stale. Returns the number of deleted locks.
+   */
+  private static int deleteIfStale(Datastore datastore, List<Key> keys, long cutoff) {
+    Transaction transaction = datastore.newTransaction();
+    try {
+      List<Key> staleKeys = new ArrayList<>();
+      Iterator<Entity> locks = transaction.get(keys.toArray(new Key[0]));
+      while (locks.hasNext()) {
+        Entity lock = locks.next();
+        if (DatastoreLock.isStale(lock, cutoff)) {
+          staleKeys.add(lock.getKey());
+        }
+      }
+      transaction.delete(staleKeys.toArray(new Key[0]));
+      transaction.commit();
+      return staleKeys.size();
+    } catch (DatastoreException e) {
+      if (e.getReason().equals("ABORTED")) {
+        // Some of the locks were just updated. The ones that are still stale get deleted by the
+        // next cleanup.
+        return 0;
+      }
+      // Unhandled error
+      throw new RuntimeException(e);
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
   @Override
   public Lock acquireLock(String lockName) {
     DatastoreLock lock = new DatastoreLock(lockName);
@@ -224,6 +717,20 @@ public class CloudDatastoreCache extends AbstractRemoteCache {
     return lock;
   }
 
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    DatastoreLock lock = new DatastoreLock(lockName, leaseTime);
+    if (!lock.acquire(waitTime)) {
+      return null;
+    }
+    return new Lease(lock.getFencingToken(), leaseTime) {
+      @Override
+      protected void releaseLock() {
+        lock.unlock();
+      }
+    };
+  }
+
   @Override
   public CheckResult checkConnection() {
     try {
@@ -11,6 +11,7 @@
 
 package com.google.cloud.broker.caching.remote;
 
+import com.google.cloud.broker.utils.SharedClients;
 import java.lang.invoke.MethodHandles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +28,7 @@ public class DatastoreCacheCleanup {
     }
     CloudDatastoreCache cache = new CloudDatastoreCache();
     int numDeletedItems = cache.deleteExpiredItems(limit);
+    SharedClients.closeAll();
     logger.info(klass.getSimpleName() + " - Deleted expired item(s): " + numDeletedItems);
   }
 }
@@ -15,13 +15,18 @@ import static com.google.cloud.broker.caching.remote.CloudDatastoreCache.*;
 import static org.junit.Assert.*;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
+import com.google.cloud.broker.caching.CacheGenerations;
+import com.google.cloud.broker.caching.local.LocalCache;
 import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
 import com.google.cloud.broker.utils.TimeUtils;
 import com.google.cloud.datastore.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Lock;
 import org.junit.After;
@@ -60,11 +65,13 @@ public class CloudDatastoreCacheTest {
   public void teardown() {
     // Delete all records
     Datastore datastore = getService();
-    Query<Entity> query = Query.newEntityQueryBuilder().setKind(CACHE_KIND).build();
-    QueryResults<Entity> entities = datastore.run(query);
-    while (entities.hasNext()) {
-      Entity entity = entities.next();
-      datastore.delete(entity.getKey());
+    for (String kind : List.of(CACHE_KIND, CLEANUP_KIND, DatastoreLock.LOCK_KIND)) {
+      Query<Entity> query = Query.newEntityQueryBuilder().setKind(kind).build();
+      QueryResults<Entity> entities = datastore.run(query);
+      while (entities.hasNext()) {
+        Entity entity = entities.next();
+        datastore.delete(entity.getKey());
+      }
     }
   }
 
@@ -102,9 +109,71 @@ public class CloudDatastoreCacheTest {
     // Let the backend set the key/value
     cache.set("test", "abcd".getBytes());
 
-    // Check that the key/value was correctly set
+    // Check that the key/value was correctly set, without an expiry
     entity = datastore.get(datastoreKey);
     assertArrayEquals("abcd".getBytes(), entity.getBlob(CACHE_VALUE_FIELD).toByteArray());
+    assertEquals(0, entity.getLong(CACHE_EXPIRY_FIELD));
+    assertArrayEquals("abcd".getBytes(), cache.get("test"));
+  }
+
+  @Test
+  public void testGetAll() {
+    // Create some records in the cache, including one that has expired
+    Datastore datastore = getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(CACHE_KIND);
+    long now = TimeUtils.currentTimeMillis();
+    datastore.put(
+        Entity.newBuilder(keyFactory.newKey("test-1"))
+            .set(CACHE_VALUE_FIELD, BlobValue.of(Blob.copyFrom("abcd".getBytes())))
+            .set(CACHE_EXPIRY_FIELD, 0)
+            .build(),
+        Entity.newBuilder(keyFactory.newKey("test-2"))
+            .set(CACHE_VALUE_FIELD, BlobValue.of(Blob.copyFrom("efgh".getBytes())))
+            .set(CACHE_EXPIRY_FIELD, now + 60000)
+            .build(),
+        Entity.newBuilder(keyFactory.newKey("test-3"))
+            .set(CACHE_VALUE_FIELD, BlobValue.of(Blob.copyFrom("ijkl".getBytes())))
+            .set(CACHE_EXPIRY_FIELD, now - 1)
+            .build());
+
+    // Check that the backend retrieves all the keys that exist and haven't expired
+    Map<String, byte[]> values = cache.getAll(List.of("test-1", "test-2", "test-3", "whatever"));
+    assertEquals(2, values.size());
+    assertArrayEquals("abcd".getBytes(), values.get("test-1"));
+    assertArrayEquals("efgh".getBytes(), values.get("test-2"));
+  }
+
+  @Test
+  public void testSetAll() {
+    // Let the backend set more key/values than fit in a single batch
+    Map<String, byte[]> values = new HashMap<>();
+    for (int i = 0; i < MAX_BATCH_SIZE + 10; i++) {
+      values.put("test-" + i, ("value-" + i).getBytes());
+    }
+    cache.setAll(values, 60);
+
+    // Check that the key/values were correctly set
+    Map<String, byte[]> retrieved = cache.getAll(values.keySet());
+    assertEquals(values.size(), retrieved.size());
+    for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+      assertArrayEquals(entry.getValue(), retrieved.get(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void testDeleteAll() {
+    cache.setAll(
+        Map.of(
+            "test-1", "abcd".getBytes(), "test-2", "efgh".getBytes(), "test-3", "ijkl".getBytes()),
+        60);
+
+    // Let the backend delete some of the keys
+    cache.deleteAll(List.of("test-1", "test-2"));
+
+    // Check that only those keys were deleted
+    assertNull(cache.get("test-1"));
+    assertNull(cache.get("test-2"));
+    assertArrayEquals("ijkl".getBytes(), cache.get("test-3"));
   }
 
   @Test
@@ -208,6 +277,30 @@ public class CloudDatastoreCacheTest {
     assertEquals(keys.size() - deletedKeys.size(), numberItemsLeft);
   }
 
+  @Test
+  public void testItemsWithoutExpiryAreKept() {
+    cache.set("forever", "abcd".getBytes());
+    cache.set("expired", "abcd".getBytes(), -1);
+    assertEquals(1, cache.deleteExpiredItems());
+    assertEquals(0, cache.deleteExpiredItems(10));
+    assertArrayEquals("abcd".getBytes(), cache.get("forever"));
+  }
+
+  @Test
+  public void testBumpCacheGeneration() {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(AppSettings.REMOTE_CACHE, CloudDatastoreCache.class.getCanonicalName()))) {
+      String generation = CacheGenerations.bump("test");
+      // Read the generation back from Cloud Datastore rather than from the local cache
+      LocalCache.clear(CacheGenerations.LOCAL_CACHE_NAMESPACE);
+      assertEquals(generation, CacheGenerations.get("test"));
+      assertEquals("key#" + generation, CacheGenerations.getRemoteKey("test", "key"));
+    } finally {
+      LocalCache.clear(CacheGenerations.LOCAL_CACHE_NAMESPACE);
+    }
+  }
+
   @Test
   public void testDeleteExpiredItems() {
     // Delete all expired items
@@ -220,6 +313,84 @@ public class CloudDatastoreCacheTest {
     deleteExpiredItems(true);
   }
 
+  private static List<String> getRemainingKeys(String kind) {
+    Datastore datastore = getService();
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind(kind).build();
+    QueryResults<Entity> entities = datastore.run(query);
+    List<String> keys = new ArrayList<>();
+    while (entities.hasNext()) {
+      keys.add(entities.next().getKey().getName());
+    }
+    Collections.sort(keys);
+    return keys;
+  }
+
+  @Test
+  public void testDeleteExpiredItemsInParallel() {
+    // Mock the system time
+    mockStatic(TimeUtils.class);
+    long initialNow = 1000000000000L;
+    PowerMockito.when(TimeUtils.currentTimeMillis()).thenReturn(initialNow);
+
+    // Set some keys/values that expire one second apart
+    for (int i = 1; i <= 20; i++) {
+      cache.set(String.format("key-%02d", i), "foo".getBytes(), i);
+    }
+
+    // Change the system time to simulate elapsing time
+    PowerMockito.when(TimeUtils.currentTimeMillis()).thenReturn(initialNow + 10 * 1000);
+
+    // Delete expired items, using several ranges
+    CloudDatastoreCache parallelCache = new CloudDatastoreCache();
+    parallelCache.cleanupParallelism = 3;
+    assertEquals(10, parallelCache.deleteExpiredItems());
+
+    // Check that only the expired items were deleted, and that no checkpoints are left
+    List<String> expected = new ArrayList<>();
+    for (int i = 11; i <= 20; i++) {
+      expected.add(String.format("key-%02d", i));
+    }
+    assertEquals(expected, getRemainingKeys(CACHE_KIND));
+    assertTrue(getRemainingKeys(CLEANUP_KIND).isEmpty());
+  }
+
+  @Test
+  public void testDeleteExpiredItemsResumesFromCheckpoint() {
+    // Mock the system time
+    mockStatic(TimeUtils.class);
+    long initialNow = 1000000000000L;
+    PowerMockito.when(TimeUtils.currentTimeMillis()).thenReturn(initialNow);
+
+    // Set some keys/values
+    List<String> keys = Arrays.asList("a", "b", "c", "d", "e");
+    List<Integer> expireIns = Arrays.asList(1, 6, 7, 4, 3);
+    for (int i = 0; i < keys.size(); i++) {
+      cache.set(keys.get(i), "foo".getBytes(), expireIns.get(i));
+    }
+
+    // Simulate a previous cleanup that stopped before completing its only range
+    Datastore datastore = getService();
+    Key checkpointKey = datastore.newKeyFactory().setKind(CLEANUP_KIND).newKey("0");
+    datastore.put(
+        Entity.newBuilder(checkpointKey)
+            .set(CLEANUP_START_FIELD, 0)
+            .set(CLEANUP_END_FIELD, initialNow + 2 * 1000)
+            .set(CLEANUP_DELETED_FIELD, 0)
+            .build());
+
+    // Change the system time to simulate elapsing time
+    PowerMockito.when(TimeUtils.currentTimeMillis()).thenReturn(initialNow + 4 * 1000);
+
+    // Check that the cleanup only completes the interrupted range
+    assertEquals(1, cache.deleteExpiredItems());
+    assertEquals(List.of("b", "c", "d", "e"), getRemainingKeys(CACHE_KIND));
+    assertTrue(getRemainingKeys(CLEANUP_KIND).isEmpty());
+
+    // Check that the next cleanup starts over with the current time
+    assertEquals(2, cache.deleteExpiredItems());
+    assertEquals(List.of("b", "c"), getRemainingKeys(CACHE_KIND));
+  }
+
   @Test
   public void testLock() throws InterruptedException {
     String LOCK_NAME = "test-lock";
@@ -263,4 +434,122 @@ public class CloudDatastoreCacheTest {
     String result = String.join(",", list);
     assertTrue(result.equals("a1,b1,c1,a2,b2,c2") || result.equals("a2,b2,c2,a1,b1,c1"));
   }
+
+  @Test
+  public void testTryAcquire() {
+    String LOCK_NAME = "test-lease";
+    Lease lease = cache.tryAcquire(LOCK_NAME, 0, 60000);
+    assertNotNull(lease);
+
+    // The lock can't be acquired again until it's released
+    assertNull(cache.tryAcquire(LOCK_NAME, 0, 60000));
+
+    // Each new lease gets a greater fencing token
+    lease.release();
+    Lease nextLease = cache.tryAcquire(LOCK_NAME, 0, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testFencingTokenAfterClockGoesBack() {
+    mockStatic(TimeUtils.class);
+    long initialNow = 1000000000000L;
+    PowerMockito.when(TimeUtils.currentTimeMillis()).thenReturn(initialNow);
+    String LOCK_NAME = "test-fencing-token";
+    Lease lease = cache.tryAcquire(LOCK_NAME, 0, 60000);
+    assertNotNull(lease);
+    lease.release();
+
+    // The next lease's fencing token is still greater, even if its clock is behind
+    PowerMockito.when(TimeUtils.currentTimeMillis()).thenReturn(initialNow - 10000);
+    Lease nextLease = cache.tryAcquire(LOCK_NAME, 0, 60000);
+    assertNotNull(nextLease);
+    assertEquals(lease.getFencingToken() + 1, nextLease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testStaleLocksAreDeleted() {
+    mockStatic(TimeUtils.class);
+    long initialNow = 1000000000000L;
+    PowerMockito.when(TimeUtils.currentTimeMillis()).thenReturn(initialNow);
+    Lease released = cache.tryAcquire("released", 0, 60000);
+    released.release();
+    cache.tryAcquire("expired", 0, 60000);
+
+    // Move past the retention time, then release and acquire some more locks
+    long now = initialNow + 60000 + DatastoreLock.LOCK_RETENTION_TIME + 1;
+    PowerMockito.when(TimeUtils.currentTimeMillis()).thenReturn(now);
+    cache.tryAcquire("recently-released", 0, 60000).release();
+    Lease held = cache.tryAcquire("held", 0, 60000);
+
+    // Only the locks released or expired before the retention time are deleted
+    assertEquals(0, cache.deleteExpiredItems());
+    assertEquals(List.of("held", "recently-released"), getRemainingKeys(DatastoreLock.LOCK_KIND));
+
+    // The next fencing token of a deleted lock is seeded from the clock
+    Lease nextLease = cache.tryAcquire("released", 0, 60000);
+    assertTrue(nextLease.getFencingToken() > released.getFencingToken());
+    nextLease.release();
+    held.release();
+  }
+
+  @Test
+  public void testTryAcquireLeaseExpires() throws InterruptedException {
+    String LOCK_NAME = "test-lease-expiry";
+    Lease lease = cache.tryAcquire(LOCK_NAME, 0, 200);
+    assertNotNull(lease);
+
+    // The lock gets released automatically at the end of the lease, even if the holder is stuck
+    Thread.sleep(300);
+    assertTrue(lease.isExpired());
+    Lease nextLease = cache.tryAcquire(LOCK_NAME, 0, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+
+    // Releasing the expired lease doesn't release the lock that is now held by someone else
+    lease.release();
+    assertNull(cache.tryAcquire(LOCK_NAME, 0, 60000));
+    nextLease.release();
+  }
+
+  @Test
+  public void testTryLock() throws InterruptedException {
+    String LOCK_NAME = "test-try-lock";
+    DatastoreLock lock = new DatastoreLock(LOCK_NAME);
+    assertTrue(lock.tryLock());
+
+    // Someone else can't acquire the lock until it's released
+    DatastoreLock otherLock = new DatastoreLock(LOCK_NAME);
+    assertFalse(otherLock.tryLock());
+    assertFalse(otherLock.tryLock(200, TimeUnit.MILLISECONDS));
+    lock.unlock();
+    assertTrue(otherLock.tryLock(200, TimeUnit.MILLISECONDS));
+    otherLock.unlock();
+  }
+
+  @Test
+  public void testLocalWaitersAreNotified() throws Exception {
+    String LOCK_NAME = "test-local-notify";
+    DatastoreLock holder = new DatastoreLock(LOCK_NAME);
+    assertTrue(holder.tryLock());
+
+    // Without a notification, the waiter would only retry after a long backoff
+    DatastoreLock waiter = new DatastoreLock(LOCK_NAME);
+    waiter.initialBackoff = 60000;
+    waiter.maxBackoff = 60000;
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    Future<Boolean> acquired = executorService.submit(() -> waiter.tryLock(120, TimeUnit.SECONDS));
+
+    // Let the waiter make its first attempt, then release the lock
+    Thread.sleep(1000);
+    holder.unlock();
+
+    // Check that the waiter acquired the lock right after it was released
+    assertTrue(acquired.get(5, TimeUnit.SECONDS));
+    waiter.unlock();
+    executorService.shutdown();
+  }
 }
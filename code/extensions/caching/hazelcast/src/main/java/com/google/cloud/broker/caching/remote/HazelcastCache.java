@@ -0,0 +1,367 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import com.google.cloud.broker.checks.CheckResult;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.AsyncUtils;
+import com.google.cloud.broker.utils.SharedClients;
+import com.google.cloud.broker.utils.TimeUtils;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.IMap;
+import com.hazelcast.topic.ITopic;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Remote cache backend in which the broker instances form an embedded Hazelcast cluster among
+ * themselves, so that no separate cache service is needed. Each key is owned by one of the
+ * instances and copied to others, based on the replication factor.
+ */
+public class HazelcastCache extends AbstractRemoteCache {
+
+  static final String CACHE_MAP = "broker-cache";
+  static final String LEASE_MAP = "broker-cache-leases";
+  static final String INVALIDATION_TOPIC = "broker-cache-invalidation";
+  static final int LEASE_RECORD_LIFETIME = 24 * 3600; // In seconds
+  static final long LEASE_POLL_INTERVAL = 50; // In milliseconds
+
+  private HazelcastInstance hazelcast;
+  private final Supplier<Config> configSupplier;
+
+  public HazelcastCache() {
+    this(HazelcastCache::createConfig);
+  }
+
+  /** Creates a cache whose cluster member is started with the configuration from the supplier. */
+  HazelcastCache(Supplier<Config> configSupplier) {
+    this.configSupplier = configSupplier;
+  }
+
+  synchronized HazelcastInstance getHazelcast() {
+    if (hazelcast == null) {
+      Config config = configSupplier.get();
+      // The member leaves the cluster when the broker shuts down, so that its keys are handed over
+      // to the other members
+      hazelcast =
+          SharedClients.get(
+              "hazelcast:" + config.getInstanceName(),
+              () -> Hazelcast.newHazelcastInstance(config),
+              HazelcastInstance::shutdown);
+    }
+    return hazelcast;
+  }
+
+  /** Returns the Hazelcast configuration for the cluster set in the settings. */
+  static Config createConfig() {
+    com.typesafe.config.Config settings = AppSettings.getInstance();
+    int port = settings.getInt(AppSettings.HAZELCAST_CACHE_PORT);
+    List<String> members = settings.getStringList(AppSettings.HAZELCAST_CACHE_MEMBERS);
+    String serviceDns = settings.getString(AppSettings.HAZELCAST_CACHE_KUBERNETES_SERVICE_DNS);
+    int replicationFactor = settings.getInt(AppSettings.HAZELCAST_CACHE_REPLICATION_FACTOR);
+    if (replicationFactor < 1) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The `%s` setting must be at least 1",
+              AppSettings.HAZELCAST_CACHE_REPLICATION_FACTOR));
+    }
+    if (!members.isEmpty() && !serviceDns.isEmpty()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The `%s` and `%s` settings can't be used together",
+              AppSettings.HAZELCAST_CACHE_MEMBERS,
+              AppSettings.HAZELCAST_CACHE_KUBERNETES_SERVICE_DNS));
+    }
+
+    Config config = new Config();
+    config.setInstanceName("broker-cache");
+    config.setClusterName(settings.getString(AppSettings.HAZELCAST_CACHE_CLUSTER_NAME));
+    config.setProperty("hazelcast.logging.type", "slf4j");
+    config.setProperty("hazelcast.shutdownhook.policy", "GRACEFUL");
+    config.getNetworkConfig().setPort(port).setPortAutoIncrement(false);
+
+    // Peer discovery
+    JoinConfig join = config.getNetworkConfig().getJoin();
+    join.getMulticastConfig().setEnabled(false);
+    if (!serviceDns.isEmpty()) {
+      // The headless service's DNS record resolves to the addresses of all broker pods
+      join.getKubernetesConfig()
+          .setEnabled(true)
+          .setProperty("service-dns", serviceDns)
+          .setProperty("service-port", String.valueOf(port));
+    } else {
+      join.getTcpIpConfig().setEnabled(true).setMembers(members);
+    }
+
+    // Each partition has a primary copy and (replication factor - 1) backup copies, which are
+    // always stored on different members
+    config.addMapConfig(new MapConfig(CACHE_MAP).setBackupCount(replicationFactor - 1));
+    config.addMapConfig(
+        new MapConfig(LEASE_MAP)
+            .setBackupCount(replicationFactor - 1)
+            .setMaxIdleSeconds(LEASE_RECORD_LIFETIME));
+    return config;
+  }
+
+  private IMap<String, byte[]> getMap() {
+    return getHazelcast().getMap(CACHE_MAP);
+  }
+
+  private IMap<String, LeaseRecord> getLeaseMap() {
+    return getHazelcast().getMap(LEASE_MAP);
+  }
+
+  // The blocking methods wait for their asynchronous variants, so that both share the same
+  // implementation.
+
+  @Override
+  public byte[] get(String key) {
+    return AsyncUtils.join(getAsync(key));
+  }
+
+  @Override
+  public void set(String key, byte[] value) {
+    getMap().set(key, value);
+  }
+
+  @Override
+  public void set(String key, byte[] value, int expireIn) {
+    AsyncUtils.join(setAsync(key, value, expireIn));
+  }
+
+  @Override
+  public void delete(String key) {
+    AsyncUtils.join(deleteAsync(key));
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    // Hazelcast groups the keys by owner, and sends one request to each member
+    return getMap().getAll(new HashSet<>(keys));
+  }
+
+  @Override
+  public void setAll(Map<String, byte[]> values, int expireIn) {
+    AsyncUtils.join(setAllAsync(values, expireIn));
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    AsyncUtils.join(deleteAllAsync(keys));
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getAsync(String key) {
+    return getMap().getAsync(key).toCompletableFuture();
+  }
+
+  @Override
+  public CompletableFuture<Void> setAsync(String key, byte[] value, int expireIn) {
+    return getMap().setAsync(key, value, expireIn, TimeUnit.SECONDS).toCompletableFuture();
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAsync(String key) {
+    return getMap().removeAsync(key).toCompletableFuture().thenApply(previous -> null);
+  }
+
+  @Override
+  public CompletableFuture<Void> setAllAsync(Map<String, byte[]> values, int expireIn) {
+    // Send all requests at once, instead of waiting for each of them in turn
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    values.forEach((key, value) -> futures.add(setAsync(key, value, expireIn)));
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    keys.forEach(key -> futures.add(deleteAsync(key)));
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  @Override
+  public Lock acquireLock(String lockName) {
+    Lock lock = getHazelcast().getCPSubsystem().getLock(lockName);
+    lock.lock();
+    return lock;
+  }
+
+  /**
+   * Attempts to acquire the given lease. Leases are records of the lease map that are updated
+   * atomically on the member that owns them, like the Redis backend's Lua scripts. Records are
+   * kept after their lease ends, so that the fencing token keeps increasing.
+   */
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    String owner = UUID.randomUUID().toString();
+    long deadline = TimeUtils.currentTimeMillis() + waitTime;
+    while (true) {
+      long now = TimeUtils.currentTimeMillis();
+      long token =
+          getLeaseMap().executeOnKey(lockName, new AcquireProcessor(owner, now, leaseTime));
+      if (token > 0) {
+        return new HazelcastLease(lockName, owner, token, leaseTime);
+      }
+      if (TimeUtils.currentTimeMillis() + LEASE_POLL_INTERVAL > deadline) {
+        return null;
+      }
+      try {
+        Thread.sleep(LEASE_POLL_INTERVAL);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** State of a lease, stored in the lease map. */
+  static class LeaseRecord implements Serializable {
+
+    private final String owner; // Null once the lease has been released
+    private final long expiresAt; // In milliseconds
+    private final long fencingToken;
+
+    LeaseRecord(String owner, long expiresAt, long fencingToken) {
+      this.owner = owner;
+      this.expiresAt = expiresAt;
+      this.fencingToken = fencingToken;
+    }
+
+    boolean isHeld(long now) {
+      return owner != null && now < expiresAt;
+    }
+  }
+
+  /**
+   * Acquires the lease if no one holds it. Returns the new fencing token, or 0 if someone else
+   * holds the lease. Runs on the member that owns the lease record, and then again on its backups,
+   * so the current time is passed by the caller for all copies to end up in the same state.
+   */
+  static class AcquireProcessor implements EntryProcessor<String, LeaseRecord, Long> {
+
+    private final String owner;
+    private final long now; // In milliseconds
+    private final long leaseTime;
+
+    AcquireProcessor(String owner, long now, long leaseTime) {
+      this.owner = owner;
+      this.now = now;
+      this.leaseTime = leaseTime;
+    }
+
+    @Override
+    public Long process(Map.Entry<String, LeaseRecord> entry) {
+      LeaseRecord record = entry.getValue();
+      if (record != null && record.isHeld(now)) {
+        // Someone else is holding the lease
+        return 0L;
+      }
+      // The token must be greater than the previous holder's, even if the clock went back
+      long token = (record == null) ? now : Math.max(now, record.fencingToken + 1);
+      entry.setValue(new LeaseRecord(owner, now + leaseTime, token));
+      return token;
+    }
+  }
+
+  /** Releases the lease if it's still held by the given owner. */
+  static class ReleaseProcessor implements EntryProcessor<String, LeaseRecord, Boolean> {
+
+    private final String owner;
+
+    ReleaseProcessor(String owner) {
+      this.owner = owner;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<String, LeaseRecord> entry) {
+      LeaseRecord record = entry.getValue();
+      if (record == null || !owner.equals(record.owner)) {
+        // Has no effect if the lease has already expired and been acquired by someone else
+        return false;
+      }
+      entry.setValue(new LeaseRecord(null, 0, record.fencingToken));
+      return true;
+    }
+  }
+
+  class HazelcastLease extends Lease {
+
+    private final String lockName;
+    private final String owner;
+
+    HazelcastLease(String lockName, String owner, long fencingToken, long leaseTime) {
+      super(fencingToken, leaseTime);
+      this.lockName = lockName;
+      this.owner = owner;
+    }
+
+    @Override
+    protected void releaseLock() {
+      getLeaseMap().executeOnKey(lockName, new ReleaseProcessor(owner));
+    }
+  }
+
+  private ITopic<String> getInvalidationTopic() {
+    return getHazelcast().getTopic(INVALIDATION_TOPIC);
+  }
+
+  @Override
+  public void publishInvalidation(String namespace, String key) {
+    // Namespaces don't contain line breaks, so the first one separates the namespace from the key
+    getInvalidationTopic().publish(namespace + "\n" + key);
+  }
+
+  @Override
+  public void subscribeInvalidations(BiConsumer<String, String> listener) {
+    getInvalidationTopic()
+        .addMessageListener(
+            message -> {
+              String content = message.getMessageObject();
+              int separator = content.indexOf('\n');
+              if (separator > 0) {
+                listener.accept(content.substring(0, separator), content.substring(separator + 1));
+              }
+            });
+  }
+
+  @Override
+  public CheckResult checkConnection() {
+    try {
+      if (!getHazelcast().getLifecycleService().isRunning()) {
+        return new CheckResult(false, "The Hazelcast member isn't running");
+      }
+      return new CheckResult(true);
+    } catch (Exception e) {
+      StringWriter sw = new StringWriter();
+      e.printStackTrace(new PrintWriter(sw));
+      return new CheckResult(false, sw.toString());
+    }
+  }
+}
@@ -0,0 +1,244 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
+import com.google.cloud.broker.utils.SharedClients;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.MapConfig;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.*;
+
+public class HazelcastCacheTest {
+
+  private static final List<String> MEMBERS =
+      List.of("127.0.0.1:5801", "127.0.0.1:5802", "127.0.0.1:5803");
+
+  // Two members of the same cluster, as if run by two broker instances
+  private static HazelcastCache cacheA;
+  private static HazelcastCache cacheB;
+
+  @ClassRule
+  public static SettingsOverride settingsOverride =
+      new SettingsOverride(
+          Map.of(
+              AppSettings.HAZELCAST_CACHE_CLUSTER_NAME, "test-cluster",
+              AppSettings.HAZELCAST_CACHE_PORT, 5801,
+              AppSettings.HAZELCAST_CACHE_MEMBERS, List.of(),
+              AppSettings.HAZELCAST_CACHE_KUBERNETES_SERVICE_DNS, "",
+              AppSettings.HAZELCAST_CACHE_REPLICATION_FACTOR, 2));
+
+  private static Config createMemberConfig(String name, int port) {
+    Config config = HazelcastCache.createConfig();
+    config.setInstanceName(name);
+    config.getNetworkConfig().setPort(port);
+    JoinConfig join = config.getNetworkConfig().getJoin();
+    join.getTcpIpConfig().setEnabled(true).setMembers(MEMBERS);
+    return config;
+  }
+
+  @BeforeClass
+  public static void setupClass() {
+    cacheA = new HazelcastCache(() -> createMemberConfig("test-a", 5801));
+    cacheB = new HazelcastCache(() -> createMemberConfig("test-b", 5802));
+    cacheA.getHazelcast();
+    cacheB.getHazelcast();
+  }
+
+  @AfterClass
+  public static void teardownClass() {
+    SharedClients.closeAll();
+  }
+
+  @After
+  public void teardown() {
+    cacheA.getHazelcast().getMap(HazelcastCache.CACHE_MAP).clear();
+    cacheA.getHazelcast().getMap(HazelcastCache.LEASE_MAP).clear();
+  }
+
+  @Test
+  public void testMembersFormCluster() {
+    assertEquals(2, cacheA.getHazelcast().getCluster().getMembers().size());
+    assertTrue(cacheA.checkConnection().isSuccess());
+  }
+
+  @Test
+  public void testSetAndGetFromOtherMember() {
+    cacheA.set("test", "abcd".getBytes(), 60);
+    assertArrayEquals("abcd".getBytes(), cacheB.get("test"));
+    assertNull(cacheB.get("missing"));
+  }
+
+  @Test
+  public void testSetExpire() throws InterruptedException {
+    cacheA.set("test", "abcd".getBytes(), 1);
+    assertArrayEquals("abcd".getBytes(), cacheB.get("test"));
+    Thread.sleep(1500);
+    assertNull(cacheB.get("test"));
+  }
+
+  @Test
+  public void testDelete() {
+    cacheA.set("test", "abcd".getBytes(), 60);
+    cacheB.delete("test");
+    assertNull(cacheA.get("test"));
+  }
+
+  @Test
+  public void testMultiKeyOperations() {
+    Map<String, byte[]> values = new HashMap<>();
+    for (int i = 0; i < 30; i++) {
+      values.put("key-" + i, ("value-" + i).getBytes());
+    }
+    cacheA.setAll(values, 60);
+
+    List<String> keys = new ArrayList<>(values.keySet());
+    keys.add("missing");
+    Map<String, byte[]> found = cacheB.getAll(keys);
+    assertEquals(30, found.size());
+    values.forEach((key, value) -> assertArrayEquals(value, found.get(key)));
+
+    cacheB.deleteAll(values.keySet());
+    assertTrue(cacheA.getAll(keys).isEmpty());
+  }
+
+  @Test
+  public void testValuesSurviveMemberFailure() {
+    HazelcastCache cacheC = new HazelcastCache(() -> createMemberConfig("test-c", 5803));
+    Map<String, byte[]> values = new HashMap<>();
+    for (int i = 0; i < 100; i++) {
+      values.put("key-" + i, ("value-" + i).getBytes());
+    }
+    cacheC.setAll(values, 60);
+
+    // Simulate a crash, so that the member doesn't hand over its keys before leaving
+    cacheC.getHazelcast().getLifecycleService().terminate();
+
+    // Check that the keys owned by the crashed member are served from their backups
+    Map<String, byte[]> found = cacheA.getAll(values.keySet());
+    assertEquals(100, found.size());
+  }
+
+  @Test
+  public void testTryAcquire() {
+    Lease lease = cacheA.tryAcquire("test", 0, 60000);
+    assertNotNull(lease);
+    // The lease is exclusive across all members
+    assertNull(cacheB.tryAcquire("test", 0, 60000));
+    assertNull(cacheA.tryAcquire("test", 0, 60000));
+    lease.release();
+    Lease nextLease = cacheB.tryAcquire("test", 0, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testTryAcquireLeaseExpires() throws InterruptedException {
+    Lease lease = cacheA.tryAcquire("test", 0, 200);
+    assertNotNull(lease);
+    Thread.sleep(300);
+    Lease nextLease = cacheB.tryAcquire("test", 0, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    // Releasing the expired lease doesn't release the next holder's lease
+    lease.release();
+    assertNull(cacheA.tryAcquire("test", 0, 60000));
+    nextLease.release();
+  }
+
+  @Test
+  public void testTryAcquireWaits() {
+    Lease lease = cacheA.tryAcquire("test", 0, 300);
+    assertNotNull(lease);
+    // Wait until the first lease expires
+    Lease nextLease = cacheB.tryAcquire("test", 2000, 60000);
+    assertNotNull(nextLease);
+    nextLease.release();
+  }
+
+  @Test
+  public void testGetOrAcquire() {
+    ValueOrLease lookup = cacheA.getOrAcquire("test", 0, 60000);
+    assertNotNull(lookup.getLease());
+    // Someone else is filling in the value
+    ValueOrLease otherLookup = cacheB.getOrAcquire("test", 0, 60000);
+    assertNull(otherLookup.getValue());
+    assertNull(otherLookup.getLease());
+    cacheA.setAndRelease("test", "abcd".getBytes(), 60, lookup.getLease());
+    assertArrayEquals("abcd".getBytes(), cacheB.getOrAcquire("test", 0, 60000).getValue());
+  }
+
+  @Test
+  public void testInvalidations() throws InterruptedException {
+    List<String> received = new ArrayList<>();
+    cacheB.subscribeInvalidations(
+        (namespace, key) -> {
+          synchronized (received) {
+            received.add(namespace + "|" + key);
+          }
+        });
+    cacheA.publishInvalidation("session", "abcd");
+    Thread.sleep(500);
+    synchronized (received) {
+      assertEquals(List.of("session|abcd"), received);
+    }
+  }
+
+  @Test
+  public void testCreateConfigKubernetes() {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.HAZELCAST_CACHE_KUBERNETES_SERVICE_DNS,
+                "broker.default.svc.cluster.local",
+                AppSettings.HAZELCAST_CACHE_REPLICATION_FACTOR,
+                3))) {
+      Config config = HazelcastCache.createConfig();
+      JoinConfig join = config.getNetworkConfig().getJoin();
+      assertTrue(join.getKubernetesConfig().isEnabled());
+      assertEquals(
+          "broker.default.svc.cluster.local",
+          join.getKubernetesConfig().getProperty("service-dns"));
+      assertFalse(join.getTcpIpConfig().isEnabled());
+      assertFalse(join.getMulticastConfig().isEnabled());
+      MapConfig mapConfig = config.getMapConfig(HazelcastCache.CACHE_MAP);
+      assertEquals(2, mapConfig.getBackupCount());
+    }
+  }
+
+  @Test
+  public void testCreateConfigConflictingDiscovery() {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.HAZELCAST_CACHE_MEMBERS,
+                List.of("10.0.0.1:5701"),
+                AppSettings.HAZELCAST_CACHE_KUBERNETES_SERVICE_DNS,
+                "broker.default.svc.cluster.local"))) {
+      HazelcastCache.createConfig();
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals(
+          "The `remote-cache.hazelcast.members` and `remote-cache.hazelcast.kubernetes-service-dns`"
+              + " settings can't be used together",
+          e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,388 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import com.google.cloud.broker.checks.CheckResult;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.AsyncUtils;
+import com.google.cloud.broker.utils.SharedClients;
+import com.google.cloud.broker.utils.TimeUtils;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.ConnectionFactoryBuilder.Locator;
+import net.spy.memcached.ConnectionFactoryBuilder.Protocol;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+
+/**
+ * Remote cache backend for one or more Memcached servers. Keys are spread across the servers by
+ * consistent hashing, so that adding or removing a server only moves the keys of that server.
+ */
+public class MemcachedCache extends AbstractRemoteCache {
+
+  static final String LEASE_SUFFIX = ":lease";
+  static final String FENCING_SUFFIX = ":fencing";
+  // Lifetime of the fencing counters, in seconds. A counter that expired or was evicted starts over
+  // from the current time, so the tokens keep increasing as long as the counter is incremented
+  // less than once per millisecond on average.
+  static final int FENCING_COUNTER_LIFETIME = 24 * 3600;
+  static final long LEASE_POLL_INTERVAL = 50; // In milliseconds
+  // Memcached keys are limited to 250 bytes, without spaces or control characters
+  static final int MAX_KEY_LENGTH = 250;
+
+  private MemcachedClient client;
+  private final Supplier<MemcachedClient> clientSupplier;
+
+  public MemcachedCache() {
+    this(
+        () ->
+            SharedClients.get(
+                "memcached", MemcachedCache::createClient, MemcachedClient::shutdown));
+  }
+
+  /** Creates a cache that uses the client returned by the supplier. */
+  MemcachedCache(Supplier<MemcachedClient> clientSupplier) {
+    this.clientSupplier = clientSupplier;
+  }
+
+  private synchronized MemcachedClient getClient() {
+    if (client == null) {
+      client = clientSupplier.get();
+    }
+    return client;
+  }
+
+  private static MemcachedClient createClient() {
+    List<String> servers =
+        AppSettings.getInstance().getStringList(AppSettings.MEMCACHED_CACHE_SERVERS);
+    try {
+      return new MemcachedClient(createConnectionFactory(), AddrUtil.getAddresses(servers));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Returns the client configuration for the settings. */
+  static ConnectionFactory createConnectionFactory() {
+    return new ConnectionFactoryBuilder()
+        // The binary protocol is more compact and supports pipelining quiet multi-gets
+        .setProtocol(Protocol.BINARY)
+        // Ketama consistent hashing, with the servers' virtual nodes spread on a ring
+        .setLocatorType(Locator.CONSISTENT)
+        .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH)
+        .setOpTimeout(
+            AppSettings.getInstance().getLong(AppSettings.MEMCACHED_CACHE_OPERATION_TIMEOUT))
+        .build();
+  }
+
+  /**
+   * Returns the given key if it's a valid Memcached key. Otherwise, returns a hash of the key,
+   * which is always valid.
+   */
+  static String toMemcachedKey(String key) {
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    boolean valid =
+        bytes.length <= MAX_KEY_LENGTH && key.chars().noneMatch(c -> c <= ' ' || c == 0x7f);
+    if (valid) {
+      return key;
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return "sha256-"
+          + Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Completes the given future with the result of a completed Memcached operation. */
+  private static <T> void complete(CompletableFuture<T> result, Callable<T> operationResult) {
+    try {
+      result.complete(operationResult.call());
+    } catch (ExecutionException e) {
+      result.completeExceptionally(e.getCause());
+    } catch (Exception e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  /** Returns a future that completes with the result of the given Memcached operation. */
+  private static CompletableFuture<Boolean> toCompletableFuture(
+      OperationFuture<Boolean> operation) {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    operation.addListener(future -> complete(result, () -> (Boolean) future.get()));
+    return result;
+  }
+
+  // The blocking methods wait for their asynchronous variants, so that both share the same
+  // implementation. The asynchronous variants never block the calling thread: the client's I/O
+  // thread completes the returned futures, so callers shouldn't run any blocking work in non-async
+  // stages of these futures.
+
+  @Override
+  public byte[] get(String key) {
+    return AsyncUtils.join(getAsync(key));
+  }
+
+  @Override
+  public void set(String key, byte[] value) {
+    // An expiry of 0 means that the value never expires
+    set(key, value, 0);
+  }
+
+  @Override
+  public void set(String key, byte[] value, int expireIn) {
+    AsyncUtils.join(setAsync(key, value, expireIn));
+  }
+
+  @Override
+  public void delete(String key) {
+    AsyncUtils.join(deleteAsync(key));
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    return AsyncUtils.join(getAllAsync(keys));
+  }
+
+  @Override
+  public void setAll(Map<String, byte[]> values, int expireIn) {
+    AsyncUtils.join(setAllAsync(values, expireIn));
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    AsyncUtils.join(deleteAllAsync(keys));
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getAsync(String key) {
+    CompletableFuture<byte[]> result = new CompletableFuture<>();
+    getClient()
+        .asyncGet(toMemcachedKey(key))
+        .addListener(future -> complete(result, () -> (byte[]) future.get()));
+    return result;
+  }
+
+  @Override
+  public CompletableFuture<Void> setAsync(String key, byte[] value, int expireIn) {
+    return toCompletableFuture(getClient().set(toMemcachedKey(key), expireIn, value))
+        .thenApply(stored -> null);
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAsync(String key) {
+    return toCompletableFuture(getClient().delete(toMemcachedKey(key)))
+        .thenApply(deleted -> null);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, byte[]>> getAllAsync(Collection<String> keys) {
+    Map<String, String> originalKeys = new HashMap<>();
+    for (String key : keys) {
+      originalKeys.put(toMemcachedKey(key), key);
+    }
+    // The client sends a single multi-get to each of the servers that own some of the keys
+    CompletableFuture<Map<String, byte[]>> result = new CompletableFuture<>();
+    getClient()
+        .asyncGetBulk(originalKeys.keySet())
+        .addListener(
+            future ->
+                complete(
+                    result,
+                    () -> {
+                      Map<String, byte[]> values = new HashMap<>();
+                      for (Map.Entry<String, ?> entry : future.get().entrySet()) {
+                        values.put(originalKeys.get(entry.getKey()), (byte[]) entry.getValue());
+                      }
+                      return values;
+                    }));
+    return result;
+  }
+
+  @Override
+  public CompletableFuture<Void> setAllAsync(Map<String, byte[]> values, int expireIn) {
+    // Send all requests at once, so that they're pipelined on each server's connection
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    values.forEach((key, value) -> futures.add(setAsync(key, value, expireIn)));
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    keys.forEach(key -> futures.add(deleteAsync(key)));
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  @Override
+  public Lock acquireLock(String lockName) {
+    LeaseLock lock =
+        new LeaseLock(
+            lockName,
+            AppSettings.getInstance().getLong(AppSettings.MEMCACHED_CACHE_LOCK_LEASE_TIME));
+    lock.lock();
+    return lock;
+  }
+
+  /**
+   * Attempts to acquire the given lease. A lease is a key that holds the owner's ID, created with
+   * the atomic "add" command, which fails if the key already exists. The key expires at the end of
+   * the lease. Memcached expiry times are in seconds, so the lease time is rounded up.
+   */
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    MemcachedClient client = getClient();
+    String owner = UUID.randomUUID().toString();
+    String leaseKey = toMemcachedKey(lockName + LEASE_SUFFIX);
+    int expiry = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(leaseTime + 999));
+    long deadline = TimeUtils.currentTimeMillis() + waitTime;
+    while (true) {
+      if (AsyncUtils.join(toCompletableFuture(client.add(leaseKey, expiry, owner)))) {
+        long token =
+            client.incr(
+                toMemcachedKey(lockName + FENCING_SUFFIX),
+                1,
+                TimeUtils.currentTimeMillis(),
+                FENCING_COUNTER_LIFETIME);
+        return new MemcachedLease(leaseKey, owner, token, leaseTime);
+      }
+      if (TimeUtils.currentTimeMillis() + LEASE_POLL_INTERVAL > deadline) {
+        return null;
+      }
+      try {
+        Thread.sleep(LEASE_POLL_INTERVAL);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  class MemcachedLease extends Lease {
+
+    private final String leaseKey;
+    private final String owner;
+
+    MemcachedLease(String leaseKey, String owner, long fencingToken, long leaseTime) {
+      super(fencingToken, leaseTime);
+      this.leaseKey = leaseKey;
+      this.owner = owner;
+    }
+
+    @Override
+    protected void releaseLock() {
+      // Only delete the key if it hasn't changed since it was checked, so that the lease isn't
+      // released if it has already expired and been acquired by someone else
+      CASValue<Object> current = getClient().gets(leaseKey);
+      if (current != null && owner.equals(current.getValue())) {
+        AsyncUtils.join(toCompletableFuture(getClient().delete(leaseKey, current.getCas())));
+      }
+    }
+  }
+
+  /** Lock that is held with a lease, and released automatically at the end of the lease. */
+  class LeaseLock implements Lock {
+
+    private final String lockName;
+    private final long leaseTime; // In milliseconds
+    private volatile Lease lease; // Null if the lock isn't held
+
+    LeaseLock(String lockName, long leaseTime) {
+      this.lockName = lockName;
+      this.leaseTime = leaseTime;
+    }
+
+    @Override
+    public void lock() {
+      tryLock(Long.MAX_VALUE / 2, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      lock();
+    }
+
+    @Override
+    public boolean tryLock() {
+      return tryLock(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) {
+      Lease acquired = tryAcquire(lockName, unit.toMillis(time), leaseTime);
+      if (acquired == null) {
+        return false;
+      }
+      lease = acquired;
+      return true;
+    }
+
+    @Override
+    public void unlock() {
+      Lease held = lease;
+      if (held == null) {
+        throw new IllegalMonitorStateException("Lock isn't held: " + lockName);
+      }
+      lease = null;
+      held.release();
+    }
+
+    @Override
+    public Condition newCondition() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Override
+  public CheckResult checkConnection() {
+    try {
+      Collection<SocketAddress> unavailable = getClient().getUnavailableServers();
+      if (!unavailable.isEmpty()) {
+        return new CheckResult(false, "Unavailable Memcached server(s): " + unavailable);
+      }
+      return new CheckResult(true);
+    } catch (Exception e) {
+      StringWriter sw = new StringWriter();
+      e.printStackTrace(new PrintWriter(sw));
+      return new CheckResult(false, sw.toString());
+    }
+  }
+}
@@ -0,0 +1,266 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
+import com.google.cloud.broker.utils.SharedClients;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.protocol.binary.BinaryOperationFactory;
+import org.junit.*;
+
+public class MemcachedCacheTest {
+
+  private static MemcachedClient client;
+  private static MemcachedCache cache;
+
+  @ClassRule
+  public static SettingsOverride settingsOverride =
+      new SettingsOverride(
+          Map.of(
+              AppSettings.MEMCACHED_CACHE_SERVERS, List.of("localhost:11211"),
+              AppSettings.MEMCACHED_CACHE_OPERATION_TIMEOUT, 2500));
+
+  @BeforeClass
+  public static void setupClass() throws IOException {
+    client =
+        new MemcachedClient(
+            MemcachedCache.createConnectionFactory(), AddrUtil.getAddresses("localhost:11211"));
+    cache = new MemcachedCache();
+  }
+
+  @AfterClass
+  public static void teardownClass() {
+    client.shutdown();
+    SharedClients.closeAll();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    // Clear the server
+    client.flush().get();
+  }
+
+  @Test
+  public void testCreateConnectionFactory() {
+    ConnectionFactory factory = MemcachedCache.createConnectionFactory();
+    assertTrue(factory.getOperationFactory() instanceof BinaryOperationFactory);
+    assertEquals(DefaultHashAlgorithm.KETAMA_HASH, factory.getHashAlg());
+    assertEquals(2500, factory.getOperationTimeout());
+  }
+
+  @Test
+  public void testGet() {
+    client.set("test", 0, "abcd".getBytes());
+    assertArrayEquals("abcd".getBytes(), cache.get("test"));
+  }
+
+  @Test
+  public void testGetNotExist() {
+    assertNull(cache.get("whatever"));
+  }
+
+  @Test
+  public void testSet() {
+    cache.set("test", "abcd".getBytes());
+    assertArrayEquals("abcd".getBytes(), (byte[]) client.get("test"));
+  }
+
+  @Test
+  public void testSetExpire() throws InterruptedException {
+    cache.set("test", "abcd".getBytes(), 1);
+    assertArrayEquals("abcd".getBytes(), cache.get("test"));
+    // Memcached expiry times have a one-second granularity
+    Thread.sleep(2100);
+    assertNull(cache.get("test"));
+  }
+
+  @Test
+  public void testDelete() {
+    cache.set("test", "abcd".getBytes(), 60);
+    cache.delete("test");
+    assertNull(client.get("test"));
+  }
+
+  @Test
+  public void testInvalidKeys() {
+    String longKey = "a".repeat(300);
+    String keyWithSpaces = "key with spaces";
+    cache.set(longKey, "abcd".getBytes(), 60);
+    cache.set(keyWithSpaces, "efgh".getBytes(), 60);
+    assertArrayEquals("abcd".getBytes(), cache.get(longKey));
+    assertArrayEquals("efgh".getBytes(), cache.get(keyWithSpaces));
+    Map<String, byte[]> values = cache.getAll(List.of(longKey, keyWithSpaces));
+    assertArrayEquals("abcd".getBytes(), values.get(longKey));
+    assertArrayEquals("efgh".getBytes(), values.get(keyWithSpaces));
+  }
+
+  @Test
+  public void testToMemcachedKey() {
+    assertEquals("abcd", MemcachedCache.toMemcachedKey("abcd"));
+    String hashed = MemcachedCache.toMemcachedKey("a b");
+    assertTrue(hashed.startsWith("sha256-"));
+    assertEquals(hashed, MemcachedCache.toMemcachedKey("a b"));
+    assertTrue(MemcachedCache.toMemcachedKey("a".repeat(251)).length() <= 250);
+  }
+
+  @Test
+  public void testMultiKeyOperations() {
+    Map<String, byte[]> values = new HashMap<>();
+    for (int i = 0; i < 30; i++) {
+      values.put("key-" + i, ("value-" + i).getBytes());
+    }
+    cache.setAll(values, 60);
+
+    List<String> keys = new ArrayList<>(values.keySet());
+    keys.add("missing");
+    Map<String, byte[]> found = cache.getAll(keys);
+    assertEquals(30, found.size());
+    values.forEach((key, value) -> assertArrayEquals(value, found.get(key)));
+
+    cache.deleteAll(values.keySet());
+    assertTrue(cache.getAll(keys).isEmpty());
+  }
+
+  @Test
+  public void testMultiKeyOperationsAsync() throws Exception {
+    cache.setAllAsync(Map.of("a", "1".getBytes(), "b", "2".getBytes()), 60).get();
+    Map<String, byte[]> found = cache.getAllAsync(List.of("a", "b", "c")).get();
+    assertEquals(2, found.size());
+    assertArrayEquals("1".getBytes(), found.get("a"));
+    cache.deleteAllAsync(List.of("a", "b")).get();
+    assertTrue(cache.getAllAsync(List.of("a", "b")).get().isEmpty());
+  }
+
+  @Test
+  public void testTryAcquire() {
+    Lease lease = cache.tryAcquire("test", 0, 60000);
+    assertNotNull(lease);
+    assertNull(cache.tryAcquire("test", 0, 60000));
+    lease.release();
+    Lease nextLease = cache.tryAcquire("test", 0, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testFencingTokenAfterCounterEviction() throws Exception {
+    Lease lease = cache.tryAcquire("test", 0, 60000);
+    assertNotNull(lease);
+    lease.release();
+    Thread.sleep(10);
+
+    // The next token is still greater after the counter was evicted
+    client.delete(MemcachedCache.toMemcachedKey("test" + MemcachedCache.FENCING_SUFFIX)).get();
+    Lease nextLease = cache.tryAcquire("test", 0, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testTryAcquireLeaseExpires() throws InterruptedException {
+    Lease lease = cache.tryAcquire("test", 0, 1000);
+    assertNotNull(lease);
+    Thread.sleep(2100);
+    Lease nextLease = cache.tryAcquire("test", 0, 60000);
+    assertNotNull(nextLease);
+    // Releasing the expired lease doesn't release the next holder's lease
+    lease.release();
+    assertNull(cache.tryAcquire("test", 0, 60000));
+    nextLease.release();
+  }
+
+  @Test
+  public void testTryAcquireWaits() {
+    Lease lease = cache.tryAcquire("test", 0, 1000);
+    assertNotNull(lease);
+    // Wait until the first lease expires
+    Lease nextLease = cache.tryAcquire("test", 3000, 60000);
+    assertNotNull(nextLease);
+    nextLease.release();
+  }
+
+  @Test
+  public void testAcquireLock() {
+    Lock lock = cache.acquireLock("test");
+    assertNull(cache.tryAcquire("test", 0, 60000));
+    lock.unlock();
+    Lease lease = cache.tryAcquire("test", 0, 60000);
+    assertNotNull(lease);
+    lease.release();
+  }
+
+  @Test
+  public void testAcquireLockLeaseExpires() throws InterruptedException {
+    try (SettingsOverride override =
+        SettingsOverride.apply(Map.of(AppSettings.MEMCACHED_CACHE_LOCK_LEASE_TIME, 1000))) {
+      cache.acquireLock("test");
+    }
+    // The lock is released automatically at the end of its lease
+    Thread.sleep(2100);
+    Lease lease = cache.tryAcquire("test", 0, 60000);
+    assertNotNull(lease);
+    lease.release();
+  }
+
+  @Test
+  public void testLeaseLock() throws InterruptedException {
+    Lock lock = cache.new LeaseLock("test", 60000);
+    Lock otherLock = cache.new LeaseLock("test", 60000);
+    assertTrue(lock.tryLock());
+    assertFalse(otherLock.tryLock());
+    assertFalse(otherLock.tryLock(100, TimeUnit.MILLISECONDS));
+    lock.unlock();
+    otherLock.lock();
+    assertFalse(lock.tryLock());
+    otherLock.unlock();
+
+    // The lock can only be unlocked while it's held
+    try {
+      otherLock.unlock();
+      fail();
+    } catch (IllegalMonitorStateException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testGetOrAcquire() {
+    ValueOrLease lookup = cache.getOrAcquire("test", 0, 60000);
+    assertNotNull(lookup.getLease());
+    // Someone else is filling in the value
+    ValueOrLease otherLookup = cache.getOrAcquire("test", 0, 60000);
+    assertNull(otherLookup.getValue());
+    assertNull(otherLookup.getLease());
+    cache.setAndRelease("test", "abcd".getBytes(), 60, lookup.getLease());
+    assertArrayEquals("abcd".getBytes(), cache.getOrAcquire("test", 0, 60000).getValue());
+  }
+
+  @Test
+  public void testCheckConnection() {
+    assertTrue(cache.checkConnection().isSuccess());
+  }
+}
@@ -13,56 +13,278 @@ package com.google.cloud.broker.caching.remote;
 
 import com.google.cloud.broker.checks.CheckResult;
 import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.AsyncUtils;
+import com.google.cloud.broker.utils.TimeUtils;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import org.redisson.Redisson;
+import org.redisson.api.BatchOptions;
 import org.redisson.api.NodesGroup;
+import org.redisson.api.RBatch;
 import org.redisson.api.RBucket;
+import org.redisson.api.RFuture;
 import org.redisson.api.RLock;
+import org.redisson.api.RScript;
+import org.redisson.api.RScript.ReturnType;
+import org.redisson.api.RTopic;
 import org.redisson.api.RedissonClient;
 import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.StringCodec;
 import org.redisson.config.Config;
+import org.redisson.config.ReadMode;
 
 public class RedisCache extends AbstractRemoteCache {
 
+  static final String LEASE_SUFFIX = ":lease";
+  static final String FENCING_SUFFIX = ":fencing";
+  static final long FENCING_COUNTER_LIFETIME = 24 * 3600; // In seconds
+  static final long LEASE_POLL_INTERVAL = 50; // In milliseconds
+
+  // Lua scripts run atomically on the server, so that each operation takes a single round trip.
+  // Leases are stored in plain keys that hold the owner's ID and expire at the end of the lease.
+
+  // KEYS: lease, fencing counter. ARGV: owner, lease time (ms), fencing counter lifetime (s).
+  // Returns the fencing token if the lease was acquired, or 0 if someone else holds it.
+  static final String ACQUIRE_SCRIPT =
+      "if redis.call('set', KEYS[1], ARGV[1], 'px', ARGV[2], 'nx') then\n"
+          + "  local token = redis.call('incr', KEYS[2])\n"
+          + "  redis.call('expire', KEYS[2], ARGV[3])\n"
+          + "  return token\n"
+          + "end\n"
+          + "return 0";
+
+  // KEYS: value, lease, fencing counter. ARGV: same as ACQUIRE_SCRIPT.
+  // Returns {1, value} if the value exists, {2, fencing token} if the lease was acquired, or {0}
+  // if someone else holds the lease.
+  static final String GET_OR_ACQUIRE_SCRIPT =
+      "local value = redis.call('get', KEYS[1])\n"
+          + "if value then\n"
+          + "  return {1, value}\n"
+          + "end\n"
+          + "if redis.call('set', KEYS[2], ARGV[1], 'px', ARGV[2], 'nx') then\n"
+          + "  local token = redis.call('incr', KEYS[3])\n"
+          + "  redis.call('expire', KEYS[3], ARGV[3])\n"
+          + "  return {2, token}\n"
+          + "end\n"
+          + "return {0}";
+
+  // KEYS: lease. ARGV: owner.
+  static final String RELEASE_SCRIPT =
+      "if redis.call('get', KEYS[1]) == ARGV[1] then\n"
+          + "  return redis.call('del', KEYS[1])\n"
+          + "end\n"
+          + "return 0";
+
+  // KEYS: value, lease. ARGV: owner, value, lifetime of the value (s).
+  // Returns 1 if the value was set, or 0 if the lease had expired.
+  static final String SET_AND_RELEASE_SCRIPT =
+      "if redis.call('get', KEYS[2]) ~= ARGV[1] then\n"
+          + "  return 0\n"
+          + "end\n"
+          + "redis.call('set', KEYS[1], ARGV[2], 'ex', ARGV[3])\n"
+          + "redis.call('del', KEYS[2])\n"
+          + "return 1";
+
+  static final String MODE_SINGLE = "single";
+  static final String MODE_MASTER_REPLICA = "master-replica";
+  static final String MODE_SENTINEL = "sentinel";
+  static final String MODE_CLUSTER = "cluster";
+
   private RedissonClient client;
+  private final Supplier<Config> configSupplier;
+  private final boolean readFromReplicas;
 
-  public RedisCache() {}
+  public RedisCache() {
+    // A standalone server has no replicas to read from
+    this(
+        RedisCache::createConfig,
+        AppSettings.getInstance().getBoolean(AppSettings.REDIS_CACHE_READ_FROM_REPLICAS)
+            && !AppSettings.getInstance()
+                .getString(AppSettings.REDIS_CACHE_MODE)
+                .equals(MODE_SINGLE));
+  }
+
+  /** Creates a cache that connects to Redis with the configuration returned by the supplier. */
+  RedisCache(Supplier<Config> configSupplier, boolean readFromReplicas) {
+    this.configSupplier = configSupplier;
+    this.readFromReplicas = readFromReplicas;
+  }
 
   private RedissonClient getClient() {
     if (client == null) {
-      String host = AppSettings.getInstance().getString(AppSettings.REDIS_CACHE_HOST);
-      Integer port = AppSettings.getInstance().getInt(AppSettings.REDIS_CACHE_PORT);
-      Config config = new Config();
-      config
-          .useSingleServer()
-          .setAddress(String.format("redis://%s:%s", host, port))
-          .setDatabase(AppSettings.getInstance().getInt(AppSettings.REDIS_CACHE_DB));
-      client = Redisson.create(config);
+      client = Redisson.create(configSupplier.get());
     }
     return client;
   }
 
+  /** Returns the Redisson configuration for the deployment mode set in the settings. */
+  static Config createConfig() {
+    com.typesafe.config.Config settings = AppSettings.getInstance();
+    String mode = settings.getString(AppSettings.REDIS_CACHE_MODE);
+    String[] nodes =
+        settings.getStringList(AppSettings.REDIS_CACHE_NODES).stream()
+            .map(RedisCache::toAddress)
+            .toArray(String[]::new);
+    String master =
+        toAddress(
+            settings.getString(AppSettings.REDIS_CACHE_HOST)
+                + ":"
+                + settings.getInt(AppSettings.REDIS_CACHE_PORT));
+    int database = settings.getInt(AppSettings.REDIS_CACHE_DB);
+    ReadMode readMode =
+        settings.getBoolean(AppSettings.REDIS_CACHE_READ_FROM_REPLICAS)
+            ? ReadMode.SLAVE
+            : ReadMode.MASTER;
+    // The pool sizes apply to each Redis node that the backend connects to
+    int poolSize = settings.getInt(AppSettings.REDIS_CACHE_CONNECTION_POOL_SIZE);
+    int minIdle = settings.getInt(AppSettings.REDIS_CACHE_CONNECTION_MINIMUM_IDLE_SIZE);
+    Config config = createBaseConfig();
+    switch (mode) {
+      case MODE_SINGLE:
+        return createSingleServerConfig(master);
+      case MODE_MASTER_REPLICA:
+        config
+            .useMasterSlaveServers()
+            .setMasterAddress(master)
+            .addSlaveAddress(nodes)
+            .setDatabase(database)
+            .setReadMode(readMode)
+            .setMasterConnectionPoolSize(poolSize)
+            .setMasterConnectionMinimumIdleSize(minIdle)
+            .setSlaveConnectionPoolSize(poolSize)
+            .setSlaveConnectionMinimumIdleSize(minIdle);
+        break;
+      case MODE_SENTINEL:
+        config
+            .useSentinelServers()
+            .setMasterName(settings.getString(AppSettings.REDIS_CACHE_SENTINEL_MASTER))
+            .addSentinelAddress(nodes)
+            .setDatabase(database)
+            .setReadMode(readMode)
+            .setMasterConnectionPoolSize(poolSize)
+            .setMasterConnectionMinimumIdleSize(minIdle)
+            .setSlaveConnectionPoolSize(poolSize)
+            .setSlaveConnectionMinimumIdleSize(minIdle);
+        break;
+      case MODE_CLUSTER:
+        // Redis Cluster only supports database 0
+        config
+            .useClusterServers()
+            .addNodeAddress(nodes)
+            .setReadMode(readMode)
+            .setMasterConnectionPoolSize(poolSize)
+            .setMasterConnectionMinimumIdleSize(minIdle)
+            .setSlaveConnectionPoolSize(poolSize)
+            .setSlaveConnectionMinimumIdleSize(minIdle);
+        break;
+      default:
+        throw new IllegalArgumentException(
+            String.format(
+                "Invalid value for the `%s` setting: %s", AppSettings.REDIS_CACHE_MODE, mode));
+    }
+    return config;
+  }
+
+  /** Returns the Redisson configuration for the standalone Redis server at the given address. */
+  static Config createSingleServerConfig(String address) {
+    com.typesafe.config.Config settings = AppSettings.getInstance();
+    Config config = createBaseConfig();
+    config
+        .useSingleServer()
+        .setAddress(toAddress(address))
+        .setDatabase(settings.getInt(AppSettings.REDIS_CACHE_DB))
+        .setConnectionPoolSize(settings.getInt(AppSettings.REDIS_CACHE_CONNECTION_POOL_SIZE))
+        .setConnectionMinimumIdleSize(
+            settings.getInt(AppSettings.REDIS_CACHE_CONNECTION_MINIMUM_IDLE_SIZE));
+    return config;
+  }
+
+  private static Config createBaseConfig() {
+    com.typesafe.config.Config settings = AppSettings.getInstance();
+    Config config = new Config();
+    // Netty threads handle the network I/O, while the other threads run the topic listeners (i.e.
+    // invalidation notifications)
+    config.setNettyThreads(settings.getInt(AppSettings.REDIS_CACHE_NETTY_THREADS));
+    config.setThreads(settings.getInt(AppSettings.REDIS_CACHE_THREADS));
+    return config;
+  }
+
+  /** Converts the given "host:port" string into a Redis URI. */
+  static String toAddress(String node) {
+    return node.startsWith("redis://") || node.startsWith("rediss://") ? node : "redis://" + node;
+  }
+
+  /**
+   * Returns a key derived from the given key by appending the given suffix, which is guaranteed to
+   * be stored in the same Redis Cluster slot as the given key. This lets scripts access both keys
+   * atomically. Only the part of a key between braces (the hash tag) determines the slot, or the
+   * whole key if there are no braces.
+   */
+  static String sameSlotKey(String key, String suffix) {
+    int start = key.indexOf('{');
+    if (start >= 0) {
+      int end = key.indexOf('}', start + 1);
+      if (end > start + 1) {
+        // The key already has a hash tag, which applies to the derived key as well
+        return key + suffix;
+      }
+    }
+    if (key.indexOf('}') < 0) {
+      return "{" + key + "}" + suffix;
+    }
+    // The key can't be wrapped in a hash tag. This is only an issue in cluster mode, where scripts
+    // that access both keys would fail, but such keys aren't generated by the broker.
+    return key + suffix;
+  }
+
+  // The blocking methods wait for their asynchronous variants, so that both share the same
+  // implementation. The asynchronous variants never block the calling thread: Redisson sends the
+  // commands and completes the returned futures from its Netty threads, so callers shouldn't run
+  // any blocking work in non-async stages of these futures.
+
   public byte[] get(String key) {
-    RBucket<byte[]> bucket = getClient().getBucket(key, ByteArrayCodec.INSTANCE);
-    return bucket.get();
+    return AsyncUtils.join(getAsync(key));
   }
 
   public void set(String key, byte[] value) {
     RBucket<byte[]> bucket = getClient().getBucket(key, ByteArrayCodec.INSTANCE);
-    bucket.set(value);
+    AsyncUtils.join(bucket.setAsync(value).toCompletableFuture());
   }
 
   public void set(String key, byte[] value, int expireIn) {
-    RBucket<byte[]> bucket = getClient().getBucket(key, ByteArrayCodec.INSTANCE);
-    bucket.set(value, expireIn, TimeUnit.SECONDS);
+    AsyncUtils.join(setAsync(key, value, expireIn));
   }
 
   public void delete(String key) {
-    RBucket<byte[]> bucket = getClient().getBucket(key, ByteArrayCodec.INSTANCE);
-    bucket.delete();
+    AsyncUtils.join(deleteAsync(key));
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    return AsyncUtils.join(getAllAsync(keys));
+  }
+
+  @Override
+  public void setAll(Map<String, byte[]> values, int expireIn) {
+    AsyncUtils.join(setAllAsync(values, expireIn));
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    AsyncUtils.join(deleteAllAsync(keys));
   }
 
   public Lock acquireLock(String lockName) {
@@ -71,6 +293,271 @@ public class RedisCache extends AbstractRemoteCache {
     return lock;
   }
 
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    return AsyncUtils.join(tryAcquireAsync(lockName, waitTime, leaseTime));
+  }
+
+  @Override
+  public CompletableFuture<Lease> tryAcquireAsync(String lockName, long waitTime, long leaseTime) {
+    String owner = UUID.randomUUID().toString();
+    long deadline = TimeUtils.currentTimeMillis() + waitTime;
+    String leaseKey = sameSlotKey(lockName, LEASE_SUFFIX);
+    Supplier<CompletableFuture<Lease>> attempt =
+        () ->
+            this.<Long>eval(
+                    ACQUIRE_SCRIPT,
+                    ReturnType.INTEGER,
+                    List.of(leaseKey, sameSlotKey(lockName, FENCING_SUFFIX)),
+                    owner,
+                    leaseTime,
+                    FENCING_COUNTER_LIFETIME)
+                .thenApply(
+                    token ->
+                        (token > 0) ? new RedisLease(leaseKey, owner, token, leaseTime) : null);
+    return poll(attempt, deadline);
+  }
+
+  @Override
+  public ValueOrLease getOrAcquire(String key, long waitTime, long leaseTime) {
+    return AsyncUtils.join(getOrAcquireAsync(key, waitTime, leaseTime));
+  }
+
+  @Override
+  public CompletableFuture<ValueOrLease> getOrAcquireAsync(
+      String key, long waitTime, long leaseTime) {
+    if (readFromReplicas) {
+      // Look up the value on a replica first, so that cache hits don't put any load on the master
+      return getAsync(key)
+          .thenCompose(
+              value ->
+                  (value != null)
+                      ? CompletableFuture.completedFuture(ValueOrLease.ofValue(value))
+                      : getOrAcquireOnMasterAsync(key, waitTime, leaseTime));
+    }
+    return getOrAcquireOnMasterAsync(key, waitTime, leaseTime);
+  }
+
+  private CompletableFuture<ValueOrLease> getOrAcquireOnMasterAsync(
+      String key, long waitTime, long leaseTime) {
+    String owner = UUID.randomUUID().toString();
+    long deadline = TimeUtils.currentTimeMillis() + waitTime;
+    // The lease is stored in the same cluster slot as the value, so that the script can access both
+    String leaseKey = sameSlotKey(key, LEASE_SUFFIX);
+    return poll(
+            () ->
+                this.<List<Object>>eval(
+                        GET_OR_ACQUIRE_SCRIPT,
+                        ReturnType.MULTI,
+                        List.of(key, leaseKey, sameSlotKey(key, FENCING_SUFFIX)),
+                        owner,
+                        leaseTime,
+                        FENCING_COUNTER_LIFETIME)
+                    .thenApply(
+                        response -> {
+                          long status = (Long) response.get(0);
+                          if (status == 1) {
+                            return ValueOrLease.ofValue((byte[]) response.get(1));
+                          } else if (status == 2) {
+                            long token = (Long) response.get(1);
+                            return ValueOrLease.ofLease(
+                                new RedisLease(leaseKey, owner, token, leaseTime));
+                          }
+                          // Someone else is filling in the value
+                          return null;
+                        }),
+            deadline)
+        .thenApply(lookup -> (lookup == null) ? ValueOrLease.timedOut() : lookup);
+  }
+
+  @Override
+  public void setAndRelease(String key, byte[] value, int expireIn, Lease lease) {
+    AsyncUtils.join(setAndReleaseAsync(key, value, expireIn, lease));
+  }
+
+  @Override
+  public CompletableFuture<Void> setAndReleaseAsync(
+      String key, byte[] value, int expireIn, Lease lease) {
+    if (!lease.markReleased()) {
+      // The lease was already released, so the value must not be set
+      return CompletableFuture.completedFuture(null);
+    }
+    RedisLease redisLease = (RedisLease) lease;
+    // The value is only set if the lease is still held, which is checked on the server side
+    return this.<Long>eval(
+            SET_AND_RELEASE_SCRIPT,
+            ReturnType.INTEGER,
+            List.of(key, redisLease.leaseKey),
+            redisLease.owner,
+            value,
+            expireIn)
+        .thenApply(result -> null);
+  }
+
+  /** Returns true if the given lease was acquired from this cache. */
+  boolean isOwnLease(Lease lease) {
+    return (lease instanceof RedisLease) && ((RedisLease) lease).getCache() == this;
+  }
+
+  /** Lease stored as a plain Redis key that expires at the end of the lease. */
+  class RedisLease extends Lease {
+
+    private final String leaseKey;
+    private final String owner;
+
+    RedisLease(String leaseKey, String owner, long fencingToken, long leaseTime) {
+      super(fencingToken, leaseTime);
+      this.leaseKey = leaseKey;
+      this.owner = owner;
+    }
+
+    RedisCache getCache() {
+      return RedisCache.this;
+    }
+
+    @Override
+    protected void releaseLock() {
+      // Has no effect if the lease has already expired and been acquired by someone else
+      eval(RELEASE_SCRIPT, ReturnType.INTEGER, List.of(leaseKey), owner);
+    }
+  }
+
+  /** Runs the given Lua script on the server. */
+  private <T> CompletableFuture<T> eval(
+      String script, ReturnType returnType, List<Object> keys, Object... args) {
+    Object[] encodedArgs = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      encodedArgs[i] =
+          (args[i] instanceof byte[])
+              ? args[i]
+              : String.valueOf(args[i]).getBytes(StandardCharsets.UTF_8);
+    }
+    RFuture<T> future =
+        getClient()
+            .getScript(ByteArrayCodec.INSTANCE)
+            .evalAsync(RScript.Mode.READ_WRITE, script, returnType, keys, encodedArgs);
+    return future.toCompletableFuture();
+  }
+
+  /**
+   * Runs the given attempt until it returns a non-null result or until the given deadline (in
+   * milliseconds) is reached, waiting for a short interval between attempts. Completes with null
+   * if the deadline is reached.
+   */
+  private static <T> CompletableFuture<T> poll(
+      Supplier<CompletableFuture<T>> attempt, long deadline) {
+    return attempt
+        .get()
+        .thenCompose(
+            result -> {
+              if (result != null
+                  || TimeUtils.currentTimeMillis() + LEASE_POLL_INTERVAL > deadline) {
+                return CompletableFuture.completedFuture(result);
+              }
+              Executor delayed =
+                  CompletableFuture.delayedExecutor(LEASE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+              return CompletableFuture.runAsync(() -> {}, delayed)
+                  .thenCompose(v -> poll(attempt, deadline));
+            });
+  }
+
+  private RTopic getInvalidationTopic() {
+    String channel =
+        AppSettings.getInstance().getString(AppSettings.REDIS_CACHE_INVALIDATION_CHANNEL);
+    return getClient().getTopic(channel, StringCodec.INSTANCE);
+  }
+
+  @Override
+  public void publishInvalidation(String namespace, String key) {
+    // Namespaces don't contain line breaks, so the first one separates the namespace from the key
+    getInvalidationTopic().publish(namespace + "\n" + key);
+  }
+
+  @Override
+  public void subscribeInvalidations(BiConsumer<String, String> listener) {
+    getInvalidationTopic()
+        .addListener(
+            String.class,
+            (channel, message) -> {
+              int separator = message.indexOf('\n');
+              if (separator > 0) {
+                listener.accept(message.substring(0, separator), message.substring(separator + 1));
+              }
+            });
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getAsync(String key) {
+    RBucket<byte[]> bucket = getClient().getBucket(key, ByteArrayCodec.INSTANCE);
+    return bucket.getAsync().toCompletableFuture();
+  }
+
+  @Override
+  public CompletableFuture<Void> setAsync(String key, byte[] value, int expireIn) {
+    RBucket<byte[]> bucket = getClient().getBucket(key, ByteArrayCodec.INSTANCE);
+    return bucket.setAsync(value, expireIn, TimeUnit.SECONDS).toCompletableFuture();
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAsync(String key) {
+    RBucket<byte[]> bucket = getClient().getBucket(key, ByteArrayCodec.INSTANCE);
+    return bucket.deleteAsync().toCompletableFuture().thenApply(deleted -> null);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, byte[]>> getAllAsync(Collection<String> keys) {
+    if (keys.isEmpty()) {
+      return CompletableFuture.completedFuture(new HashMap<>());
+    }
+    // Send all commands in a single pipeline
+    RBatch batch = getClient().createBatch(BatchOptions.defaults());
+    List<String> orderedKeys = new ArrayList<>(keys);
+    for (String key : orderedKeys) {
+      batch.getBucket(key, ByteArrayCodec.INSTANCE).getAsync();
+    }
+    return batch
+        .executeAsync()
+        .toCompletableFuture()
+        .thenApply(
+            result -> {
+              List<?> responses = result.getResponses();
+              Map<String, byte[]> values = new HashMap<>();
+              for (int i = 0; i < orderedKeys.size(); i++) {
+                byte[] value = (byte[]) responses.get(i);
+                if (value != null) {
+                  values.put(orderedKeys.get(i), value);
+                }
+              }
+              return values;
+            });
+  }
+
+  @Override
+  public CompletableFuture<Void> setAllAsync(Map<String, byte[]> values, int expireIn) {
+    if (values.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    RBatch batch = getClient().createBatch(BatchOptions.defaults());
+    values.forEach(
+        (key, value) ->
+            batch
+                .getBucket(key, ByteArrayCodec.INSTANCE)
+                .setAsync(value, expireIn, TimeUnit.SECONDS));
+    return batch.executeAsync().toCompletableFuture().thenApply(result -> null);
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+    if (keys.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return getClient()
+        .getKeys()
+        .deleteAsync(keys.toArray(new String[0]))
+        .toCompletableFuture()
+        .thenApply(deleted -> null);
+  }
+
   @Override
   public CheckResult checkConnection() {
     try {
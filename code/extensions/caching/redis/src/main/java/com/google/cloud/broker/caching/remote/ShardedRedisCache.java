@@ -0,0 +1,448 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import com.google.cloud.broker.checks.CheckResult;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.AsyncUtils;
+import com.google.cloud.broker.utils.TimeUtils;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.redisson.client.RedisConnectionException;
+import org.redisson.client.RedisTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remote cache that spreads the keys across several standalone Redis servers (the shards). Each key
+ * is routed to a shard by consistent hashing: every shard is placed at several points (the virtual
+ * nodes) on a hash ring, and a key belongs to the first shard found clockwise from the key's hash.
+ * Adding or removing a shard therefore only moves the keys of its neighbors on the ring.
+ *
+ * <p>When a shard can't be reached, it's taken out of rotation for a while and its keys are routed
+ * to the next shards on the ring. Those keys are lost from the cache, so they're computed again.
+ * Meanwhile, the values that the shard still holds may be updated or invalidated on the other
+ * shards, so the shard is kept out of rotation until those values have expired.
+ */
+public class ShardedRedisCache extends AbstractRemoteCache {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static class Shard {
+
+    private final String name;
+    private final RedisCache cache;
+    private volatile long unavailableUntil; // In milliseconds
+
+    Shard(String name, RedisCache cache) {
+      this.name = name;
+      this.cache = cache;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    boolean isAvailable() {
+      return TimeUtils.currentTimeMillis() >= unavailableUntil;
+    }
+  }
+
+  private final List<Shard> shards = new ArrayList<>();
+  private final NavigableMap<Long, Shard> ring = new TreeMap<>();
+  private final long retryInterval; // In milliseconds
+  // Longest expiry of the values stored so far, i.e. how long a shard may hold stale values for
+  private final AtomicInteger longestExpireIn = new AtomicInteger(); // In seconds
+
+  public ShardedRedisCache() {
+    this(createShards(), getVirtualNodes(), getRetryInterval());
+  }
+
+  /**
+   * @param shards Caches that hold the keys of each shard, indexed by shard name.
+   * @param virtualNodes Number of points of each shard on the hash ring.
+   * @param retryInterval Minimum time during which an unreachable shard is skipped, in
+   *     milliseconds.
+   */
+  ShardedRedisCache(Map<String, RedisCache> shards, int virtualNodes, long retryInterval) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException(
+          String.format("The `%s` setting must not be empty", AppSettings.REDIS_CACHE_SHARDS));
+    }
+    this.retryInterval = retryInterval;
+    shards.forEach(
+        (name, cache) -> {
+          Shard shard = new Shard(name, cache);
+          this.shards.add(shard);
+          for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(name + "#" + i), shard);
+          }
+        });
+  }
+
+  private static Map<String, RedisCache> createShards() {
+    Map<String, RedisCache> shards = new LinkedHashMap<>();
+    for (String address : AppSettings.getInstance().getStringList(AppSettings.REDIS_CACHE_SHARDS)) {
+      shards.put(
+          address, new RedisCache(() -> RedisCache.createSingleServerConfig(address), false));
+    }
+    return shards;
+  }
+
+  private static int getVirtualNodes() {
+    return AppSettings.getInstance().getInt(AppSettings.REDIS_CACHE_SHARD_VIRTUAL_NODES);
+  }
+
+  private static long getRetryInterval() {
+    return AppSettings.getInstance().getLong(AppSettings.REDIS_CACHE_SHARD_RETRY_INTERVAL);
+  }
+
+  /** Returns the position of the given value on the hash ring. */
+  private static long hash(String value) {
+    try {
+      // MD5 spreads similar values (e.g. the virtual nodes of a shard) evenly around the ring
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      return ByteBuffer.wrap(digest.digest(value.getBytes(StandardCharsets.UTF_8))).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the shard that the given key currently belongs to, i.e. the first available shard found
+   * clockwise from the key's hash. If no shards are available, then the shard that normally holds
+   * the key is returned, in case it has recovered.
+   */
+  Shard getShard(String key) {
+    long hash = hash(key);
+    Shard owner = null;
+    for (Shard shard : ring.tailMap(hash, true).values()) {
+      if (owner == null) {
+        owner = shard;
+      }
+      if (shard.isAvailable()) {
+        return shard;
+      }
+    }
+    for (Shard shard : ring.headMap(hash, false).values()) {
+      if (owner == null) {
+        owner = shard;
+      }
+      if (shard.isAvailable()) {
+        return shard;
+      }
+    }
+    return owner;
+  }
+
+  private static boolean isUnreachable(Throwable throwable) {
+    Throwable cause = AsyncUtils.unwrap(throwable);
+    return cause instanceof RedisConnectionException || cause instanceof RedisTimeoutException;
+  }
+
+  /** Records that values are stored with the given expiry (in seconds). */
+  private void recordExpiry(int expireIn) {
+    longestExpireIn.accumulateAndGet(expireIn, Math::max);
+  }
+
+  /**
+   * Runs the given operation on the given shard. If the shard turns out to be unreachable, then
+   * it's taken out of rotation for the retry interval, or until all the values that it holds have
+   * expired if that takes longer. This way, the shard doesn't serve values that were updated or
+   * invalidated on the other shards while its keys were rerouted.
+   */
+  private <T> CompletableFuture<T> runOnShard(
+      Shard shard, Function<AbstractRemoteCache, CompletableFuture<T>> operation) {
+    CompletableFuture<T> future;
+    try {
+      future = operation.apply(shard.cache);
+    } catch (RuntimeException e) {
+      // The client fails right away if it can't connect to the shard
+      future = CompletableFuture.failedFuture(e);
+    }
+    return future.whenComplete(
+        (result, e) -> {
+          if (e != null && isUnreachable(e) && shard.isAvailable()) {
+            long duration = Math.max(retryInterval, longestExpireIn.get() * 1000L);
+            logger.warn(
+                "Redis shard `{}` is unreachable, rerouting its keys for {} ms",
+                shard.name,
+                duration);
+            shard.unavailableUntil = TimeUtils.currentTimeMillis() + duration;
+          }
+        });
+  }
+
+  /**
+   * Runs the given operation on the shard that the given key belongs to. If the shard is
+   * unreachable, then the operation is retried on the shard that the key is rerouted to.
+   */
+  private <T> CompletableFuture<T> route(
+      String key, Function<AbstractRemoteCache, CompletableFuture<T>> operation) {
+    Shard shard = getShard(key);
+    return runOnShard(shard, operation)
+        .handle(
+            (result, e) -> {
+              if (e == null) {
+                return CompletableFuture.completedFuture(result);
+              }
+              if (isUnreachable(e) && getShard(key) != shard) {
+                return route(key, operation);
+              }
+              return CompletableFuture.<T>failedFuture(AsyncUtils.unwrap(e));
+            })
+        .thenCompose(Function.identity());
+  }
+
+  /**
+   * Splits the given keys by shard, and runs the given operation on each shard with the keys that
+   * belong to it. Keys of unreachable shards are rerouted as with {@link #route}.
+   */
+  private <T> CompletableFuture<List<T>> routeAll(
+      Collection<String> keys,
+      BiFunction<AbstractRemoteCache, List<String>, CompletableFuture<T>> operation) {
+    Map<Shard, List<String>> groups = new HashMap<>();
+    for (String key : keys) {
+      groups.computeIfAbsent(getShard(key), shard -> new ArrayList<>()).add(key);
+    }
+    List<CompletableFuture<List<T>>> futures = new ArrayList<>();
+    groups.forEach(
+        (shard, group) ->
+            futures.add(
+                runOnShard(shard, cache -> operation.apply(cache, group))
+                    .handle(
+                        (result, e) -> {
+                          if (e == null) {
+                            return CompletableFuture.completedFuture(
+                                Collections.singletonList(result));
+                          }
+                          // All keys of the group are rerouted together, since they're rerouted
+                          // for the same reason
+                          if (isUnreachable(e) && getShard(group.get(0)) != shard) {
+                            return routeAll(group, operation);
+                          }
+                          return CompletableFuture.<List<T>>failedFuture(AsyncUtils.unwrap(e));
+                        })
+                    .thenCompose(Function.identity())));
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+        .thenApply(
+            v -> {
+              List<T> results = new ArrayList<>();
+              futures.forEach(future -> results.addAll(future.join()));
+              return results;
+            });
+  }
+
+  public byte[] get(String key) {
+    return AsyncUtils.join(getAsync(key));
+  }
+
+  public void set(String key, byte[] value) {
+    AsyncUtils.join(
+        route(
+            key,
+            cache -> {
+              cache.set(key, value);
+              return CompletableFuture.completedFuture(null);
+            }));
+  }
+
+  public void set(String key, byte[] value, int expireIn) {
+    AsyncUtils.join(setAsync(key, value, expireIn));
+  }
+
+  public void delete(String key) {
+    AsyncUtils.join(deleteAsync(key));
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    return AsyncUtils.join(getAllAsync(keys));
+  }
+
+  @Override
+  public void setAll(Map<String, byte[]> values, int expireIn) {
+    AsyncUtils.join(setAllAsync(values, expireIn));
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    AsyncUtils.join(deleteAllAsync(keys));
+  }
+
+  public Lock acquireLock(String lockName) {
+    return AsyncUtils.join(
+        route(lockName, cache -> CompletableFuture.completedFuture(cache.acquireLock(lockName))));
+  }
+
+  @Override
+  public Lease tryAcquire(String lockName, long waitTime, long leaseTime) {
+    return AsyncUtils.join(tryAcquireAsync(lockName, waitTime, leaseTime));
+  }
+
+  @Override
+  public ValueOrLease getOrAcquire(String key, long waitTime, long leaseTime) {
+    return AsyncUtils.join(getOrAcquireAsync(key, waitTime, leaseTime));
+  }
+
+  @Override
+  public void setAndRelease(String key, byte[] value, int expireIn, Lease lease) {
+    AsyncUtils.join(setAndReleaseAsync(key, value, expireIn, lease));
+  }
+
+  @Override
+  public void publishInvalidation(String namespace, String key) {
+    // Publish on all shards, so that the notification reaches every broker instance even if some
+    // instances couldn't subscribe to some of the shards. Receiving the same notification several
+    // times has no side effects.
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (Shard shard : shards) {
+      if (shard.isAvailable()) {
+        futures.add(
+            runOnShard(
+                    shard,
+                    cache -> {
+                      cache.publishInvalidation(namespace, key);
+                      return CompletableFuture.<Void>completedFuture(null);
+                    })
+                .exceptionally(
+                    e -> {
+                      logger.warn("Failed to publish invalidation on shard `{}`", shard.name, e);
+                      return null;
+                    }));
+      }
+    }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+  }
+
+  @Override
+  public void subscribeInvalidations(BiConsumer<String, String> listener) {
+    for (Shard shard : shards) {
+      try {
+        shard.cache.subscribeInvalidations(listener);
+      } catch (RuntimeException e) {
+        // Notifications are published on all shards, so they're still received from the others
+        logger.warn("Failed to subscribe to invalidations on shard `{}`", shard.name, e);
+      }
+    }
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getAsync(String key) {
+    return route(key, cache -> cache.getAsync(key));
+  }
+
+  @Override
+  public CompletableFuture<Void> setAsync(String key, byte[] value, int expireIn) {
+    recordExpiry(expireIn);
+    return route(key, cache -> cache.setAsync(key, value, expireIn));
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAsync(String key) {
+    return route(key, cache -> cache.deleteAsync(key));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, byte[]>> getAllAsync(Collection<String> keys) {
+    return routeAll(keys, (cache, group) -> cache.getAllAsync(group))
+        .thenApply(
+            results -> {
+              Map<String, byte[]> values = new HashMap<>();
+              results.forEach(values::putAll);
+              return values;
+            });
+  }
+
+  @Override
+  public CompletableFuture<Void> setAllAsync(Map<String, byte[]> values, int expireIn) {
+    recordExpiry(expireIn);
+    return routeAll(
+            values.keySet(),
+            (cache, group) -> {
+              Map<String, byte[]> groupValues = new HashMap<>();
+              group.forEach(key -> groupValues.put(key, values.get(key)));
+              return cache.setAllAsync(groupValues, expireIn);
+            })
+        .thenApply(results -> null);
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+    return routeAll(keys, (cache, group) -> cache.deleteAllAsync(group))
+        .thenApply(results -> null);
+  }
+
+  @Override
+  public CompletableFuture<Lease> tryAcquireAsync(String lockName, long waitTime, long leaseTime) {
+    return route(lockName, cache -> cache.tryAcquireAsync(lockName, waitTime, leaseTime));
+  }
+
+  @Override
+  public CompletableFuture<ValueOrLease> getOrAcquireAsync(
+      String key, long waitTime, long leaseTime) {
+    return route(key, cache -> cache.getOrAcquireAsync(key, waitTime, leaseTime));
+  }
+
+  @Override
+  public CompletableFuture<Void> setAndReleaseAsync(
+      String key, byte[] value, int expireIn, Lease lease) {
+    recordExpiry(expireIn);
+    Shard shard = getShard(key);
+    if (!shard.cache.isOwnLease(lease)) {
+      // The key was rerouted since the lease was acquired, so another broker instance might now
+      // hold a lease for the key on the new shard. The value isn't stored to avoid overwriting the
+      // value filled in under that lease.
+      lease.release();
+      return CompletableFuture.completedFuture(null);
+    }
+    return runOnShard(shard, cache -> cache.setAndReleaseAsync(key, value, expireIn, lease));
+  }
+
+  @Override
+  public CheckResult checkConnection() {
+    // The cache keeps working as long as at least one shard is reachable
+    List<String> failures = new ArrayList<>();
+    for (Shard shard : shards) {
+      CheckResult result = shard.cache.checkConnection();
+      if (!result.isSuccess()) {
+        failures.add(String.format("Shard `%s`: %s", shard.name, result.getMessage()));
+      }
+    }
+    if (failures.size() == shards.size()) {
+      return new CheckResult(false, String.join("\n", failures));
+    }
+    for (String failure : failures) {
+      logger.warn("Redis shard is unreachable. {}", failure);
+    }
+    return new CheckResult(true);
+  }
+}
@@ -37,10 +37,19 @@ public class RedisCacheTest {
   @ClassRule
   public static SettingsOverride settingsOverride =
       new SettingsOverride(
-          Map.of(
-              AppSettings.REDIS_CACHE_HOST, "localhost",
-              AppSettings.REDIS_CACHE_PORT, 6379,
-              AppSettings.REDIS_CACHE_DB, 0));
+          Map.ofEntries(
+              Map.entry(AppSettings.REDIS_CACHE_HOST, "localhost"),
+              Map.entry(AppSettings.REDIS_CACHE_PORT, 6379),
+              Map.entry(AppSettings.REDIS_CACHE_DB, 0),
+              Map.entry(AppSettings.REDIS_CACHE_INVALIDATION_CHANNEL, "test-invalidation"),
+              Map.entry(AppSettings.REDIS_CACHE_MODE, "single"),
+              Map.entry(AppSettings.REDIS_CACHE_NODES, List.of()),
+              Map.entry(AppSettings.REDIS_CACHE_SENTINEL_MASTER, ""),
+              Map.entry(AppSettings.REDIS_CACHE_READ_FROM_REPLICAS, false),
+              Map.entry(AppSettings.REDIS_CACHE_CONNECTION_POOL_SIZE, 8),
+              Map.entry(AppSettings.REDIS_CACHE_CONNECTION_MINIMUM_IDLE_SIZE, 1),
+              Map.entry(AppSettings.REDIS_CACHE_NETTY_THREADS, 4),
+              Map.entry(AppSettings.REDIS_CACHE_THREADS, 2)));
 
   @BeforeClass
   public static void setupClass() {
@@ -125,6 +134,66 @@ public class RedisCacheTest {
     assertNull(bucket.get());
   }
 
+  @Test
+  public void testGetAll() {
+    // Set some key/values
+    client.getBucket("test-1", ByteArrayCodec.INSTANCE).set("abcd".getBytes());
+    client.getBucket("test-2", ByteArrayCodec.INSTANCE).set("efgh".getBytes());
+
+    // Check that the backend retrieves all the existing keys
+    Map<String, byte[]> values = cache.getAll(List.of("test-1", "test-2", "whatever"));
+    assertEquals(2, values.size());
+    assertArrayEquals("abcd".getBytes(), values.get("test-1"));
+    assertArrayEquals("efgh".getBytes(), values.get("test-2"));
+    assertTrue(cache.getAll(List.of()).isEmpty());
+  }
+
+  @Test
+  public void testSetAll() {
+    // Let the backend set the key/values
+    cache.setAll(Map.of("test-1", "abcd".getBytes(), "test-2", "efgh".getBytes()), 60);
+
+    // Check that the key/values were correctly set
+    RBucket<byte[]> bucket1 = client.getBucket("test-1", ByteArrayCodec.INSTANCE);
+    RBucket<byte[]> bucket2 = client.getBucket("test-2", ByteArrayCodec.INSTANCE);
+    assertArrayEquals("abcd".getBytes(), bucket1.get());
+    assertArrayEquals("efgh".getBytes(), bucket2.get());
+    assertTrue(bucket1.remainTimeToLive() > 0);
+    assertTrue(bucket2.remainTimeToLive() > 0);
+  }
+
+  @Test
+  public void testDeleteAll() {
+    // Set some key/values
+    client.getBucket("test-1", ByteArrayCodec.INSTANCE).set("abcd".getBytes());
+    client.getBucket("test-2", ByteArrayCodec.INSTANCE).set("efgh".getBytes());
+    client.getBucket("test-3", ByteArrayCodec.INSTANCE).set("ijkl".getBytes());
+
+    // Let the backend delete some of the keys
+    cache.deleteAll(List.of("test-1", "test-2"));
+
+    // Check that only those keys were deleted
+    assertNull(cache.get("test-1"));
+    assertNull(cache.get("test-2"));
+    assertArrayEquals("ijkl".getBytes(), cache.get("test-3"));
+  }
+
+  @Test
+  public void testMultiKeyOperationsAsync() throws Exception {
+    cache
+        .setAllAsync(Map.of("test-1", "abcd".getBytes(), "test-2", "efgh".getBytes()), 60)
+        .get(5, TimeUnit.SECONDS);
+    Map<String, byte[]> values =
+        cache.getAllAsync(List.of("test-1", "test-2", "test-3")).get(5, TimeUnit.SECONDS);
+    assertEquals(2, values.size());
+    assertArrayEquals("abcd".getBytes(), values.get("test-1"));
+    assertArrayEquals("efgh".getBytes(), values.get("test-2"));
+
+    cache.deleteAllAsync(List.of("test-1")).get(5, TimeUnit.SECONDS);
+    cache.deleteAsync("test-2").get(5, TimeUnit.SECONDS);
+    assertTrue(cache.getAllAsync(List.of("test-1", "test-2")).get(5, TimeUnit.SECONDS).isEmpty());
+  }
+
   @Test
   public void testLock() throws InterruptedException {
     String LOCK_NAME = "test-lock";
@@ -168,4 +237,188 @@ public class RedisCacheTest {
     String result = String.join(",", list);
     assertTrue(result.equals("a1,b1,c1,a2,b2,c2") || result.equals("a2,b2,c2,a1,b1,c1"));
   }
+
+  @Test
+  public void testGetAsync() throws Exception {
+    RBucket<byte[]> bucket = client.getBucket("test", ByteArrayCodec.INSTANCE);
+    bucket.set("abcd".getBytes());
+    assertArrayEquals("abcd".getBytes(), cache.getAsync("test").get(5, TimeUnit.SECONDS));
+    assertNull(cache.getAsync("does-not-exist").get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSetAsync() throws Exception {
+    cache.setAsync("test", "abcd".getBytes(), 60).get(5, TimeUnit.SECONDS);
+    RBucket<byte[]> bucket = client.getBucket("test", ByteArrayCodec.INSTANCE);
+    assertArrayEquals("abcd".getBytes(), bucket.get());
+    assertTrue(bucket.remainTimeToLive() > 0);
+  }
+
+  @Test
+  public void testTryAcquire() {
+    String LOCK_NAME = "test-lease";
+    Lease lease = cache.tryAcquire(LOCK_NAME, 0, 60000);
+    assertNotNull(lease);
+
+    // The lock can't be acquired again until it's released
+    assertNull(cache.tryAcquire(LOCK_NAME, 200, 60000));
+
+    // Each new lease gets a greater fencing token
+    lease.release();
+    Lease nextLease = cache.tryAcquire(LOCK_NAME, 5000, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testTryAcquireLeaseExpires() throws InterruptedException {
+    String LOCK_NAME = "test-lease-expiry";
+    Lease lease = cache.tryAcquire(LOCK_NAME, 0, 200);
+    assertNotNull(lease);
+
+    // The lock gets released automatically at the end of the lease, even if the holder is stuck
+    Thread.sleep(300);
+    assertTrue(lease.isExpired());
+    Lease nextLease = cache.tryAcquire(LOCK_NAME, 0, 60000);
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testTryAcquireAsync() throws Exception {
+    String LOCK_NAME = "test-async-lease";
+    Lease lease = cache.tryAcquireAsync(LOCK_NAME, 0, 60000).get(5, TimeUnit.SECONDS);
+    assertNotNull(lease);
+
+    // The lock can't be acquired again until it's released
+    CompletableFuture<Lease> competing = cache.tryAcquireAsync(LOCK_NAME, 5000, 60000);
+    Thread.sleep(200);
+    assertFalse(competing.isDone());
+
+    // Release the lock from a different thread than the one that acquired it
+    Thread thread = new Thread(lease::release);
+    thread.start();
+    thread.join();
+
+    Lease competingLease = competing.get(5, TimeUnit.SECONDS);
+    assertNotNull(competingLease);
+    competingLease.release();
+  }
+
+  @Test
+  public void testGetOrAcquire() {
+    // Cache miss, so the lease to fill in the value is acquired
+    ValueOrLease lookup = cache.getOrAcquire("test", 0, 60000);
+    assertNull(lookup.getValue());
+    Lease lease = lookup.getLease();
+    assertNotNull(lease);
+
+    // Other callers can't acquire the lease in the meantime
+    ValueOrLease competing = cache.getOrAcquire("test", 200, 60000);
+    assertNull(competing.getValue());
+    assertNull(competing.getLease());
+
+    // Once the value is filled in, callers get the value
+    cache.setAndRelease("test", "abcd".getBytes(), 60, lease);
+    RBucket<byte[]> bucket = client.getBucket("test", ByteArrayCodec.INSTANCE);
+    assertArrayEquals("abcd".getBytes(), bucket.get());
+    assertTrue(bucket.remainTimeToLive() > 0);
+    lookup = cache.getOrAcquire("test", 0, 60000);
+    assertArrayEquals("abcd".getBytes(), lookup.getValue());
+    assertNull(lookup.getLease());
+
+    // The lease was released along with the value
+    cache.delete("test");
+    Lease nextLease = cache.getOrAcquire("test", 0, 60000).getLease();
+    assertNotNull(nextLease);
+    assertTrue(nextLease.getFencingToken() > lease.getFencingToken());
+    nextLease.release();
+  }
+
+  @Test
+  public void testGetOrAcquireWaitsForValue() throws Exception {
+    Lease lease = cache.getOrAcquire("test", 0, 60000).getLease();
+    assertNotNull(lease);
+
+    // Waiters get the value as soon as the lease holder fills it in
+    CompletableFuture<ValueOrLease> waiting =
+        cache.getOrAcquireAsync("test", 5000, 60000);
+    Thread.sleep(200);
+    assertFalse(waiting.isDone());
+    cache.setAndRelease("test", "abcd".getBytes(), 60, lease);
+    assertArrayEquals("abcd".getBytes(), waiting.get(5, TimeUnit.SECONDS).getValue());
+  }
+
+  @Test
+  public void testSetAndReleaseWithExpiredLease() throws InterruptedException {
+    Lease lease = cache.getOrAcquire("test", 0, 100).getLease();
+    Thread.sleep(200);
+
+    // Someone else acquires the lease once it has expired
+    Lease nextLease = cache.getOrAcquire("test", 0, 60000).getLease();
+    assertNotNull(nextLease);
+
+    // The value isn't set by the previous holder
+    cache.setAndRelease("test", "abcd".getBytes(), 60, lease);
+    assertNull(cache.get("test"));
+
+    // The previous holder didn't release the new holder's lease
+    assertNull(cache.getOrAcquire("test", 0, 60000).getLease());
+    nextLease.release();
+  }
+
+  @Test
+  public void testSameSlotKey() {
+    // The key is wrapped in a hash tag
+    assertEquals("{test}:lease", RedisCache.sameSlotKey("test", ":lease"));
+    // The key's existing hash tag is reused
+    assertEquals("{user}:test:lease", RedisCache.sameSlotKey("{user}:test", ":lease"));
+    // Empty hash tags are ignored by Redis, so the whole key is wrapped
+    assertEquals("{{}test}:lease", RedisCache.sameSlotKey("{}test", ":lease"));
+  }
+
+  @Test
+  public void testCreateConfigCluster() {
+    try (SettingsOverride override =
+        SettingsOverride.apply(
+            Map.of(
+                AppSettings.REDIS_CACHE_MODE,
+                "cluster",
+                AppSettings.REDIS_CACHE_NODES,
+                List.of("node1:7000", "redis://node2:7001")))) {
+      Config config = RedisCache.createConfig();
+      assertTrue(config.isClusterConfig());
+      assertEquals(
+          List.of("redis://node1:7000", "redis://node2:7001"),
+          config.useClusterServers().getNodeAddresses());
+    }
+  }
+
+  @Test
+  public void testCreateConfigInvalidMode() {
+    try (SettingsOverride override =
+        SettingsOverride.apply(Map.of(AppSettings.REDIS_CACHE_MODE, "whatever"))) {
+      try {
+        RedisCache.createConfig();
+        fail();
+      } catch (IllegalArgumentException e) {
+        assertEquals(
+            "Invalid value for the `remote-cache.redis.mode` setting: whatever", e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidations() throws InterruptedException {
+    BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    cache.subscribeInvalidations((namespace, key) -> received.add(namespace + "|" + key));
+
+    cache.publishInvalidation("session", "session-abcd");
+    cache.publishInvalidation("access-token", "access-token-alice-[scope]-");
+
+    assertEquals("session|session-abcd", received.poll(5, TimeUnit.SECONDS));
+    assertEquals("access-token|access-token-alice-[scope]-", received.poll(5, TimeUnit.SECONDS));
+  }
 }
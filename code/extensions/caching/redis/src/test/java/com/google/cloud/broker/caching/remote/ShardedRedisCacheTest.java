@@ -0,0 +1,249 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.caching.remote;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.settings.SettingsOverride;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.*;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.config.Config;
+
+public class ShardedRedisCacheTest {
+
+  private static final String ADDRESS = "redis://localhost:6379";
+  // Nothing listens on that port, so connections are refused right away
+  private static final String UNREACHABLE_ADDRESS = "redis://localhost:1";
+
+  private static List<RedissonClient> clients = new ArrayList<>();
+
+  @ClassRule
+  public static SettingsOverride settingsOverride =
+      new SettingsOverride(
+          Map.of(
+              AppSettings.REDIS_CACHE_SHARDS, List.of("localhost:6379", "localhost:6380"),
+              AppSettings.REDIS_CACHE_SHARD_VIRTUAL_NODES, 160,
+              AppSettings.REDIS_CACHE_SHARD_RETRY_INTERVAL, 10000,
+              AppSettings.REDIS_CACHE_INVALIDATION_CHANNEL, "test-sharded-invalidation"));
+
+  @BeforeClass
+  public static void setupClass() {
+    // Use a separate database on the same server for each shard
+    for (int db = 0; db < 3; db++) {
+      Config config = new Config();
+      config.useSingleServer().setAddress(ADDRESS).setDatabase(db);
+      clients.add(Redisson.create(config));
+    }
+  }
+
+  @After
+  public void teardown() {
+    clients.forEach(client -> client.getKeys().flushdb());
+  }
+
+  private static RedisCache createShard(String address, int db) {
+    return new RedisCache(
+        () -> {
+          Config config = new Config();
+          config.useSingleServer().setAddress(address).setDatabase(db);
+          return config;
+        },
+        false);
+  }
+
+  private static ShardedRedisCache createCache(int shardCount) {
+    Map<String, RedisCache> shards = new LinkedHashMap<>();
+    for (int db = 0; db < shardCount; db++) {
+      shards.put("shard-" + db, createShard(ADDRESS, db));
+    }
+    return new ShardedRedisCache(shards, 160, 10000);
+  }
+
+  private static byte[] getFromShard(int db, String key) {
+    return clients.get(db).<byte[]>getBucket(key, ByteArrayCodec.INSTANCE).get();
+  }
+
+  @Test
+  public void testShardsFromSettings() {
+    ShardedRedisCache cache = new ShardedRedisCache();
+    assertTrue(
+        List.of("localhost:6379", "localhost:6380").contains(cache.getShard("key").getName()));
+  }
+
+  @Test
+  public void testNoShards() {
+    try {
+      new ShardedRedisCache(Map.of(), 160, 10000);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("The `remote-cache.redis.shards` setting must not be empty", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testKeysAreSpreadAcrossShards() {
+    ShardedRedisCache cache = createCache(3);
+    int[] counts = new int[3];
+    for (int i = 0; i < 300; i++) {
+      String key = "key-" + i;
+      cache.set(key, key.getBytes(), 60);
+      // Check that the key was stored on the shard it's routed to, and only there
+      int db = Integer.parseInt(cache.getShard(key).getName().substring("shard-".length()));
+      for (int other = 0; other < 3; other++) {
+        if (other == db) {
+          assertArrayEquals(key.getBytes(), getFromShard(other, key));
+        } else {
+          assertNull(getFromShard(other, key));
+        }
+      }
+      assertArrayEquals(key.getBytes(), cache.get(key));
+      counts[db]++;
+    }
+    // Check that every shard gets a fair share of the keys
+    for (int count : counts) {
+      assertTrue(count > 50);
+    }
+  }
+
+  @Test
+  public void testAddingShardOnlyMovesKeysToNewShard() {
+    ShardedRedisCache threeShards = createCache(3);
+    ShardedRedisCache fourShards = createCache(4);
+    int moved = 0;
+    for (int i = 0; i < 1000; i++) {
+      String key = "key-" + i;
+      String before = threeShards.getShard(key).getName();
+      String after = fourShards.getShard(key).getName();
+      if (!before.equals(after)) {
+        assertEquals("shard-3", after);
+        moved++;
+      }
+    }
+    // Roughly a quarter of the keys move to the new shard
+    assertTrue(moved > 150 && moved < 350);
+  }
+
+  @Test
+  public void testUnreachableShardIsSkipped() {
+    Map<String, RedisCache> shards = new LinkedHashMap<>();
+    shards.put("shard-0", createShard(ADDRESS, 0));
+    shards.put("unreachable", createShard(UNREACHABLE_ADDRESS, 0));
+    ShardedRedisCache cache = new ShardedRedisCache(shards, 160, 10000);
+
+    // Find a key that normally belongs to the unreachable shard
+    String key = null;
+    for (int i = 0; key == null; i++) {
+      if (cache.getShard("key-" + i).getName().equals("unreachable")) {
+        key = "key-" + i;
+      }
+    }
+
+    // Check that the key is rerouted to the other shard
+    cache.set(key, "abcd".getBytes(), 60);
+    assertArrayEquals("abcd".getBytes(), getFromShard(0, key));
+    assertArrayEquals("abcd".getBytes(), cache.get(key));
+    assertEquals("shard-0", cache.getShard(key).getName());
+  }
+
+  @Test
+  public void testUnreachableShardIsSkippedUntilItsValuesExpire() throws InterruptedException {
+    Map<String, RedisCache> shards = new LinkedHashMap<>();
+    shards.put("shard-0", createShard(ADDRESS, 0));
+    shards.put("unreachable", createShard(UNREACHABLE_ADDRESS, 0));
+    ShardedRedisCache cache = new ShardedRedisCache(shards, 160, 100);
+    String key = null;
+    for (int i = 0; key == null; i++) {
+      if (cache.getShard("key-" + i).getName().equals("unreachable")) {
+        key = "key-" + i;
+      }
+    }
+
+    // Values are stored for longer than the retry interval
+    cache.set("other", "abcd".getBytes(), 60);
+    cache.set(key, "abcd".getBytes(), 60);
+    assertEquals("shard-0", cache.getShard(key).getName());
+
+    // The shard is still skipped after the retry interval, as it may hold stale values
+    Thread.sleep(200);
+    assertEquals("shard-0", cache.getShard(key).getName());
+  }
+
+  @Test
+  public void testAllShardsUnreachable() {
+    ShardedRedisCache cache =
+        new ShardedRedisCache(
+            Map.of("unreachable", createShard(UNREACHABLE_ADDRESS, 0)), 160, 10000);
+    try {
+      cache.get("key");
+      fail();
+    } catch (RuntimeException e) {
+      // Expected
+    }
+    assertFalse(cache.checkConnection().isSuccess());
+  }
+
+  @Test
+  public void testMultiKeyOperations() {
+    ShardedRedisCache cache = createCache(3);
+    Map<String, byte[]> values = new HashMap<>();
+    for (int i = 0; i < 30; i++) {
+      values.put("key-" + i, ("value-" + i).getBytes());
+    }
+    cache.setAll(values, 60);
+
+    List<String> keys = new ArrayList<>(values.keySet());
+    keys.add("missing");
+    Map<String, byte[]> found = cache.getAll(keys);
+    assertEquals(30, found.size());
+    values.forEach((key, value) -> assertArrayEquals(value, found.get(key)));
+
+    cache.deleteAll(values.keySet());
+    assertTrue(cache.getAll(keys).isEmpty());
+  }
+
+  @Test
+  public void testGetOrAcquire() {
+    ShardedRedisCache cache = createCache(3);
+    Lease lease = cache.getOrAcquire("test", 0, 60000).getLease();
+    assertNotNull(lease);
+    cache.setAndRelease("test", "abcd".getBytes(), 60, lease);
+    assertArrayEquals("abcd".getBytes(), cache.getOrAcquire("test", 0, 60000).getValue());
+  }
+
+  @Test
+  public void testInvalidations() throws InterruptedException {
+    ShardedRedisCache cache = createCache(3);
+    List<String> received = new ArrayList<>();
+    cache.subscribeInvalidations(
+        (namespace, key) -> {
+          synchronized (received) {
+            received.add(namespace + "|" + key);
+          }
+        });
+    cache.publishInvalidation("session", "abcd");
+    Thread.sleep(500);
+    // The notification is published on every shard. All shards share the same server here, so
+    // each subscription receives the notifications published on all shards.
+    synchronized (received) {
+      assertEquals(9, received.size());
+      assertTrue(received.stream().allMatch("session|abcd"::equals));
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.datastore;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.SharedClients;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.http.HttpTransportOptions;
+import com.typesafe.config.Config;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import org.threeten.bp.Duration;
+
+/**
+ * Provides the Cloud Datastore client shared by the Cloud Datastore backends (e.g. database and
+ * remote cache), so that all requests to a given project reuse the same client and HTTP transport.
+ * The client is registered with {@link SharedClients}, which closes it when the broker shuts down.
+ */
+public class DatastoreClientFactory {
+
+  private static class Client {
+
+    private final Datastore datastore;
+    private final HttpTransport transport;
+
+    Client(Datastore datastore, HttpTransport transport) {
+      this.datastore = datastore;
+      this.transport = transport;
+    }
+  }
+
+  /** Returns the shared client for the project set in the settings. */
+  public static Datastore getClient() {
+    String projectId = AppSettings.getInstance().getString(AppSettings.GCP_PROJECT);
+    return SharedClients.get(
+            "datastore:" + projectId,
+            () -> createClient(projectId),
+            DatastoreClientFactory::closeClient)
+        .datastore;
+  }
+
+  private static Client createClient(String projectId) {
+    Config settings = AppSettings.getInstance();
+    // Use a single transport, so that its connections are reused across requests
+    HttpTransport transport = new NetHttpTransport();
+    HttpTransportOptions transportOptions =
+        HttpTransportOptions.newBuilder()
+            .setHttpTransportFactory(() -> transport)
+            .setConnectTimeout(settings.getInt(AppSettings.DATASTORE_CONNECT_TIMEOUT))
+            .setReadTimeout(settings.getInt(AppSettings.DATASTORE_READ_TIMEOUT))
+            .build();
+    RetrySettings retrySettings =
+        ServiceOptions.getDefaultRetrySettings().toBuilder()
+            .setMaxAttempts(settings.getInt(AppSettings.DATASTORE_MAX_ATTEMPTS))
+            .setInitialRetryDelay(
+                Duration.ofMillis(settings.getLong(AppSettings.DATASTORE_INITIAL_RETRY_DELAY)))
+            .setMaxRetryDelay(
+                Duration.ofMillis(settings.getLong(AppSettings.DATASTORE_MAX_RETRY_DELAY)))
+            .setTotalTimeout(
+                Duration.ofMillis(settings.getLong(AppSettings.DATASTORE_TOTAL_TIMEOUT)))
+            .build();
+    Datastore datastore =
+        DatastoreOptions.newBuilder()
+            .setProjectId(projectId)
+            .setTransportOptions(transportOptions)
+            .setRetrySettings(retrySettings)
+            .build()
+            .getService();
+    return new Client(datastore, transport);
+  }
+
+  private static void closeClient(Client client) {
+    try {
+      client.transport.shutdown();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
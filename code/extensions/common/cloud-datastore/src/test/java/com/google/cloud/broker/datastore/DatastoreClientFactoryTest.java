@@ -0,0 +1,52 @@
+// Copyright 2020 Google LLC
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.broker.datastore;
+
+import static org.junit.Assert.*;
+
+import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.SharedClients;
+import com.google.cloud.datastore.Datastore;
+import org.junit.After;
+import org.junit.Test;
+
+public class DatastoreClientFactoryTest {
+
+  @After
+  public void teardown() {
+    SharedClients.closeAll();
+  }
+
+  @Test
+  public void testClientIsShared() {
+    Datastore client = DatastoreClientFactory.getClient();
+    assertSame(client, DatastoreClientFactory.getClient());
+    assertEquals(
+        AppSettings.getInstance().getString(AppSettings.GCP_PROJECT),
+        client.getOptions().getProjectId());
+  }
+
+  @Test
+  public void testSettings() {
+    Datastore client = DatastoreClientFactory.getClient();
+    assertEquals(
+        AppSettings.getInstance().getInt(AppSettings.DATASTORE_MAX_ATTEMPTS),
+        client.getOptions().getRetrySettings().getMaxAttempts());
+  }
+
+  @Test
+  public void testNewClientAfterClose() {
+    Datastore client = DatastoreClientFactory.getClient();
+    SharedClients.closeAll();
+    assertNotSame(client, DatastoreClientFactory.getClient());
+  }
+}
@@ -14,7 +14,7 @@ package com.google.cloud.broker.database.backends;
 import com.google.cloud.broker.checks.CheckResult;
 import com.google.cloud.broker.database.DatabaseObjectNotFound;
 import com.google.cloud.broker.database.models.Model;
-import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.datastore.DatastoreClientFactory;
 import com.google.cloud.datastore.*;
 import com.google.cloud.datastore.StructuredQuery.*;
 import java.io.PrintWriter;
@@ -24,8 +24,7 @@ import java.util.*;
 public class CloudDatastoreBackend extends AbstractDatabaseBackend {
 
   private Datastore getService() {
-    String projectId = AppSettings.getInstance().getString(AppSettings.GCP_PROJECT);
-    return DatastoreOptions.newBuilder().setProjectId(projectId).build().getService();
+    return DatastoreClientFactory.getClient();
   }
 
   private Model convertEntityToModel(Entity entity, Class modelClass) {
@@ -84,11 +83,13 @@ public class CloudDatastoreBackend extends AbstractDatabaseBackend {
     return convertEntityToModel(entity, modelClass);
   }
 
-  public void save(Model model) {
+  // Maximum number of entities that Cloud Datastore accepts in a single put or delete call
+  static final int MAX_BATCH_SIZE = 500;
+
+  private Entity convertModelToEntity(Datastore datastore, Model model) {
     if (model.getDBId() == null) {
       model.setDBId(UUID.randomUUID().toString());
     }
-    Datastore datastore = getService();
     KeyFactory keyFactory = datastore.newKeyFactory().setKind(model.getClass().getSimpleName());
     Key key = keyFactory.newKey(model.getDBId());
     Entity.Builder builder = Entity.newBuilder(key);
@@ -98,8 +99,34 @@ public class CloudDatastoreBackend extends AbstractDatabaseBackend {
       Value<?> value = objectToValue(entry.getValue());
       builder.set(name, value);
     }
-    Entity entity = builder.build();
-    datastore.put(entity);
+    return builder.build();
+  }
+
+  private Key getKey(Datastore datastore, Model model) {
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(model.getClass().getSimpleName());
+    return keyFactory.newKey(model.getDBId());
+  }
+
+  public void save(Model model) {
+    Datastore datastore = getService();
+    datastore.put(convertModelToEntity(datastore, model));
+  }
+
+  /**
+   * Saves the given models in batches of up to {@link #MAX_BATCH_SIZE} entities. Each batch is
+   * saved atomically, but a failure may leave the previous batches saved.
+   */
+  @Override
+  public void saveAll(Collection<? extends Model> models) {
+    Datastore datastore = getService();
+    List<Entity> entities = new ArrayList<>(models.size());
+    for (Model model : models) {
+      entities.add(convertModelToEntity(datastore, model));
+    }
+    for (int i = 0; i < entities.size(); i += MAX_BATCH_SIZE) {
+      List<Entity> batch = entities.subList(i, Math.min(i + MAX_BATCH_SIZE, entities.size()));
+      datastore.put(batch.toArray(new Entity[0]));
+    }
   }
 
   // Converts an Object to a Datastore Value
@@ -126,9 +153,28 @@ public class CloudDatastoreBackend extends AbstractDatabaseBackend {
   @Override
   public void delete(Model model) {
     Datastore datastore = getService();
-    KeyFactory keyFactory = datastore.newKeyFactory().setKind(model.getClass().getSimpleName());
-    Key key = keyFactory.newKey(model.getDBId());
-    datastore.delete(key);
+    datastore.delete(getKey(datastore, model));
+  }
+
+  /**
+   * Deletes the given models in batches of up to {@link #MAX_BATCH_SIZE} entities. Each batch is
+   * deleted atomically, but a failure may leave the previous batches deleted.
+   */
+  @Override
+  public void deleteAll(Collection<? extends Model> models) {
+    Datastore datastore = getService();
+    List<Key> keys = new ArrayList<>(models.size());
+    for (Model model : models) {
+      keys.add(getKey(datastore, model));
+    }
+    deleteKeys(datastore, keys);
+  }
+
+  private static void deleteKeys(Datastore datastore, List<Key> keys) {
+    for (int i = 0; i < keys.size(); i += MAX_BATCH_SIZE) {
+      List<Key> batch = keys.subList(i, Math.min(i + MAX_BATCH_SIZE, keys.size()));
+      datastore.delete(batch.toArray(new Key[0]));
+    }
   }
 
   @Override
@@ -143,11 +189,17 @@ public class CloudDatastoreBackend extends AbstractDatabaseBackend {
       queryBuilder.setLimit(numItems);
     }
     KeyQuery query = queryBuilder.build();
-    final QueryResults<Key> keys = datastore.run(query);
+    final QueryResults<Key> results = datastore.run(query);
+    // Delete each batch as soon as it's read, so that the keys don't all have to fit in memory
+    List<Key> batch = new ArrayList<>();
     int numDeletedItems = 0;
-    while (keys.hasNext()) {
-      datastore.delete(keys.next());
-      numDeletedItems++;
+    while (results.hasNext()) {
+      batch.add(results.next());
+      if (batch.size() == MAX_BATCH_SIZE || !results.hasNext()) {
+        datastore.delete(batch.toArray(new Key[0]));
+        numDeletedItems += batch.size();
+        batch.clear();
+      }
     }
     return numDeletedItems;
   }
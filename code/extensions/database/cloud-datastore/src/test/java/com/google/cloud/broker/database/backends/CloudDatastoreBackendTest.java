@@ -191,6 +191,61 @@ public class CloudDatastoreBackendTest {
     assertNull(entity);
   }
 
+  /** Test saving many models at once, across several batches. */
+  @Test
+  public void testSaveAll() {
+    List<Foo> foos = new ArrayList<>();
+    int numFoos = CloudDatastoreBackend.MAX_BATCH_SIZE + 1;
+    for (int i = 0; i < numFoos; i++) {
+      foos.add(new Foo("id-" + i, "abcd".getBytes(), 1564094282994L, List.of("hello")));
+    }
+    // An ID should automatically be assigned to this one
+    foos.add(new Foo(null, "abcd".getBytes(), 1564094282994L, List.of("hello")));
+    CloudDatastoreBackend backend = new CloudDatastoreBackend();
+    backend.saveAll(foos);
+
+    // Check that all the records were created
+    Datastore datastore = getService();
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind("Foo").build();
+    QueryResults<Entity> entities = datastore.run(query);
+    int numItems = 0;
+    while (entities.hasNext()) {
+      Entity entity = entities.next();
+      assertEquals(1564094282994L, entity.getValue("longVal").get());
+      numItems++;
+    }
+    assertEquals(numFoos + 1, numItems);
+    assertNotNull(foos.get(numFoos).getDBId());
+  }
+
+  /** Test deleting many models at once, across several batches. */
+  @Test
+  public void testDeleteAll() {
+    // Create records in the database
+    Datastore datastore = getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("Foo");
+    List<Foo> foos = new ArrayList<>();
+    int numFoos = CloudDatastoreBackend.MAX_BATCH_SIZE + 1;
+    for (int i = 0; i < numFoos; i++) {
+      Entity.Builder builder = Entity.newBuilder(keyFactory.newKey("id-" + i));
+      builder.set("longVal", 1564094282994L);
+      datastore.put(builder.build());
+      foos.add(new Foo("id-" + i, null, null, List.of()));
+    }
+    datastore.put(Entity.newBuilder(keyFactory.newKey("other")).set("longVal", 1L).build());
+
+    // Delete all records but one
+    CloudDatastoreBackend backend = new CloudDatastoreBackend();
+    backend.deleteAll(foos);
+
+    // Check that only the other record is left
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind("Foo").build();
+    QueryResults<Entity> entities = datastore.run(query);
+    assertTrue(entities.hasNext());
+    assertEquals("other", entities.next().getKey().getName());
+    assertFalse(entities.hasNext());
+  }
+
   /** Test deleting expired items from the database. */
   public void deleteExpiredItems(boolean withLimit) {
     Datastore datastore = getService();
@@ -242,6 +297,25 @@ public class CloudDatastoreBackendTest {
     deleteExpiredItems(true);
   }
 
+  @Test
+  public void testDeleteExpiredItemsInBatches() {
+    Datastore datastore = getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("Foo");
+    int numExpired = 2 * CloudDatastoreBackend.MAX_BATCH_SIZE + 1;
+    for (int i = 0; i < numExpired; i++) {
+      datastore.put(Entity.newBuilder(keyFactory.newKey("id-" + i)).set("longVal", 1L).build());
+    }
+    datastore.put(Entity.newBuilder(keyFactory.newKey("other")).set("longVal", 10L).build());
+
+    // All the expired items are deleted, across several batches
+    CloudDatastoreBackend backend = new CloudDatastoreBackend();
+    assertEquals(numExpired, backend.deleteExpiredItems(Foo.class, "longVal", 4L));
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind("Foo").build();
+    QueryResults<Entity> entities = datastore.run(query);
+    assertEquals("other", entities.next().getKey().getName());
+    assertFalse(entities.hasNext());
+  }
+
   @Test
   public void testInitializeDatabase() {
     // Just a smoke test. Cloud Datastore doesn't need initializing.
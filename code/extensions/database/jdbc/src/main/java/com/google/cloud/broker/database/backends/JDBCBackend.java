@@ -15,41 +15,276 @@ import com.google.cloud.broker.checks.CheckResult;
 import com.google.cloud.broker.database.DatabaseObjectNotFound;
 import com.google.cloud.broker.database.models.Model;
 import com.google.cloud.broker.settings.AppSettings;
+import com.google.cloud.broker.utils.SharedClients;
+import com.typesafe.config.Config;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class JDBCBackend extends AbstractDatabaseBackend {
 
-  private Connection connectionInstance;
+  private static final Logger logger =
+      LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private ConnectionPool pool;
+
+  /** Pool of database connections, along with the thread that reports the pool's usage. */
+  static class ConnectionPool {
+
+    private final HikariDataSource dataSource;
+    private final ScheduledExecutorService reporter;
+
+    ConnectionPool(HikariConfig config, long metricsInterval) {
+      dataSource = new HikariDataSource(config);
+      if (metricsInterval > 0) {
+        reporter =
+            Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                  Thread thread = new Thread(runnable, "jdbc-pool-metrics");
+                  thread.setDaemon(true);
+                  return thread;
+                });
+        reporter.scheduleAtFixedRate(
+            this::reportMetrics, metricsInterval, metricsInterval, TimeUnit.MILLISECONDS);
+      } else {
+        reporter = null;
+      }
+    }
 
-  Connection getConnection() {
-    if (connectionInstance == null) {
-      String url = AppSettings.getInstance().getString(AppSettings.DATABASE_JDBC_URL);
-      try {
-        connectionInstance = DriverManager.getConnection(url);
-      } catch (Exception e) {
-        throw new RuntimeException(e);
+    HikariDataSource getDataSource() {
+      return dataSource;
+    }
+
+    /**
+     * Logs the pool's usage. Logs a warning if the pool is saturated, i.e. if some threads are
+     * waiting for a connection, which means that the pool's maximum size may be too small.
+     */
+    void reportMetrics() {
+      HikariPoolMXBean metrics = dataSource.getHikariPoolMXBean();
+      if (metrics == null) {
+        return;
+      }
+      String message =
+          String.format(
+              "JDBC connection pool: %d active, %d idle, %d total (maximum: %d), %d waiting",
+              metrics.getActiveConnections(),
+              metrics.getIdleConnections(),
+              metrics.getTotalConnections(),
+              dataSource.getMaximumPoolSize(),
+              metrics.getThreadsAwaitingConnection());
+      if (metrics.getThreadsAwaitingConnection() > 0) {
+        logger.warn(message);
+      } else {
+        logger.info(message);
       }
     }
-    return connectionInstance;
+
+    void close() {
+      if (reporter != null) {
+        reporter.shutdownNow();
+      }
+      dataSource.close();
+    }
   }
 
-  private void formatValues(PreparedStatement statement, Map<String, Object> values)
-      throws SQLException {
-    formatValues(statement, values, 1);
+  synchronized ConnectionPool getPool() {
+    if (pool == null) {
+      String url = AppSettings.getInstance().getString(AppSettings.DATABASE_JDBC_URL);
+      // The URL may contain credentials, so only its hash is used in the pool's name
+      pool =
+          SharedClients.get(
+              "jdbc-pool-" + Integer.toHexString(url.hashCode()),
+              () ->
+                  new ConnectionPool(
+                      createPoolConfig(url),
+                      AppSettings.getInstance()
+                          .getLong(AppSettings.DATABASE_JDBC_POOL_METRICS_INTERVAL)),
+              ConnectionPool::close);
+    }
+    return pool;
   }
 
-  private void formatValues(PreparedStatement statement, Map<String, Object> values, int offset)
-      throws SQLException {
-    for (Map.Entry<String, Object> entry : values.entrySet()) {
-      Object value = entry.getValue();
-      formatValue(statement, value, offset);
-      offset += 1;
+  /** Returns the pool configuration for the given URL and for the settings. */
+  static HikariConfig createPoolConfig(String url) {
+    Config settings = AppSettings.getInstance();
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl(url);
+    config.setMinimumIdle(settings.getInt(AppSettings.DATABASE_JDBC_POOL_MINIMUM_IDLE));
+    config.setMaximumPoolSize(settings.getInt(AppSettings.DATABASE_JDBC_POOL_MAXIMUM_SIZE));
+    config.setConnectionTimeout(
+        settings.getLong(AppSettings.DATABASE_JDBC_POOL_CONNECTION_TIMEOUT));
+    // Connections are validated with Connection.isValid() before being handed out
+    config.setValidationTimeout(
+        settings.getLong(AppSettings.DATABASE_JDBC_POOL_VALIDATION_TIMEOUT));
+    config.setIdleTimeout(settings.getLong(AppSettings.DATABASE_JDBC_POOL_IDLE_TIMEOUT));
+    config.setMaxLifetime(settings.getLong(AppSettings.DATABASE_JDBC_POOL_MAX_LIFETIME));
+    config.setLeakDetectionThreshold(
+        settings.getLong(AppSettings.DATABASE_JDBC_POOL_LEAK_DETECTION_THRESHOLD));
+    // Expose the pool's metrics over JMX as well
+    config.setRegisterMbeans(true);
+    // Let the driver cache the prepared statements of each connection, so that queries are parsed
+    // and planned by the database server only once per connection
+    int statementCacheSize = settings.getInt(AppSettings.DATABASE_JDBC_STATEMENT_CACHE_SIZE);
+    String dialect = getDialect(url);
+    switch (dialect) {
+      case "postgresql":
+        config.addDataSourceProperty("preparedStatementCacheQueries", statementCacheSize);
+        break;
+      case "mariadb":
+      case "mysql":
+        config.addDataSourceProperty("useServerPrepStmts", statementCacheSize > 0);
+        config.addDataSourceProperty("cachePrepStmts", statementCacheSize > 0);
+        config.addDataSourceProperty("prepStmtCacheSize", statementCacheSize);
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", 2048);
+        break;
+      default:
+        // The SQLite driver doesn't cache statements
+        break;
+    }
+    if (dialect.equals("sqlite")) {
+      // SQLite only supports one writer at a time. Also, each connection to an in-memory database
+      // has its own separate database, so that connection must be kept open for good.
+      config.setMinimumIdle(1);
+      config.setMaximumPoolSize(1);
+      config.setIdleTimeout(0);
+      config.setMaxLifetime(0);
+    }
+    return config;
+  }
+
+  /**
+   * Returns a connection from the pool. The connection must be closed after use, which returns it
+   * to the pool.
+   */
+  Connection getConnection() {
+    try {
+      return getPool().getDataSource().getConnection();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
     }
   }
 
+  /**
+   * SQL queries for one model class, built once for the database's dialect so that they don't have
+   * to be assembled again for every call.
+   */
+  static class ModelQueries {
+
+    private final String dialect;
+    private final String table;
+    final String selectAll;
+    final String selectById;
+    final String deleteById;
+    private volatile Upsert upsert;
+    // Queries that delete expired items, indexed by expiry field and by whether they have a limit
+    private final ConcurrentMap<String, String> deleteExpiredQueries = new ConcurrentHashMap<>();
+
+    ModelQueries(Class<?> modelClass, String dialect) {
+      this.dialect = dialect;
+      table = quote(dialect, modelClass.getSimpleName());
+      selectAll = "SELECT * FROM " + table;
+      selectById = selectAll + " WHERE " + quote(dialect, "id") + " = ?";
+      deleteById = "DELETE FROM " + table + " WHERE " + quote(dialect, "id") + " = ?";
+    }
+
+    /** Returns the upsert query for the model class, given the values of one of its models. */
+    Upsert getUpsert(Map<String, Object> values) {
+      Upsert current = upsert;
+      if (current == null) {
+        // All models of the same class have the same fields
+        current = new Upsert(dialect, table, values.keySet());
+        upsert = current;
+      }
+      return current;
+    }
+
+    String getDeleteExpired(String field, boolean withLimit) {
+      return deleteExpiredQueries.computeIfAbsent(
+          field + (withLimit ? ":limit" : ""),
+          k -> buildDeleteExpired(dialect, table, field, withLimit));
+    }
+
+    private static String buildDeleteExpired(
+        String dialect, String table, String field, boolean withLimit) {
+      String condition = " WHERE " + quote(dialect, field) + " <= ?";
+      if (!withLimit) {
+        return "DELETE FROM " + table + condition;
+      }
+      String order = " ORDER BY " + quote(dialect, field);
+      if (dialect.equals("mariadb") || dialect.equals("mysql")) {
+        return "DELETE FROM " + table + condition + order + " ASC LIMIT ?";
+      }
+      String rowId = getRowIdField(dialect);
+      return "DELETE FROM "
+          + table
+          + " WHERE "
+          + rowId
+          + " IN (SELECT "
+          + rowId
+          + " FROM "
+          + table
+          + condition
+          + order
+          + " LIMIT ?)";
+    }
+  }
+
+  /**
+   * Query that inserts a model, or updates it if it already exists. The values are bound in the
+   * fixed order of the columns.
+   */
+  static class Upsert {
+
+    final List<String> columns;
+    final String query;
+
+    Upsert(String dialect, String table, Collection<String> fields) {
+      List<String> sorted = new ArrayList<>(fields);
+      Collections.sort(sorted);
+      columns = List.copyOf(sorted);
+      StringJoiner names = new StringJoiner(", ");
+      StringJoiner placeholders = new StringJoiner(", ");
+      StringJoiner updates = new StringJoiner(", ");
+      for (String column : columns) {
+        String name = quote(dialect, column);
+        names.add(name);
+        placeholders.add("?");
+        if (!column.equals("id")) {
+          updates.add(name + " = " + getUpsertValue(dialect, name));
+        }
+      }
+      query =
+          "INSERT INTO "
+              + table
+              + " ("
+              + names
+              + ") VALUES ("
+              + placeholders
+              + ") "
+              + getUpsertStatement(dialect)
+              + " "
+              + updates;
+    }
+  }
+
+  private final ConcurrentMap<Class<?>, ModelQueries> modelQueries = new ConcurrentHashMap<>();
+
+  ModelQueries getQueries(Class<?> modelClass) {
+    return modelQueries.computeIfAbsent(modelClass, klass -> new ModelQueries(klass, getDialect()));
+  }
+
   private void formatValue(PreparedStatement statement, Object value, int index)
       throws SQLException {
     if (value instanceof String) {
@@ -71,8 +306,7 @@ public class JDBCBackend extends AbstractDatabaseBackend {
     HashMap<String, Object> values = new HashMap<>();
     ResultSetMetaData rsmd = rs.getMetaData();
     for (int i = 1; i <= rsmd.getColumnCount(); i++) {
-      String name = rsmd.getColumnName(i);
-      values.put(name, rs.getObject(name));
+      values.put(rsmd.getColumnName(i), rs.getObject(i));
     }
 
     // Instantiate a new object
@@ -80,14 +314,10 @@ public class JDBCBackend extends AbstractDatabaseBackend {
   }
 
   public List<Model> getAll(Class modelClass) {
-    Connection connection = getConnection();
-    PreparedStatement statement = null;
-    ResultSet rs = null;
-    try {
-      String table = modelClass.getSimpleName();
-      String query = "SELECT * FROM " + quote(table);
-      statement = connection.prepareStatement(query);
-      rs = statement.executeQuery();
+    String query = getQueries(modelClass).selectAll;
+    try (Connection connection = getConnection();
+        PreparedStatement statement = connection.prepareStatement(query);
+        ResultSet rs = statement.executeQuery()) {
       List<Model> models = new ArrayList<>();
       while (rs.next()) {
         Model model = convertResultSetToModel(rs, modelClass);
@@ -96,52 +326,26 @@ public class JDBCBackend extends AbstractDatabaseBackend {
       return models;
     } catch (SQLException e) {
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
     }
   }
 
   @Override
   public Model get(Class modelClass, String objectId) throws DatabaseObjectNotFound {
-    Connection connection = getConnection();
-    PreparedStatement statement = null;
-    ResultSet rs = null;
-    try {
-      String table = modelClass.getSimpleName();
-      String query = "SELECT * FROM " + quote(table) + " WHERE " + quote("id") + " = ?";
-      statement = connection.prepareStatement(query);
+    String query = getQueries(modelClass).selectById;
+    try (Connection connection = getConnection();
+        PreparedStatement statement = connection.prepareStatement(query)) {
       formatValue(statement, objectId, 1);
-      rs = statement.executeQuery();
+      try (ResultSet rs = statement.executeQuery()) {
+        // No object found
+        if (!rs.next()) {
+          throw new DatabaseObjectNotFound(
+              String.format("%s object not found: %s", modelClass.getSimpleName(), objectId));
+        }
 
-      // No object found
-      if (!rs.next()) {
-        throw new DatabaseObjectNotFound(
-            String.format("%s object not found: %s", modelClass.getSimpleName(), objectId));
+        return convertResultSetToModel(rs, modelClass);
       }
-
-      return convertResultSetToModel(rs, modelClass);
     } catch (SQLException e) {
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
     }
   }
 
@@ -152,210 +356,216 @@ public class JDBCBackend extends AbstractDatabaseBackend {
       model.setDBId(UUID.randomUUID().toString());
     }
 
-    Map<String, Object> map = model.toMap();
-    Connection connection = getConnection();
-    PreparedStatement statement = null;
-    try {
-      // Assemble the columns and values
-      StringBuilder columns = new StringBuilder();
-      StringBuilder values = new StringBuilder();
-      StringBuilder update = new StringBuilder();
-      Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
-      while (iterator.hasNext()) {
-        Map.Entry<String, Object> entry = iterator.next();
-        String column = entry.getKey();
-        columns.append(quote(column));
-        values.append("?");
-        update.append(quote(column)).append(" = ?");
-        if (iterator.hasNext()) {
-          columns.append(", ");
-          values.append(", ");
-          update.append(", ");
-        }
+    Map<String, Object> values = model.toMap();
+    Upsert upsert = getQueries(model.getClass()).getUpsert(values);
+    try (Connection connection = getConnection();
+        PreparedStatement statement = connection.prepareStatement(upsert.query)) {
+      for (int i = 0; i < upsert.columns.size(); i++) {
+        formatValue(statement, values.get(upsert.columns.get(i)), i + 1);
       }
-
-      // Assemble the query
-      String table = model.getClass().getSimpleName();
-      String query =
-          "INSERT INTO "
-              + quote(table)
-              + " ("
-              + columns
-              + ") VALUES ("
-              + values
-              + ") "
-              + getUpsertStatement()
-              + " "
-              + update;
-
-      // Format the statement
-      statement = connection.prepareStatement(query);
-      formatValues(statement, map); // Format the INSERT values
-      formatValues(statement, map, 1 + map.size()); // Format the UPDATE values
-
-      // Run the query
       statement.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
     }
   }
 
   @Override
   public void delete(Model model) {
-    String table = model.getClass().getSimpleName();
-    String id = model.getDBId();
-    String query = "DELETE FROM " + quote(table) + " WHERE " + quote("id") + "  = ?";
-    Connection connection = getConnection();
-    PreparedStatement statement = null;
-    try {
-      statement = connection.prepareStatement(query);
-      formatValue(statement, id, 1);
+    String query = getQueries(model.getClass()).deleteById;
+    try (Connection connection = getConnection();
+        PreparedStatement statement = connection.prepareStatement(query)) {
+      formatValue(statement, model.getDBId(), 1);
       statement.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
-    } finally {
+    }
+  }
+
+  /** Maximum number of statements sent to the database server in a single batch. */
+  static final int BATCH_SIZE = 500;
+
+  /** Body of a transaction, run with the transaction's connection. */
+  private interface Transaction {
+    void run(Connection connection) throws SQLException;
+  }
+
+  /**
+   * Runs the given transaction on a connection from the pool. The transaction is committed if it
+   * completes, and rolled back otherwise.
+   */
+  private void runInTransaction(Transaction transaction) {
+    try (Connection connection = getConnection()) {
+      connection.setAutoCommit(false);
       try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
+        transaction.run(connection);
+        connection.commit();
+      } catch (SQLException | RuntimeException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Sends the statement's batch to the database server if it's full or if it's the last one. */
+  private static void executeBatchIfFull(PreparedStatement statement, int index, int size)
+      throws SQLException {
+    if ((index + 1) % BATCH_SIZE == 0 || index + 1 == size) {
+      statement.executeBatch();
+    }
+  }
+
+  private static Map<Class<?>, List<Model>> groupByClass(Collection<? extends Model> models) {
+    Map<Class<?>, List<Model>> groups = new LinkedHashMap<>();
+    for (Model model : models) {
+      groups.computeIfAbsent(model.getClass(), k -> new ArrayList<>()).add(model);
+    }
+    return groups;
+  }
+
+  /**
+   * Saves all the given models in a single transaction, with one batch of upserts per model class.
+   * Either all the models are saved, or none are.
+   */
+  @Override
+  public void saveAll(Collection<? extends Model> models) {
+    if (models.isEmpty()) {
+      return;
+    }
+    for (Model model : models) {
+      if (model.getDBId() == null) {
+        model.setDBId(UUID.randomUUID().toString());
       }
     }
+    Map<Class<?>, List<Model>> groups = groupByClass(models);
+    runInTransaction(
+        connection -> {
+          for (Map.Entry<Class<?>, List<Model>> group : groups.entrySet()) {
+            List<Model> batch = group.getValue();
+            Upsert upsert = getQueries(group.getKey()).getUpsert(batch.get(0).toMap());
+            try (PreparedStatement statement = connection.prepareStatement(upsert.query)) {
+              for (int i = 0; i < batch.size(); i++) {
+                Map<String, Object> values = batch.get(i).toMap();
+                for (int j = 0; j < upsert.columns.size(); j++) {
+                  formatValue(statement, values.get(upsert.columns.get(j)), j + 1);
+                }
+                statement.addBatch();
+                executeBatchIfFull(statement, i, batch.size());
+              }
+            }
+          }
+        });
+  }
+
+  /**
+   * Deletes all the given models in a single transaction, with one batch of deletions per model
+   * class. Either all the models are deleted, or none are.
+   */
+  @Override
+  public void deleteAll(Collection<? extends Model> models) {
+    if (models.isEmpty()) {
+      return;
+    }
+    Map<Class<?>, List<Model>> groups = groupByClass(models);
+    runInTransaction(
+        connection -> {
+          for (Map.Entry<Class<?>, List<Model>> group : groups.entrySet()) {
+            List<Model> batch = group.getValue();
+            String query = getQueries(group.getKey()).deleteById;
+            try (PreparedStatement statement = connection.prepareStatement(query)) {
+              for (int i = 0; i < batch.size(); i++) {
+                formatValue(statement, batch.get(i).getDBId(), 1);
+                statement.addBatch();
+                executeBatchIfFull(statement, i, batch.size());
+              }
+            }
+          }
+        });
   }
 
   @Override
   public int deleteExpiredItems(Class modelClass, String field, Long cutoffTime, Integer numItems) {
-    Connection connection = getConnection();
-    String table = modelClass.getSimpleName();
-    PreparedStatement statement = null;
-    try {
-      String query;
-      if (numItems != null && numItems > 0) {
-        if (getDialect().equals("mariadb") || getDialect().equals("mysql")) {
-          query =
-              "DELETE FROM "
-                  + quote(table)
-                  + " WHERE "
-                  + quote(field)
-                  + " <= ? ORDER BY "
-                  + quote(field)
-                  + " ASC LIMIT ?";
-        } else {
-          query =
-              "DELETE FROM "
-                  + quote(table)
-                  + "WHERE "
-                  + getRowIdField()
-                  + " IN (SELECT "
-                  + getRowIdField()
-                  + " FROM"
-                  + quote(table)
-                  + " WHERE "
-                  + quote(field)
-                  + " <= ? ORDER BY "
-                  + quote(field)
-                  + " LIMIT ?)";
-        }
-        statement = connection.prepareStatement(query);
-        formatValue(statement, cutoffTime, 1);
+    boolean withLimit = numItems != null && numItems > 0;
+    String query = getQueries(modelClass).getDeleteExpired(field, withLimit);
+    try (Connection connection = getConnection();
+        PreparedStatement statement = connection.prepareStatement(query)) {
+      formatValue(statement, cutoffTime, 1);
+      if (withLimit) {
         formatValue(statement, numItems, 2);
-      } else {
-        query = "DELETE FROM " + quote(table) + " WHERE " + quote(field) + " <= ?";
-        statement = connection.prepareStatement(query);
-        formatValue(statement, cutoffTime, 1);
       }
       return statement.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
     }
   }
 
   @Override
   public void initializeDatabase() {
-    Connection connection = getConnection();
-    PreparedStatement statement = null;
+    String dialect = getDialect();
 
     // Note: The tables names and column names are wrapped with quotes to preserve the case.
     // Otherwise some
     // backends (e.g. Postgres) force the names to be lowercased.
 
     // Create the Session table
-    String blobType = getBlobType();
-    String query =
+    String blobType = getBlobType(dialect);
+    String sessionQuery =
         "CREATE TABLE IF NOT EXISTS "
-            + quote("Session")
+            + quote(dialect, "Session")
             + " ("
-            + quote("id")
+            + quote(dialect, "id")
             + " VARCHAR(255) PRIMARY KEY,"
-            + quote("owner")
+            + quote(dialect, "owner")
             + " VARCHAR(255),"
-            + quote("renewer")
+            + quote(dialect, "renewer")
             + " VARCHAR(255),"
-            + quote("target")
+            + quote(dialect, "target")
             + " VARCHAR(255),"
-            + quote("scope")
+            + quote(dialect, "scope")
             + " VARCHAR(255),"
-            + quote("expiresAt")
+            + quote(dialect, "expiresAt")
             + " BIGINT,"
-            + quote("creationTime")
+            + quote(dialect, "creationTime")
             + " BIGINT"
             + ");";
-    try {
-      statement = connection.prepareStatement(query);
-      statement.executeUpdate();
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
 
     // Create the RefreshToken table
-    query =
+    String refreshTokenQuery =
         "CREATE TABLE IF NOT EXISTS "
-            + quote("RefreshToken")
+            + quote(dialect, "RefreshToken")
             + " ("
-            + quote("id")
+            + quote(dialect, "id")
             + " VARCHAR(255) PRIMARY KEY,"
-            + quote("value")
+            + quote(dialect, "value")
             + " "
             + blobType
             + ","
-            + quote("creationTime")
+            + quote(dialect, "creationTime")
             + " BIGINT"
             + ");";
-    try {
-      statement = connection.prepareStatement(query);
-      statement.executeUpdate();
+
+    try (Connection connection = getConnection()) {
+      for (String query : List.of(sessionQuery, refreshTokenQuery)) {
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          statement.executeUpdate();
+        }
+      }
     } catch (SQLException e) {
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
     }
   }
 
   @Override
   public CheckResult checkConnection() {
-    try {
-      getConnection();
+    try (Connection connection = getConnection()) {
+      long timeout =
+          AppSettings.getInstance().getLong(AppSettings.DATABASE_JDBC_POOL_VALIDATION_TIMEOUT);
+      if (!connection.isValid((int) TimeUnit.MILLISECONDS.toSeconds(timeout))) {
+        return new CheckResult(false, "The database connection is not valid");
+      }
       return new CheckResult(true);
     } catch (Exception e) {
       StringWriter sw = new StringWriter();
@@ -371,12 +581,19 @@ public class JDBCBackend extends AbstractDatabaseBackend {
       "Dialect `%s` is not currently supported by the JDBCDatabaseBackend.";
 
   private static String getDialect() {
-    String url = AppSettings.getInstance().getString(AppSettings.DATABASE_JDBC_URL);
+    return getDialect(AppSettings.getInstance().getString(AppSettings.DATABASE_JDBC_URL));
+  }
+
+  private static String getDialect(String url) {
     return url.split(":")[1];
   }
 
+  /** Quotes the given table or column name for the dialect set in the settings. */
   static String quote(String name) {
-    String dialect = getDialect();
+    return quote(getDialect(), name);
+  }
+
+  static String quote(String dialect, String name) {
     switch (dialect) {
       case "sqlite":
       case "mariadb":
@@ -389,8 +606,7 @@ public class JDBCBackend extends AbstractDatabaseBackend {
     }
   }
 
-  private static String getBlobType() {
-    String dialect = getDialect();
+  private static String getBlobType(String dialect) {
     switch (dialect) {
       case "sqlite":
       case "mariadb":
@@ -403,8 +619,7 @@ public class JDBCBackend extends AbstractDatabaseBackend {
     }
   }
 
-  private static String getUpsertStatement() {
-    String dialect = getDialect();
+  private static String getUpsertStatement(String dialect) {
     switch (dialect) {
       case "sqlite":
       case "postgresql":
@@ -417,8 +632,24 @@ public class JDBCBackend extends AbstractDatabaseBackend {
     }
   }
 
-  private static String getRowIdField() {
-    String dialect = getDialect();
+  /**
+   * Returns the expression that refers to the value of the given column in the row that an upsert
+   * failed to insert, so that the values don't have to be bound a second time for the update.
+   */
+  private static String getUpsertValue(String dialect, String quotedColumn) {
+    switch (dialect) {
+      case "sqlite":
+      case "postgresql":
+        return "excluded." + quotedColumn;
+      case "mariadb":
+      case "mysql":
+        return "VALUES(" + quotedColumn + ")";
+      default:
+        throw new UnsupportedOperationException(String.format(DIALECT_NOT_SUPPORTED, dialect));
+    }
+  }
+
+  private static String getRowIdField(String dialect) {
     switch (dialect) {
       case "postgresql":
         return "ctid";
@@ -16,10 +16,17 @@ import static org.junit.Assert.*;
 
 import com.google.cloud.broker.database.DatabaseObjectNotFound;
 import com.google.cloud.broker.oauth.RefreshToken;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class JDBCBackendTest {
 
@@ -39,29 +46,62 @@ public abstract class JDBCBackendTest {
 
   private static void dropTables(JDBCBackend backend) {
     // Delete all tables
-    Connection connection = backend.getConnection();
     String[] tables = {"RefreshToken", "Session"};
-    Statement statement = null;
     for (String table : tables) {
-      try {
-        statement = connection.createStatement();
-        statement.executeUpdate("DROP TABLE " + quote(table));
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      } finally {
-        try {
-          if (statement != null) statement.close();
-        } catch (SQLException e) {
-          throw new RuntimeException(e);
+      executeUpdate(backend, "DROP TABLE " + quote(table));
+    }
+  }
+
+  /** Runs the given update query with the given parameters. */
+  private static void executeUpdate(JDBCBackend backend, String query, Object... parameters) {
+    try (Connection connection = backend.getConnection();
+        PreparedStatement statement = connection.prepareStatement(query)) {
+      for (int i = 0; i < parameters.length; i++) {
+        statement.setObject(i + 1, parameters[i]);
+      }
+      statement.executeUpdate();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Runs the given query and returns the resulting rows, with the values indexed by column. */
+  private static List<Map<String, Object>> executeQuery(JDBCBackend backend, String query) {
+    try (Connection connection = backend.getConnection();
+        PreparedStatement statement = connection.prepareStatement(query);
+        ResultSet rs = statement.executeQuery()) {
+      List<Map<String, Object>> rows = new ArrayList<>();
+      ResultSetMetaData rsmd = rs.getMetaData();
+      while (rs.next()) {
+        Map<String, Object> row = new HashMap<>();
+        for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+          row.put(rsmd.getColumnName(i), rs.getObject(i));
         }
+        rows.add(row);
       }
+      return rows;
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
     }
   }
 
+  /** Adds a refresh token to the database. */
+  private static void insertRefreshToken(JDBCBackend backend, String id, long creationTime) {
+    executeUpdate(
+        backend,
+        "INSERT INTO "
+            + quote("RefreshToken")
+            + " (id, "
+            + quote("creationTime")
+            + " , value) VALUES (?, ?, ?);",
+        id,
+        creationTime,
+        "abcd".getBytes());
+  }
+
   /** Returns the number of tables in the database */
   private static int getNumTables(JDBCBackend backend) {
-    Connection connection = backend.getConnection();
-    try {
+    try (Connection connection = backend.getConnection()) {
       DatabaseMetaData databaseMetaData = connection.getMetaData();
       ResultSet resultSet = databaseMetaData.getTables(null, null, null, new String[] {"TABLE"});
       int numTables = 0;
@@ -90,113 +130,37 @@ public abstract class JDBCBackendTest {
   /** Test saving a new model to the database. */
   static void saveNew(JDBCBackend backend) {
     // Check that there are no records
-    Connection connection = backend.getConnection();
-    PreparedStatement statement = null;
-    ResultSet rs = null;
-    try {
-      String query = "SELECT * from " + quote("RefreshToken");
-      statement = connection.prepareStatement(query);
-      rs = statement.executeQuery();
-      assertFalse(rs.next());
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
+    assertTrue(executeQuery(backend, "SELECT * from " + quote("RefreshToken")).isEmpty());
 
     // Create a new record
     RefreshToken token = new RefreshToken("alice@example.com", "abcd".getBytes(), 1111111111111L);
     backend.save(token);
 
     // Check that the record was correctly created
-    try {
-      String query = "SELECT * from " + quote("RefreshToken") + " WHERE id='alice@example.com'";
-      statement = connection.prepareStatement(query);
-      rs = statement.executeQuery();
-      assertTrue(rs.next());
-      assertEquals(rs.getObject("creationTime"), 1111111111111L);
-      assertArrayEquals((byte[]) rs.getObject("value"), "abcd".getBytes());
-      assertFalse(rs.next());
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
+    List<Map<String, Object>> rows =
+        executeQuery(
+            backend, "SELECT * from " + quote("RefreshToken") + " WHERE id='alice@example.com'");
+    assertEquals(1, rows.size());
+    assertEquals(rows.get(0).get("creationTime"), 1111111111111L);
+    assertArrayEquals((byte[]) rows.get(0).get("value"), "abcd".getBytes());
   }
 
   /** Test updating an existing model to the database. */
   static void update(JDBCBackend backend) {
     // Create a record in the database
-    Connection connection = backend.getConnection();
-    PreparedStatement statement = null;
-    try {
-      String query =
-          "INSERT INTO "
-              + quote("RefreshToken")
-              + " (id, "
-              + quote("creationTime")
-              + " , value) VALUES (?, ?, ?);";
-      statement = connection.prepareStatement(query);
-      statement.setString(1, "alice@example.com");
-      statement.setLong(2, 1111111111111L);
-      statement.setBytes(3, "abcd".getBytes());
-      statement.executeUpdate();
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
+    insertRefreshToken(backend, "alice@example.com", 1111111111111L);
 
     // Update the record with the same ID but different values
     RefreshToken token = new RefreshToken("alice@example.com", "xyz".getBytes(), 2222222222222L);
     backend.save(token);
 
     // Check that the record was updated
-    ResultSet rs = null;
-    try {
-      String query = "SELECT * from " + quote("RefreshToken") + " WHERE id='alice@example.com'";
-      statement = connection.prepareStatement(query);
-      rs = statement.executeQuery();
-      assertTrue(rs.next());
-      assertEquals(rs.getObject("creationTime"), 2222222222222L);
-      assertArrayEquals((byte[]) rs.getObject("value"), "xyz".getBytes());
-      assertFalse(rs.next());
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
+    List<Map<String, Object>> rows =
+        executeQuery(
+            backend, "SELECT * from " + quote("RefreshToken") + " WHERE id='alice@example.com'");
+    assertEquals(1, rows.size());
+    assertEquals(rows.get(0).get("creationTime"), 2222222222222L);
+    assertArrayEquals((byte[]) rows.get(0).get("value"), "xyz".getBytes());
   }
 
   /**
@@ -205,89 +169,29 @@ public abstract class JDBCBackendTest {
    */
   static void saveWithoutID(JDBCBackend backend) {
     // Check that there are no records
-    Connection connection = backend.getConnection();
-    Statement statement = null;
-    ResultSet rs = null;
-    try {
-      String query = "SELECT * from " + quote("RefreshToken");
-      statement = connection.createStatement();
-      rs = statement.executeQuery(query);
-      assertFalse(rs.next());
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
+    assertTrue(executeQuery(backend, "SELECT * from " + quote("RefreshToken")).isEmpty());
 
     // Create a new record without specifying an ID
     RefreshToken token = new RefreshToken(null, "abcd".getBytes(), 1111111111111L);
     backend.save(token);
 
     // Check that the record was correctly created
-    try {
-      String query = "SELECT * from " + quote("RefreshToken");
-      statement = connection.createStatement();
-      rs = statement.executeQuery(query);
-      assertTrue(rs.next());
-      assertEquals(rs.getObject("creationTime"), 1111111111111L);
-      assertArrayEquals((byte[]) rs.getObject("value"), "abcd".getBytes());
-
-      // Check that the ID is a valid UUID
-      UUID uuid = UUID.fromString((String) rs.getObject("id"));
-      assertEquals(uuid.toString(), rs.getObject("id"));
-
-      assertFalse(rs.next());
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
+    List<Map<String, Object>> rows =
+        executeQuery(backend, "SELECT * from " + quote("RefreshToken"));
+    assertEquals(1, rows.size());
+    Map<String, Object> row = rows.get(0);
+    assertEquals(row.get("creationTime"), 1111111111111L);
+    assertArrayEquals((byte[]) row.get("value"), "abcd".getBytes());
+
+    // Check that the ID is a valid UUID
+    UUID uuid = UUID.fromString((String) row.get("id"));
+    assertEquals(uuid.toString(), row.get("id"));
   }
 
   /** Test retrieving a model from the database. */
   static void get(JDBCBackend backend) throws DatabaseObjectNotFound {
     // Create a record in the database
-    Connection connection = backend.getConnection();
-    PreparedStatement statement = null;
-    try {
-      String query =
-          "INSERT INTO "
-              + quote("RefreshToken")
-              + " (id, "
-              + quote("creationTime")
-              + " , value) VALUES (?, ?, ?);";
-      statement = connection.prepareStatement(query);
-      statement.setString(1, "alice@example.com");
-      statement.setLong(2, 1111111111111L);
-      statement.setBytes(3, "abcd".getBytes());
-      statement.executeUpdate();
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
+    insertRefreshToken(backend, "alice@example.com", 1111111111111L);
 
     // Check that the record is correctly retrieved
     RefreshToken token = (RefreshToken) backend.get(RefreshToken.class, "alice@example.com");
@@ -312,55 +216,86 @@ public abstract class JDBCBackendTest {
   /** Test deleting a model from the database. */
   static void delete(JDBCBackend backend) {
     // Create a record in the database
-    Connection connection = backend.getConnection();
-    PreparedStatement statement = null;
-    try {
-      String query =
-          "INSERT INTO "
-              + quote("RefreshToken")
-              + " (id, "
-              + quote("creationTime")
-              + " , value) VALUES (?, ?, ?);";
-      statement = connection.prepareStatement(query);
-      statement.setString(1, "alice@example.com");
-      statement.setLong(2, 1111111111111L);
-      statement.setBytes(3, "abcd".getBytes());
-      statement.executeUpdate();
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-    }
+    insertRefreshToken(backend, "alice@example.com", 1111111111111L);
 
     // Delete the record
     RefreshToken token = new RefreshToken("alice@example.com", null, null);
     backend.delete(token);
 
     // Check that the record was deleted
-    ResultSet rs = null;
+    assertTrue(
+        executeQuery(
+                backend,
+                "SELECT * from " + quote("RefreshToken") + " WHERE id='alice@example.com';")
+            .isEmpty());
+  }
+
+  /** Test saving many models at once, across several batches. */
+  static void saveAll(JDBCBackend backend) {
+    // Create a record that will be updated
+    insertRefreshToken(backend, "token-0", 1111111111111L);
+
+    List<RefreshToken> tokens = new ArrayList<>();
+    int numTokens = 2 * JDBCBackend.BATCH_SIZE + 1;
+    for (int i = 0; i < numTokens; i++) {
+      tokens.add(new RefreshToken("token-" + i, "xyz".getBytes(), 2222222222222L));
+    }
+    // An ID should automatically be assigned to this one
+    tokens.add(new RefreshToken(null, "xyz".getBytes(), 2222222222222L));
+    backend.saveAll(tokens);
+
+    // Check that all the records were created or updated
+    List<Map<String, Object>> rows =
+        executeQuery(backend, "SELECT * from " + quote("RefreshToken"));
+    assertEquals(numTokens + 1, rows.size());
+    for (Map<String, Object> row : rows) {
+      assertEquals(row.get("creationTime"), 2222222222222L);
+      assertArrayEquals((byte[]) row.get("value"), "xyz".getBytes());
+    }
+    assertNotNull(tokens.get(numTokens).getDBId());
+  }
+
+  /**
+   * Test saving many models at once, when one of them can't be saved. None of the models should be
+   * saved, including those from the batches that were already sent.
+   */
+  static void saveAllRollback(JDBCBackend backend) {
+    List<RefreshToken> tokens = new ArrayList<>();
+    for (int i = 0; i < JDBCBackend.BATCH_SIZE; i++) {
+      tokens.add(new RefreshToken("token-" + i, "abcd".getBytes(), 1111111111111L));
+    }
+    // Null values can't be saved
+    tokens.add(new RefreshToken("invalid", null, 1111111111111L));
     try {
-      String query = "SELECT * from " + quote("RefreshToken") + " WHERE id='alice@example.com';";
-      statement = connection.prepareStatement(query);
-      rs = statement.executeQuery();
-      assertFalse(rs.next());
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
+      backend.saveAll(tokens);
+      fail();
+    } catch (RuntimeException e) {
+      // Expected
+    }
+
+    // Check that there are no records
+    assertTrue(executeQuery(backend, "SELECT * from " + quote("RefreshToken")).isEmpty());
+  }
+
+  /** Test deleting many models at once, across several batches. */
+  static void deleteAll(JDBCBackend backend) {
+    // Create records in the database
+    int numTokens = 2 * JDBCBackend.BATCH_SIZE + 1;
+    List<RefreshToken> tokens = new ArrayList<>();
+    for (int i = 0; i < numTokens; i++) {
+      insertRefreshToken(backend, "token-" + i, 1111111111111L);
+      tokens.add(new RefreshToken("token-" + i, null, null));
     }
+    insertRefreshToken(backend, "alice@example.com", 1111111111111L);
+
+    // Delete all records but one
+    backend.deleteAll(tokens);
+
+    // Check that only the other record is left
+    List<Map<String, Object>> rows =
+        executeQuery(backend, "SELECT * from " + quote("RefreshToken"));
+    assertEquals(1, rows.size());
+    assertEquals("alice@example.com", rows.get(0).get("id"));
   }
 
   /** Test deleting expired items from the database. */
@@ -368,29 +303,16 @@ public abstract class JDBCBackendTest {
     // Create records in the database
     List<String> ids = Arrays.asList("a", "b", "c", "d", "e");
     List<Long> longVals = Arrays.asList(1L, 6L, 7L, 4L, 3L);
-    Connection connection = backend.getConnection();
-    PreparedStatement statement = null;
     for (int i = 0; i < ids.size(); i++) {
-      try {
-        String query =
-            "INSERT INTO "
-                + quote("RefreshToken")
-                + " (id, "
-                + quote("creationTime")
-                + ") VALUES (?, ?);";
-        statement = connection.prepareStatement(query);
-        statement.setString(1, ids.get(i));
-        statement.setLong(2, longVals.get(i));
-        statement.executeUpdate();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      } finally {
-        try {
-          if (statement != null) statement.close();
-        } catch (SQLException e) {
-          throw new RuntimeException(e);
-        }
-      }
+      executeUpdate(
+          backend,
+          "INSERT INTO "
+              + quote("RefreshToken")
+              + " (id, "
+              + quote("creationTime")
+              + ") VALUES (?, ?);",
+          ids.get(i),
+          longVals.get(i));
     }
 
     // Delete expired items
@@ -404,30 +326,47 @@ public abstract class JDBCBackendTest {
     }
 
     // Check that the expired items have been deleted
-    ResultSet rs = null;
+    List<Map<String, Object>> rows =
+        executeQuery(backend, "SELECT * from " + quote("RefreshToken"));
+    for (Map<String, Object> row : rows) {
+      assertFalse(deletedKeys.contains((String) row.get("id")));
+    }
+    assertEquals(ids.size() - deletedKeys.size(), rows.size());
+  }
+
+  /**
+   * Test running operations from many threads at once. All connections should be returned to the
+   * pool afterwards.
+   */
+  static void concurrentOperations(JDBCBackend backend) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(20);
     try {
-      String query = "SELECT * from " + quote("RefreshToken");
-      statement = connection.prepareStatement(query);
-      rs = statement.executeQuery();
-      int numberItemsLeft = 0;
-      while (rs.next()) {
-        assertFalse(deletedKeys.contains(rs.getString("id")));
-        numberItemsLeft++;
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        String id = "token-" + i;
+        futures.add(
+            executor.submit(
+                () -> {
+                  backend.save(new RefreshToken(id, "abcd".getBytes(), 1111111111111L));
+                  RefreshToken token = (RefreshToken) backend.get(RefreshToken.class, id);
+                  assertEquals(id, token.getId());
+                  return null;
+                }));
       }
-      assertEquals(ids.size() - deletedKeys.size(), numberItemsLeft);
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    } finally {
-      try {
-        if (rs != null) rs.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
-      try {
-        if (statement != null) statement.close();
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
+      for (Future<?> future : futures) {
+        future.get();
       }
+    } finally {
+      executor.shutdown();
     }
+    assertEquals(100, backend.getAll(RefreshToken.class).size());
+    HikariPoolMXBean metrics = backend.getPool().getDataSource().getHikariPoolMXBean();
+    assertEquals(0, metrics.getActiveConnections());
+    assertEquals(0, metrics.getThreadsAwaitingConnection());
+  }
+
+  /** Test checking the connection to the database. */
+  static void checkConnection(JDBCBackend backend) {
+    assertTrue(backend.checkConnection().isSuccess());
   }
 }
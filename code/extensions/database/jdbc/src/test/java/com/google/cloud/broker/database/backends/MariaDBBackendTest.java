@@ -11,10 +11,15 @@
 
 package com.google.cloud.broker.database.backends;
 
+import static org.junit.Assert.*;
+
 import com.google.cloud.broker.database.DatabaseObjectNotFound;
+import com.google.cloud.broker.oauth.RefreshToken;
 import com.google.cloud.broker.settings.AppSettings;
 import com.google.cloud.broker.settings.SettingsOverride;
+import com.zaxxer.hikari.HikariConfig;
 import java.util.Map;
+import java.util.Set;
 import org.junit.*;
 
 public class MariaDBBackendTest extends JDBCBackendTest {
@@ -78,6 +83,21 @@ public class MariaDBBackendTest extends JDBCBackendTest {
     JDBCBackendTest.delete(backend);
   }
 
+  @Test
+  public void testSaveAll() {
+    JDBCBackendTest.saveAll(backend);
+  }
+
+  @Test
+  public void testSaveAllRollback() {
+    JDBCBackendTest.saveAllRollback(backend);
+  }
+
+  @Test
+  public void testDeleteAll() {
+    JDBCBackendTest.deleteAll(backend);
+  }
+
   @Test
   public void testDeleteExpiredItems() {
     JDBCBackendTest.deleteExpiredItems(backend, false);
@@ -87,4 +107,45 @@ public class MariaDBBackendTest extends JDBCBackendTest {
   public void testDeleteExpiredItemsWithLimit() {
     JDBCBackendTest.deleteExpiredItems(backend, true);
   }
+
+  @Test
+  public void testConcurrentOperations() throws Exception {
+    JDBCBackendTest.concurrentOperations(backend);
+  }
+
+  @Test
+  public void testCheckConnection() {
+    JDBCBackendTest.checkConnection(backend);
+  }
+
+  @Test
+  public void testCreatePoolConfig() {
+    HikariConfig config = JDBCBackend.createPoolConfig("jdbc:mariadb://localhost/broker");
+    assertEquals(2, config.getMinimumIdle());
+    assertEquals(10, config.getMaximumPoolSize());
+
+    // Prepared statements are cached by the driver
+    assertEquals(true, config.getDataSourceProperties().get("useServerPrepStmts"));
+    assertEquals(true, config.getDataSourceProperties().get("cachePrepStmts"));
+    assertEquals(256, config.getDataSourceProperties().get("prepStmtCacheSize"));
+  }
+
+  @Test
+  public void testUpsertQuery() {
+    JDBCBackend.Upsert upsert =
+        new JDBCBackend.Upsert("mariadb", "`RefreshToken`", Set.of("value", "id"));
+    assertEquals(
+        "INSERT INTO `RefreshToken` (`id`, `value`) VALUES (?, ?)"
+            + " ON DUPLICATE KEY UPDATE `value` = VALUES(`value`)",
+        upsert.query);
+  }
+
+  @Test
+  public void testModelQueries() {
+    JDBCBackend.ModelQueries queries = backend.getQueries(RefreshToken.class);
+    assertEquals("SELECT * FROM `RefreshToken` WHERE `id` = ?", queries.selectById);
+    assertEquals(
+        "DELETE FROM `RefreshToken` WHERE `creationTime` <= ? ORDER BY `creationTime` ASC LIMIT ?",
+        queries.getDeleteExpired("creationTime", true));
+  }
 }
@@ -11,10 +11,16 @@
 
 package com.google.cloud.broker.database.backends;
 
+import static org.junit.Assert.*;
+
 import com.google.cloud.broker.database.DatabaseObjectNotFound;
+import com.google.cloud.broker.oauth.RefreshToken;
 import com.google.cloud.broker.settings.AppSettings;
 import com.google.cloud.broker.settings.SettingsOverride;
+import com.zaxxer.hikari.HikariConfig;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.junit.*;
 
 public class PostgreSQLBackendTest extends JDBCBackendTest {
@@ -78,6 +84,21 @@ public class PostgreSQLBackendTest extends JDBCBackendTest {
     JDBCBackendTest.delete(backend);
   }
 
+  @Test
+  public void testSaveAll() {
+    JDBCBackendTest.saveAll(backend);
+  }
+
+  @Test
+  public void testSaveAllRollback() {
+    JDBCBackendTest.saveAllRollback(backend);
+  }
+
+  @Test
+  public void testDeleteAll() {
+    JDBCBackendTest.deleteAll(backend);
+  }
+
   @Test
   public void testDeleteExpiredItems() {
     JDBCBackendTest.deleteExpiredItems(backend, false);
@@ -87,4 +108,52 @@ public class PostgreSQLBackendTest extends JDBCBackendTest {
   public void testDeleteExpiredItemsWithLimit() {
     JDBCBackendTest.deleteExpiredItems(backend, true);
   }
+
+  @Test
+  public void testConcurrentOperations() throws Exception {
+    JDBCBackendTest.concurrentOperations(backend);
+  }
+
+  @Test
+  public void testCheckConnection() {
+    JDBCBackendTest.checkConnection(backend);
+  }
+
+  @Test
+  public void testCreatePoolConfig() {
+    HikariConfig config = JDBCBackend.createPoolConfig("jdbc:postgresql:broker");
+    assertEquals("jdbc:postgresql:broker", config.getJdbcUrl());
+    assertEquals(2, config.getMinimumIdle());
+    assertEquals(10, config.getMaximumPoolSize());
+    assertEquals(5000, config.getConnectionTimeout());
+    assertEquals(1800000, config.getMaxLifetime());
+    assertEquals(60000, config.getLeakDetectionThreshold());
+
+    // Prepared statements are cached by the driver
+    assertEquals(256, config.getDataSourceProperties().get("preparedStatementCacheQueries"));
+  }
+
+  @Test
+  public void testUpsertQuery() {
+    // The columns are always in the same order
+    JDBCBackend.Upsert upsert =
+        new JDBCBackend.Upsert(
+            "postgresql", "\"RefreshToken\"", Set.of("value", "id", "creationTime"));
+    assertEquals(List.of("creationTime", "id", "value"), upsert.columns);
+    assertEquals(
+        "INSERT INTO \"RefreshToken\" (\"creationTime\", \"id\", \"value\") VALUES (?, ?, ?)"
+            + " ON CONFLICT(id) DO UPDATE SET \"creationTime\" = excluded.\"creationTime\","
+            + " \"value\" = excluded.\"value\"",
+        upsert.query);
+  }
+
+  @Test
+  public void testModelQueries() {
+    JDBCBackend.ModelQueries queries = backend.getQueries(RefreshToken.class);
+    assertEquals("SELECT * FROM \"RefreshToken\" WHERE \"id\" = ?", queries.selectById);
+    assertEquals(
+        "DELETE FROM \"RefreshToken\" WHERE ctid IN (SELECT ctid FROM \"RefreshToken\""
+            + " WHERE \"creationTime\" <= ? ORDER BY \"creationTime\" LIMIT ?)",
+        queries.getDeleteExpired("creationTime", true));
+  }
 }
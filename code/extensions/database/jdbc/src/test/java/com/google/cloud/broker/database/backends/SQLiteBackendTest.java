@@ -11,10 +11,16 @@
 
 package com.google.cloud.broker.database.backends;
 
+import static org.junit.Assert.*;
+
 import com.google.cloud.broker.database.DatabaseObjectNotFound;
+import com.google.cloud.broker.oauth.RefreshToken;
 import com.google.cloud.broker.settings.AppSettings;
 import com.google.cloud.broker.settings.SettingsOverride;
+import com.zaxxer.hikari.HikariConfig;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.junit.*;
 
 public class SQLiteBackendTest extends JDBCBackendTest {
@@ -75,6 +81,21 @@ public class SQLiteBackendTest extends JDBCBackendTest {
     JDBCBackendTest.delete(backend);
   }
 
+  @Test
+  public void testSaveAll() {
+    JDBCBackendTest.saveAll(backend);
+  }
+
+  @Test
+  public void testSaveAllRollback() {
+    JDBCBackendTest.saveAllRollback(backend);
+  }
+
+  @Test
+  public void testDeleteAll() {
+    JDBCBackendTest.deleteAll(backend);
+  }
+
   @Test
   public void testDeleteExpiredItems() {
     JDBCBackendTest.deleteExpiredItems(backend, false);
@@ -84,4 +105,56 @@ public class SQLiteBackendTest extends JDBCBackendTest {
   public void testDeleteExpiredItemsWithLimit() {
     JDBCBackendTest.deleteExpiredItems(backend, true);
   }
+
+  @Test
+  public void testConcurrentOperations() throws Exception {
+    JDBCBackendTest.concurrentOperations(backend);
+  }
+
+  @Test
+  public void testCheckConnection() {
+    JDBCBackendTest.checkConnection(backend);
+  }
+
+  @Test
+  public void testCreatePoolConfig() {
+    HikariConfig config = JDBCBackend.createPoolConfig("jdbc:sqlite::memory:");
+    assertEquals("jdbc:sqlite::memory:", config.getJdbcUrl());
+    assertEquals(5000, config.getConnectionTimeout());
+    assertEquals(60000, config.getLeakDetectionThreshold());
+
+    // SQLite connections aren't recycled
+    assertEquals(1, config.getMinimumIdle());
+    assertEquals(1, config.getMaximumPoolSize());
+    assertEquals(0, config.getMaxLifetime());
+
+    // The SQLite driver doesn't cache prepared statements
+    assertTrue(config.getDataSourceProperties().isEmpty());
+  }
+
+  @Test
+  public void testUpsertQuery() {
+    // The columns are always in the same order
+    JDBCBackend.Upsert upsert =
+        new JDBCBackend.Upsert("sqlite", "`RefreshToken`", Set.of("value", "id", "creationTime"));
+    assertEquals(List.of("creationTime", "id", "value"), upsert.columns);
+    assertEquals(
+        "INSERT INTO `RefreshToken` (`creationTime`, `id`, `value`) VALUES (?, ?, ?)"
+            + " ON CONFLICT(id) DO UPDATE SET `creationTime` = excluded.`creationTime`,"
+            + " `value` = excluded.`value`",
+        upsert.query);
+  }
+
+  @Test
+  public void testModelQueries() {
+    JDBCBackend.ModelQueries queries = backend.getQueries(RefreshToken.class);
+    // The queries are only built once
+    assertSame(queries, backend.getQueries(RefreshToken.class));
+    assertEquals("SELECT * FROM `RefreshToken` WHERE `id` = ?", queries.selectById);
+    assertEquals("DELETE FROM `RefreshToken` WHERE `id` = ?", queries.deleteById);
+    assertEquals(
+        "DELETE FROM `RefreshToken` WHERE rowid IN (SELECT rowid FROM `RefreshToken`"
+            + " WHERE `creationTime` <= ? ORDER BY `creationTime` LIMIT ?)",
+        queries.getDeleteExpired("creationTime", true));
+  }
 }
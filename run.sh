@@ -64,6 +64,8 @@ function update_builds_dir() {
   cp ./code/authorizer/target/authorizer-*-jar-with-dependencies.jar ${temp_dir}
   cp ./code/broker-server/target/broker-server-*-jar-with-dependencies.jar ${temp_dir}
   cp ./code/extensions/caching/cloud-datastore/target/cache-backend-cloud-datastore-*-jar-with-dependencies.jar ${temp_dir}
+  cp ./code/extensions/caching/hazelcast/target/cache-backend-hazelcast-*-jar-with-dependencies.jar ${temp_dir}
+  cp ./code/extensions/caching/memcached/target/cache-backend-memcached-*-jar-with-dependencies.jar ${temp_dir}
   cp ./code/extensions/caching/redis/target/cache-backend-redis-*-jar-with-dependencies.jar ${temp_dir}
   cp ./code/extensions/database/jdbc/target/database-backend-jdbc-*-jar-with-dependencies.jar ${temp_dir}
   cp ./code/extensions/database/cloud-datastore/target/database-backend-cloud-datastore-*-jar-with-dependencies.jar ${temp_dir}
@@ -137,6 +139,12 @@ function set_projects_arg() {
             cache-datastore)
                 PROJECTS_ARG="--projects code/core,code/extensions/caching/cloud-datastore"
                 ;;
+            cache-hazelcast)
+                PROJECTS_ARG="--projects code/core,code/extensions/caching/hazelcast"
+                ;;
+            cache-memcached)
+                PROJECTS_ARG="--projects code/core,code/extensions/caching/memcached"
+                ;;
             *)
                 echo "Invalid module: '${MODULE}'" >&2
                 exit 1
@@ -253,7 +261,8 @@ function init_dev() {
     # 5432: PostgreSQL
     # 3306: MariaDB
     # 6379: Redis
-	  docker run -it -v $PWD:/base -w /base -p 7070:7070 -p 5005:5005 -p 5432:5432 -p 3306:3306 -p 6379:6379 --detach --name ${CONTAINER} ubuntu:22.04 && \
+    # 11211: Memcached
+	  docker run -it -v $PWD:/base -w /base -p 7070:7070 -p 5005:5005 -p 5432:5432 -p 3306:3306 -p 6379:6379 -p 11211:11211 --detach --name ${CONTAINER} ubuntu:22.04 && \
 	  docker exec -it ${CONTAINER} bash -c "code/broker-server/install-dev.sh"
 }
 